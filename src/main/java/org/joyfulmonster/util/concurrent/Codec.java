@@ -0,0 +1,34 @@
+package org.joyfulmonster.util.concurrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes keys or values of a map into bytes, used by writeTo / readFrom of ConcurrentElasticHashMap.
+ *
+ * The serializer hands the codec the stream buffer itself, which is usually a direct ByteBuffer, so the encoded bytes
+ * go to the channel without an intermediate copy.
+ *
+ * 1. encode() writes at the position of the buffer.  If the buffer has too little room it throws
+ *    java.nio.BufferOverflowException, the serializer rewinds the buffer, makes room and calls it again.
+ * 2. decode() reads from the position of the buffer.  If the buffer holds only part of the value it throws
+ *    java.nio.BufferUnderflowException, the serializer rewinds the buffer, reads more bytes and calls it again.
+ *
+ * Codecs for common types are in Codecs.
+ *
+ * @param <T> type of the encoded objects
+ */
+public interface Codec<T> {
+    /**
+     * @param value  not null
+     * @param out
+     * @throws java.nio.BufferOverflowException if out has too little room
+     */
+    void encode(T value, ByteBuffer out);
+
+    /**
+     * @param in
+     * @return the decoded object
+     * @throws java.nio.BufferUnderflowException if in holds only part of the encoded object
+     */
+    T decode(ByteBuffer in);
+}
@@ -0,0 +1,105 @@
+package org.joyfulmonster.util.concurrent;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codecs for common key and value types.
+ *
+ * 1. VARINT_INT and VARINT_LONG write 7 bits per byte, the high bit of a byte flags that more bytes follow.  The
+ *    value is zigzag encoded first, so small negative numbers stay short as well.
+ * 2. UTF8 writes the byte length of the string as a varint, followed by the UTF-8 bytes.
+ *
+ * All the codecs are stateless and thread safe.
+ */
+public final class Codecs {
+    private Codecs() {
+    }
+
+    public static final Codec<Integer> VARINT_INT = new Codec<Integer>() {
+        @Override
+        public void encode(Integer value, ByteBuffer out) {
+            int v = value;
+            // the zigzag form is unsigned, do not sign extend it or every |v| >= 2^30 takes 10 bytes instead of 5
+            writeVarLong(((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL, out);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer in) {
+            int v = (int) readVarLong(in);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    };
+
+    public static final Codec<Long> VARINT_LONG = new Codec<Long>() {
+        @Override
+        public void encode(Long value, ByteBuffer out) {
+            long v = value;
+            writeVarLong((v << 1) ^ (v >> 63), out);
+        }
+
+        @Override
+        public Long decode(ByteBuffer in) {
+            long v = readVarLong(in);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    };
+
+    public static final Codec<String> UTF8 = new Codec<String>() {
+        @Override
+        public void encode(String value, ByteBuffer out) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length, out);
+            if (out.remaining() < bytes.length) {
+                throw new BufferOverflowException();
+            }
+            out.put(bytes);
+        }
+
+        @Override
+        public String decode(ByteBuffer in) {
+            int length = (int) readVarLong(in);
+            if (in.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+            String result;
+            if (in.hasArray()) {
+                result = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                result = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Write the unsigned varint form of v.
+     */
+    static void writeVarLong(long v, ByteBuffer out) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Read an unsigned varint.
+     */
+    static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+}
@@ -0,0 +1,132 @@
+package org.joyfulmonster.util.concurrent;
+
+import org.joyfulmonster.util.concurrent.internal.ConcurrentElasticCounterMapImpl;
+import org.joyfulmonster.util.concurrent.internal.MetricsSupport;
+
+import java.util.Map;
+
+/**
+ * A concurrent map of long counters, built on the same extendible hashing as ConcurrentElasticHashMap.
+ *
+ * It replaces a ConcurrentElasticHashMap<K, AtomicLong>:
+ *
+ * 1. The count is kept as a long in the bucket slot, there is no counter object per key.
+ * 2. Adding to a present key does not lock, the count is updated with a CAS.
+ * 3. A key that is updated by many threads at once is striped: every thread adds to a cell of its own and the count
+ *    is the sum of the cells, so the throughput on a single hot key scales with the cores.  add() is the cheapest
+ *    update, addAndGet() on a striped key also sums the cells.
+ *
+ * An absent key counts as 0.  sumThenReset() drains a count without losing concurrent adds, which suits periodic
+ * flushing of metrics.
+ *
+ * @param <K> type of keys stored in the map
+ */
+public class ConcurrentElasticCounterMap<K> {
+    private ConcurrentElasticCounterMapImpl<K> service;
+
+    public ConcurrentElasticCounterMap() {
+        service = new ConcurrentElasticCounterMapImpl<K>();
+    }
+
+    public ConcurrentElasticCounterMap(int bucketSize, int initBucketCount, float loadFactor) {
+        service = new ConcurrentElasticCounterMapImpl<K>(bucketSize, initBucketCount, loadFactor);
+    }
+
+    /**
+     * Add delta to the count of the key.
+     *
+     * @param key
+     * @param delta
+     * @return the count after the add
+     */
+    public long addAndGet(K key, long delta) {
+        return service.addAndGet(key, delta);
+    }
+
+    /**
+     * @param key
+     * @return the count after the increment
+     */
+    public long incrementAndGet(K key) {
+        return service.addAndGet(key, 1L);
+    }
+
+    /**
+     * @param key
+     * @return the count after the decrement
+     */
+    public long decrementAndGet(K key) {
+        return service.addAndGet(key, -1L);
+    }
+
+    /**
+     * Add delta to the count of the key without reading the count back.
+     *
+     * @param key
+     * @param delta
+     */
+    public void add(K key, long delta) {
+        service.add(key, delta);
+    }
+
+    /**
+     * @param key
+     * @return the count of the key, 0 if absent
+     */
+    public long get(K key) {
+        return service.get(key);
+    }
+
+    /**
+     * Read the count of the key and reset it to 0, the key stays in the map.
+     *
+     * @param key
+     * @return the count, 0 if absent
+     */
+    public long sumThenReset(K key) {
+        return service.sumThenReset(key);
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @param key
+     * @return the count of the key, 0 if absent
+     */
+    public long remove(K key) {
+        return service.remove(key);
+    }
+
+    /**
+     * Copy the keys and their counts into a new map, without locking.
+     *
+     * @return
+     */
+    public Map<K, Long> snapshot() {
+        return service.snapshot();
+    }
+
+    /**
+     * The number of keys in the map
+     * @return
+     */
+    public int size() {
+        return service.size();
+    }
+
+    /**
+     * The number of keys, use it instead of size() if the count may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
+        return service.mappingCount();
+    }
+
+    /**
+     * Package wide method, allow client to inspect the metrics of the map.
+     * @return
+     */
+    MetricsSupport getMetrics() {
+        return service;
+    }
+}
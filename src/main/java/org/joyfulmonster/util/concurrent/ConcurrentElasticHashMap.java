@@ -3,6 +3,23 @@ package org.joyfulmonster.util.concurrent;
 import org.joyfulmonster.util.concurrent.internal.ConcurrentElasticHashMapImpl;
 import org.joyfulmonster.util.concurrent.internal.MetricsSupport;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
 /**
  * This is a simplified implementation of a CurrentHashMap based on Extendiable Hashing algorithm.
  * https://en.wikipedia.org/wiki/Extendible_hashing.
@@ -13,6 +30,17 @@ import org.joyfulmonster.util.concurrent.internal.MetricsSupport;
  * The map didn't implement the full interface of java.util.Map or java.util.ConcurrentMap.
  * or java.io.Serializable.as of today.  It will be expanded.
  *
+ * Entries may carry a time to live, either per write or through the expireAfterWrite / expireAfterAccess policies.
+ * Expired entries are invisible to reads right away, their memory is reclaimed in the background.  size() keeps
+ * counting an expired entry until it is reclaimed.
+ *
+ * The map may be bounded by maximumSize or maximumWeight.  A bounded map stops splitting once the share of the bound
+ * of a bucket is small enough, and the bucket evicts with CLOCK instead.  The bound is approximate, a bucket may hold
+ * one entry above its share.
+ *
+ * getOrLoad / getOrLoadAsync load an absent key at most once: concurrent callers of the same key wait for the single
+ * running load instead of calling the loader again.
+ *
  * @param <K> type of keys stored in the map
  * @param <V> type of values stored in the map
  */
@@ -25,10 +53,287 @@ public class ConcurrentElasticHashMap<K, V> {
         service = new ConcurrentElasticHashMapImpl<K, V>();
     }
 
+    /**
+     * Creates a map pre-sized to hold expectedSize entries without splitting buckets.
+     *
+     * @param expectedSize  the number of entries the map is expected to hold
+     */
+    public ConcurrentElasticHashMap(int expectedSize) {
+        service = new ConcurrentElasticHashMapImpl<K, V>(expectedSize);
+    }
+
     public ConcurrentElasticHashMap(int bucketSize, int initBucketCount, float loadFactor) {
         service = new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, loadFactor);
     }
 
+    private ConcurrentElasticHashMap(ConcurrentElasticHashMapImpl<K, V> service) {
+        this.service = service;
+    }
+
+    /**
+     * Creates a map of String keys that keeps the keys as UTF-8 bytes packed in per bucket arenas instead of String
+     * objects, which roughly halves the memory of an entry with a short key.  The map holds plain mappings only:
+     * expiration, maximumSize / maximumWeight and getOrLoad throw UnsupportedOperationException.
+     *
+     * @return a new map
+     */
+    public static <V> ConcurrentElasticHashMap<String, V> withCompactStringKeys() {
+        return withCompactStringKeys(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT, ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map of compact String keys, see withCompactStringKeys().
+     *
+     * @param bucketSize
+     * @param initBucketCount
+     * @param loadFactor
+     * @return a new map
+     */
+    public static <V> ConcurrentElasticHashMap<String, V> withCompactStringKeys(int bucketSize, int initBucketCount,
+                                                                              float loadFactor) {
+        return new ConcurrentElasticHashMap<String, V>(
+                ConcurrentElasticHashMapImpl.<V>withCompactStringKeys(bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Creates a map for insert heavy workloads with default configuration parameters, see
+     * withLockFreeInserts(int, int, float).
+     *
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> withLockFreeInserts() {
+        return withLockFreeInserts(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT, ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map for insert heavy workloads: a put of an absent key claims an empty slot of its bucket with a CAS
+     * instead of locking the bucket, so inserts of distinct keys scale with threads even within one bucket.  Splits,
+     * removes and eviction still lock the bucket.  Removed keys keep their slots until the bucket is split or rebuilt.
+     *
+     * @param bucketSize
+     * @param initBucketCount
+     * @param loadFactor
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> withLockFreeInserts(int bucketSize, int initBucketCount,
+                                                                          float loadFactor) {
+        return new ConcurrentElasticHashMap<K, V>(
+                ConcurrentElasticHashMapImpl.<K, V>withLockFreeInserts(bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Creates a small map that costs a few hundred bytes until it is written to, see lazy(int, int, float).  It starts
+     * with a single bucket.
+     *
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> lazy() {
+        return lazy(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE, 1,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map whose buckets allocate their slots on the first write, for applications that keep many small
+     * maps.  A bucket starts with a handful of slots and doubles them up to bucketSize, only then the map splits it.
+     *
+     * @param bucketSize
+     * @param initBucketCount
+     * @param loadFactor
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> lazy(int bucketSize, int initBucketCount, float loadFactor) {
+        return new ConcurrentElasticHashMap<K, V>(
+                ConcurrentElasticHashMapImpl.<K, V>lazy(bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Creates a map that sizes its buckets itself, see adaptive(int, int, float).  It starts from the default
+     * configuration.
+     *
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> adaptive() {
+        return adaptive(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE, ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map that chooses the bucket size and the load factor from the running workload instead of the
+     * constructor arguments.  The buckets measure how often their lock is contended and how far their inserts probe;
+     * as the map splits, the buckets of every new depth get fewer slots under contention, more slots otherwise, and a
+     * lower load factor when the probes get long.  bucketSize and loadFactor are only where the tuning starts.
+     *
+     * @param bucketSize
+     * @param initBucketCount
+     * @param loadFactor
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> adaptive(int bucketSize, int initBucketCount, float loadFactor) {
+        return new ConcurrentElasticHashMap<K, V>(
+                ConcurrentElasticHashMapImpl.<K, V>adaptive(bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Creates a map split into one independent shard per available processor.  Every shard has its own directory and
+     * lock, so a map that grows under many writers splits its buckets in parallel, and doubling the directory of a
+     * shard only holds back the splits of that shard.
+     *
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> sharded() {
+        return sharded(Runtime.getRuntime().availableProcessors(), ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT, ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map split into independent shards, see sharded().
+     *
+     * @param shardCount  the number of shards, rounded up to a power of 2
+     * @param bucketSize
+     * @param initBucketCount  the initial buckets over all the shards
+     * @param loadFactor
+     * @return a new map
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> sharded(int shardCount, int bucketSize, int initBucketCount,
+                                                              float loadFactor) {
+        return new ConcurrentElasticHashMap<K, V>(
+                ConcurrentElasticHashMapImpl.<K, V>sharded(shardCount, bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Creates a tiered map with default configuration parameters, see tiered(File, Codec, Codec, int, int, float).
+     *
+     * @param file  the spill file, it is truncated
+     * @param keyCodec
+     * @param valueCodec
+     * @return a new map
+     * @throws IOException if the file can not be opened
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> tiered(File file, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        return tiered(file, keyCodec, valueCodec, ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT, ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates a map that moves its cold buckets to a memory mapped spill file, for maps larger than the heap they
+     * deserve.  spillColdBuckets() spills the buckets untouched since its previous call.  A spilled bucket keeps a
+     * small Bloom filter on the heap: a read of an absent key usually returns without touching the file, any other
+     * access loads the bucket back.
+     *
+     * @param file  the spill file, it is truncated and used by the map only
+     * @param keyCodec
+     * @param valueCodec
+     * @param bucketSize
+     * @param initBucketCount
+     * @param loadFactor
+     * @return a new map
+     * @throws IOException if the file can not be opened
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> tiered(File file, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                             int bucketSize, int initBucketCount, float loadFactor)
+            throws IOException {
+        return new ConcurrentElasticHashMap<K, V>(ConcurrentElasticHashMapImpl.<K, V>tiered(file, keyCodec, valueCodec,
+                bucketSize, initBucketCount, loadFactor));
+    }
+
+    /**
+     * Build a map from a known set of entries.  The buckets are filled in parallel without locking and the map is
+     * returned fully formed.  If a key occurs more than once, its last entry wins.
+     *
+     * @param entries  neither the key nor the value may be null
+     * @return a new map holding the entries
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> bulkLoad(
+            Collection<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        return new ConcurrentElasticHashMap<K, V>(ConcurrentElasticHashMapImpl.<K, V>bulkLoad(entries));
+    }
+
+    /**
+     * Build a map from a stream of entries, see bulkLoad(Collection).  A parallel stream is drained in parallel.
+     *
+     * @param entries  neither the key nor the value may be null
+     * @return a new map holding the entries
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> bulkLoad(
+            Stream<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        return new ConcurrentElasticHashMap<K, V>(ConcurrentElasticHashMapImpl.<K, V>bulkLoad(entries));
+    }
+
+    /**
+     * Write the entries of the map to the stream with the codecs.  The bytes are staged in a direct buffer, the
+     * stream is not closed.  Writing is consistent per bucket, concurrent writes may or may not be included.
+     *
+     * @param out
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        service.writeTo(Channels.newChannel(out), keyCodec, valueCodec);
+        out.flush();
+    }
+
+    /**
+     * Write the entries of the map to the channel with the codecs, see writeTo(OutputStream).
+     *
+     * @param channel
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel, Codec<? super K> keyCodec, Codec<? super V> valueCodec)
+            throws IOException {
+        service.writeTo(channel, keyCodec, valueCodec);
+    }
+
+    /**
+     * Read a map written by writeTo().  The new map is pre-sized for the number of entries that were written.  The
+     * stream is read in blocks, so bytes after the end of the map may be consumed as well.
+     *
+     * @param in
+     * @param keyCodec
+     * @param valueCodec
+     * @return a new map holding the entries
+     * @throws IOException
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> readFrom(InputStream in, Codec<? extends K> keyCodec,
+                                                                 Codec<? extends V> valueCodec) throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return readFrom(Channels.newChannel(in), keyCodec, valueCodec);
+    }
+
+    /**
+     * Read a map written by writeTo() from the channel.
+     *
+     * @param channel
+     * @param keyCodec
+     * @param valueCodec
+     * @return a new map holding the entries
+     * @throws IOException
+     */
+    public static <K, V> ConcurrentElasticHashMap<K, V> readFrom(ReadableByteChannel channel,
+                                                                 Codec<? extends K> keyCodec,
+                                                                 Codec<? extends V> valueCodec) throws IOException {
+        return new ConcurrentElasticHashMap<K, V>(ConcurrentElasticHashMapImpl.<K, V>readFrom(channel, keyCodec, valueCodec));
+    }
+
+    /**
+     * Grow the map ahead of a bulk load, so that expectedSize entries fit without splitting buckets.
+     *
+     * @param expectedSize  the number of entries the map is expected to hold
+     */
+    public void ensureCapacity(int expectedSize) {
+        service.ensureCapacity(expectedSize);
+    }
+
     /**
      * Insert a key value pair.
      *
@@ -43,6 +348,22 @@ public class ConcurrentElasticHashMap<K, V> {
         return service.put(key, value);
     }
 
+    /**
+     * Insert a key value pair that expires after the time to live.
+     *
+     * @param key  key - no null
+     * @param value value - no null
+     * @param ttl  time to live - positive
+     * @param unit  unit of ttl
+     * @return  old value if Key entry exists.  null if the Key entry not exist.
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return service.put(key, value, ttl, unit);
+    }
+
     /**
      * Insert a key value pair if not existing
      *
@@ -57,6 +378,74 @@ public class ConcurrentElasticHashMap<K, V> {
         return service.putIfAbsent(key, value);
     }
 
+    /**
+     * Insert a key value pair that expires after the time to live if not existing
+     *
+     * @param key  key - no null
+     * @param value value - no null
+     * @param ttl  time to live - positive
+     * @param unit  unit of ttl
+     * @return  old value if Key entry exists.  null if the Key entry not exist.
+     */
+    public V putIfAbsent(K key, V value, long ttl, TimeUnit unit) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return service.putIfAbsent(key, value, ttl, unit);
+    }
+
+    /**
+     * Entries written afterwards without their own time to live expire the duration after they are written.
+     * Replaces a previous expireAfterAccess policy.
+     *
+     * @param duration  positive
+     * @param unit
+     * @return this map
+     */
+    public ConcurrentElasticHashMap<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+        service.expireAfterWrite(duration, unit);
+        return this;
+    }
+
+    /**
+     * Entries written afterwards without their own time to live expire the duration after they are last read or
+     * written.  Replaces a previous expireAfterWrite policy.
+     *
+     * @param duration  positive
+     * @param unit
+     * @return this map
+     */
+    public ConcurrentElasticHashMap<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+        service.expireAfterAccess(duration, unit);
+        return this;
+    }
+
+    /**
+     * Bound the number of entries.  Every bucket enforces its share of the bound under its own lock, evicting with
+     * CLOCK once it is deep enough in the directory.  Replaces a previous maximumWeight bound.  Should be set before
+     * the map is populated.
+     *
+     * @param maximumSize  positive
+     * @return this map
+     */
+    public ConcurrentElasticHashMap<K, V> maximumSize(long maximumSize) {
+        service.maximumSize(maximumSize);
+        return this;
+    }
+
+    /**
+     * Bound the total weight of the entries.  Every bucket enforces its share of the bound under its own lock,
+     * evicting with CLOCK.  Replaces a previous maximumSize bound.  Should be set before the map is populated.
+     *
+     * @param maximumWeight  positive
+     * @param weigher  no null
+     * @return this map
+     */
+    public ConcurrentElasticHashMap<K, V> maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        service.maximumWeight(maximumWeight, weigher);
+        return this;
+    }
+
     /**
      * Fetch the value of the key entry
      *
@@ -70,6 +459,50 @@ public class ConcurrentElasticHashMap<K, V> {
         return service.get(key);
     }
 
+    /**
+     * Fetch the value of the key entry, load it through the loader if the key is absent.  Concurrent calls for the same
+     * absent key run the loader once, the other callers wait for its result.
+     *
+     * @param key  key - no null
+     * @param loader  returns the value of the key, null keeps the key absent.  It must not load the same key again.
+     * @return the value, null if the loader returned null
+     */
+    public V getOrLoad(K key, Function<? super K, ? extends V> loader) {
+        if (key == null || loader == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return service.getOrLoad(key, loader);
+    }
+
+    /**
+     * Asynchronous getOrLoad, the loader runs on the common ForkJoinPool.
+     *
+     * @param key  key - no null
+     * @param loader  returns the value of the key, null keeps the key absent
+     * @return a future of the value
+     */
+    public CompletableFuture<V> getOrLoadAsync(K key, Function<? super K, ? extends V> loader) {
+        if (key == null || loader == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return service.getOrLoadAsync(key, loader);
+    }
+
+    /**
+     * Asynchronous getOrLoad, the loader runs on the executor.
+     *
+     * @param key  key - no null
+     * @param loader  returns the value of the key, null keeps the key absent
+     * @param executor  runs the loader
+     * @return a future of the value
+     */
+    public CompletableFuture<V> getOrLoadAsync(K key, Function<? super K, ? extends V> loader, Executor executor) {
+        if (key == null || loader == null || executor == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return service.getOrLoadAsync(key, loader, executor);
+    }
+
     /**
      * Remove the entry of the key.
      * @param key
@@ -121,6 +554,103 @@ public class ConcurrentElasticHashMap<K, V> {
         return service.replace(key, oldValue, value);
     }
 
+    /**
+     * Update several keys as one atomic step, for example to move an amount between two accounts.  The update gets a
+     * map of the present keys to their values and puts or removes keys in it, the changes are written together when
+     * it returns.  Only the buckets of the keys are locked, updates of unrelated keys run in parallel.
+     *
+     * <pre>
+     *     map.atomically(Arrays.asList("a", "b"), new Consumer&lt;Map&lt;String, Long&gt;&gt;() {
+     *         public void accept(Map&lt;String, Long&gt; values) {
+     *             values.put("a", values.get("a") - 10);
+     *             values.put("b", values.get("b") + 10);
+     *         }
+     *     });
+     * </pre>
+     *
+     * @param keys  the keys the update may read and write
+     * @param update  called once while the buckets are locked, it must not use the map
+     */
+    public void atomically(Collection<? extends K> keys, Consumer<? super Map<K, V>> update) {
+        service.atomically(keys, update);
+    }
+
+    /**
+     * Put every entry of the other map into this one.  Both maps place a key by the same hash, so the entries are
+     * moved a bucket at a time, the buckets in parallel, instead of a put per entry: merging a delta map into a base
+     * map streams through both of them once.
+     *
+     * @param other  the map whose entries are put
+     */
+    public void putAllFrom(ConcurrentElasticHashMap<? extends K, ? extends V> other) {
+        service.putAllFrom((other == null) ? null : other.service);
+    }
+
+    /**
+     * Merge every entry of the other map into this one like putAllFrom(), a key present in both maps gets the
+     * combination of the two values, or is removed if the combination is null.
+     *
+     * @param other  the map whose entries are merged
+     * @param combiner  gets the value of this map then the value of the other map, it must not use this map
+     */
+    public void join(ConcurrentElasticHashMap<? extends K, ? extends V> other,
+                     BiFunction<? super V, ? super V, ? extends V> combiner) {
+        service.join((other == null) ? null : other.service, combiner);
+    }
+
+    /**
+     * A read only view of the map at this point in time, for consistent reads while the writers go on.  Taking it
+     * costs about one lock per bucket and no copy of the entries: the buckets are shared, and a bucket is copied only
+     * when the map writes to it for the first time afterwards.  The view does not support the writing methods of Map.
+     *
+     * @return
+     */
+    public Map<K, V> snapshot() {
+        return service.snapshot();
+    }
+
+    /**
+     * Spill the buckets that were not read nor written since the previous call, for a map created by tiered().  Call
+     * it periodically: the period is how long a bucket stays on the heap without being accessed.
+     *
+     * @return the number of buckets spilled
+     * @throws IOException if the spill file can not be written
+     */
+    public int spillColdBuckets() throws IOException {
+        return service.spillColdBuckets();
+    }
+
+    /**
+     * Close the spill file of a map created by tiered(), once the map is no longer used.  The map stays readable, but
+     * no bucket is spilled anymore.
+     *
+     * @throws IOException if the spill file can not be closed
+     */
+    public void closeSpillFile() throws IOException {
+        service.closeSpillFile();
+    }
+
+    /**
+     * Record the operations of the map into a trace file until stopTrace(), to replay the real traffic against other
+     * configurations offline.  Only the type, the key hash and the time of every get, put, putIfAbsent, replace and
+     * remove are recorded, into a buffer per thread that is written out as it fills up.
+     *
+     * @param file  the trace file, it is truncated
+     * @throws IOException if the file can not be opened
+     */
+    public void startTrace(File file) throws IOException {
+        service.startTrace(file);
+    }
+
+    /**
+     * Stop recording the trace started by startTrace() and write out what is still buffered.
+     *
+     * @throws IOException if a part of the trace could not be written
+     */
+    public void stopTrace() throws IOException {
+        service.stopTrace();
+    }
+
     /**
      * The total number of entries in the table
      * @return
@@ -129,6 +659,14 @@ public class ConcurrentElasticHashMap<K, V> {
         return service.size();
     }
 
+    /**
+     * The number of entries, use it instead of size() if the count may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
+        return service.mappingCount();
+    }
+
     /**
      * Package wide method, allow client to inspect the metrics of the hashmap.
      * @return
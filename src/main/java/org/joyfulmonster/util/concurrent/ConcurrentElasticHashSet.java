@@ -0,0 +1,102 @@
+package org.joyfulmonster.util.concurrent;
+
+import org.joyfulmonster.util.concurrent.internal.ConcurrentElasticHashSetImpl;
+import org.joyfulmonster.util.concurrent.internal.MetricsSupport;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * A concurrent set built on the same extendible hashing as ConcurrentElasticHashMap.
+ *
+ * It replaces a ConcurrentElasticHashMap<K, Boolean>: the buckets keep the keys and their hashes only, there is no
+ * HashEntry and no value per key, and contains() reads the key straight from the bucket slot.  contains() does not
+ * lock, add() and remove() lock the bucket of the key.
+ *
+ * @param <K> type of keys stored in the set
+ */
+public class ConcurrentElasticHashSet<K> {
+    private ConcurrentElasticHashSetImpl<K> service;
+
+    public ConcurrentElasticHashSet() {
+        service = new ConcurrentElasticHashSetImpl<K>();
+    }
+
+    public ConcurrentElasticHashSet(int bucketSize, int initBucketCount, float loadFactor) {
+        service = new ConcurrentElasticHashSetImpl<K>(bucketSize, initBucketCount, loadFactor);
+    }
+
+    /**
+     * @param key
+     * @return true if the key was absent
+     */
+    public boolean add(K key) {
+        return service.add(key);
+    }
+
+    /**
+     * Add all the keys, locking every bucket once for all its keys.
+     *
+     * @param keys
+     * @return true if any key was absent
+     */
+    public boolean addAll(Collection<? extends K> keys) {
+        return service.addAll(keys);
+    }
+
+    /**
+     * @param key
+     * @return true if the key is in the set
+     */
+    public boolean contains(Object key) {
+        return service.contains(key);
+    }
+
+    /**
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(K key) {
+        return service.remove(key);
+    }
+
+    /**
+     * A weakly consistent stream of the keys.
+     * @return
+     */
+    public Stream<K> stream() {
+        return service.stream(false);
+    }
+
+    /**
+     * A weakly consistent parallel stream of the keys, split along the buckets.
+     * @return
+     */
+    public Stream<K> parallelStream() {
+        return service.stream(true);
+    }
+
+    /**
+     * The number of keys in the set
+     * @return
+     */
+    public int size() {
+        return service.size();
+    }
+
+    /**
+     * The number of keys, use it instead of size() if the count may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
+        return service.mappingCount();
+    }
+
+    /**
+     * Package wide method, allow client to inspect the metrics of the set.
+     * @return
+     */
+    MetricsSupport getMetrics() {
+        return service;
+    }
+}
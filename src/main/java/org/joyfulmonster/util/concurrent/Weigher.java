@@ -0,0 +1,19 @@
+package org.joyfulmonster.util.concurrent;
+
+/**
+ * Computes the weight of an entry for a map bounded by maximumWeight.
+ *
+ * The weight of an entry is computed when it is written and again when it leaves the map, so the result must not
+ * change while the entry is stored.
+ *
+ * @param <K> type of keys stored in the map
+ * @param <V> type of values stored in the map
+ */
+public interface Weigher<K, V> {
+    /**
+     * @param key
+     * @param value
+     * @return the weight of the entry, not negative
+     */
+    int weigh(K key, V value);
+}
@@ -1,5 +1,7 @@
 package org.joyfulmonster.util.concurrent.internal;
 
+import java.util.List;
+
 /**
  * This is the interface of a Bucket.
  *
@@ -13,6 +15,9 @@ package org.joyfulmonster.util.concurrent.internal;
  * Created by Weifeng Bao on 1/11/2016.
  */
 interface Bucket<K, V> {
+    /** Returned by the lock free methods when the caller has to retry under the bucket lock */
+    Object RETRY = new Object();
+
     /**
      * Lock the bucket.   The locker is ReentrantLocker, the thread holding the locker can reenter.
      */
@@ -42,6 +47,15 @@ interface Bucket<K, V> {
      */
     public boolean isInvalid();
 
+    /**
+     * Called under the lock before writing to the bucket.  A bucket that a snapshot of the map still reads is replaced
+     * by a private copy first, see ConcurrentElasticHashMapImpl.snapshot().
+     *
+     * @return false if the bucket must not be written, because it was split or copied, the caller retries against the
+     *         directory
+     */
+    boolean prepareWrite();
+
     /**
      * Whether this bucket holds to the entries of the hashCode.   The lower bits of the hashCode should match the
      * BucketIdx.
@@ -49,7 +63,7 @@ interface Bucket<K, V> {
      * @param hashCode
      * @return
      */
-    boolean canHandle(int hashCode);
+    boolean canHandle(long hashCode);
 
     /**
      * Safety check to see if the Bucket size is over load factor.
@@ -64,42 +78,99 @@ interface Bucket<K, V> {
      * @param value
      * @param hashCode
      * @param replaceIfPresent
+     * @param ttlNanos  time to live of the entry, Expiration.POLICY_TTL applies the policy of the map
      * @return
      * @throws BucketOverflowError
      */
-    public V put(K key, V value, int hashCode, boolean replaceIfPresent);
+    public V put(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos);
 
     /**
-     * Put in new entry by splitting the bucket.
+     * Put in new entry by splitting the bucket.  If enough of the bucket is taken by expired entries, the bucket is
+     * rebuilt at the same local depth instead.
      *
      * @param key
      * @param value
      * @param hashCode
      * @param replaceIfPresent
+     * @param ttlNanos
      * @return
      */
-    public V splitAndPut(K key, V value, int hashCode, boolean replaceIfPresent);
+    public V splitAndPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos);
 
     /**
-     * this is the method to be called during split that spread the old entries from old bucket to the new bucket
+     * Split the bucket without writing, or rebuild it at the same local depth if enough of it is taken by expired
+     * entries.  The caller retries its write against the new buckets.
+     *
+     * @param grow  always split unless the bucket reached the depth at which a bounded map evicts
+     * @return true if the bucket was split, false if it was rebuilt at the same local depth
+     */
+    public boolean split(boolean grow);
+
+    /**
+     * Read the stored entry of the key, either a live entry or a LoadingHashEntry.
      *
      * @param key
-     * @param value
      * @param hashCode
-     * @return
+     * @return Null if the key was not found or its entry expired.
+     */
+    HashEntry<K, V> getEntry(K key, long hashCode);
+
+    /**
+     * this is the method to be called during split that spread the old entries from old bucket to the new bucket.
+     * The entry instance is moved as is, so the TimingWheel keeps tracking it.
+     *
+     * @param entry
+     * @param referenced  the eviction reference bit of the entry in the old bucket
+     */
+    void transferEntry(HashEntry<K, V> entry, boolean referenced);
+
+    /**
+     * Copy the live entries of the bucket, skipping expired entries and the placeholders of running loads.
+     *
+     * @param out
      */
-    V transferEntry(K key, V value, int hashCode);
+    void collectEntries(List<HashEntry<K, V>> out);
 
     /**
-     * Support the replace methods in java.util.concurrent.ConcurrentMap.
+     * Reclaim entries fired by the TimingWheel.  An entry is reclaimed only if it is still the one stored for its key
+     * and its deadline has passed.  Entries whose deadline was moved by reads are added to stillLive.
+     *
+     * @param expired
+     * @param now
+     * @param stillLive
+     */
+    void expire(List<ExpiringHashEntry<K, V>> expired, long now, List<ExpiringHashEntry<K, V>> stillLive);
+
+    /**
+     * Replace the value of a present key.  Supports the replace methods in java.util.concurrent.ConcurrentMap and the
+     * overwrite of put.
+     *
+     * The method does not need the bucket lock: the new entry is swapped into the slot with a CAS.  Without the lock it
+     * returns RETRY if the bucket is being split, or if the write needs the lock, for example to keep the weight of a
+     * bounded map.  Under the lock it never returns RETRY unless the bucket is invalid.
      *
      * @param key
      * @param hashCode
-     * @param oldValue
+     * @param oldValue  replace only if the current value equals oldValue, null to replace any value
      * @param newValue
-     * @return
+     * @param ttlNanos  time to live of the new entry, Expiration.POLICY_TTL applies the policy of the map
+     * @return  the replaced value, null if the key is absent or its value does not match, or RETRY
+     */
+    public Object replace(K key, long hashCode, V oldValue, V newValue, long ttlNanos);
+
+    /**
+     * Lock free put, supported by buckets that take inserts without the lock.  A present key is handled like by
+     * replace(), an absent key is inserted by claiming an empty slot with a CAS.
+     *
+     * @param key
+     * @param value
+     * @param hashCode
+     * @param replaceIfPresent
+     * @param ttlNanos
+     * @return  the value of the present key, null if the key was inserted, or RETRY if the put has to be done under
+     *          the bucket lock: the bucket does not take lock free inserts, is being split, or is full
      */
-    public V replace(K key, int hashCode, V oldValue, V newValue);
+    public Object tryPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos);
 
     /**
      * Read the key entry.
@@ -107,7 +178,7 @@ interface Bucket<K, V> {
      * @param hashValue
      * @return  Null if the Key was not found,otherwise, return the value.
      */
-    V get(K key, int hashValue);
+    V get(K key, long hashValue);
 
     /**
      * Remove the entry if the key and value are both matching
@@ -116,5 +187,5 @@ interface Bucket<K, V> {
      * @param value
      * @return Null if key and value pair not found, otherwise, old value.
      */
-    public V remove(K key, int hashValue, V value);
+    public V remove(K key, long hashValue, V value);
 }
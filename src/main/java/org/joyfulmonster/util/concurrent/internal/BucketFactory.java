@@ -1,6 +1,7 @@
 package org.joyfulmonster.util.concurrent.internal;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provide the Factory facility to encapsulate the Bucket creation logic.
@@ -8,25 +9,252 @@ import java.util.concurrent.atomic.AtomicInteger;
  * A Directory maintains a instance of BucketFactory.  If there is a need to create a new Bucket, the code should go
  * to Directory to ask for the BucketFactory instance and call newBucket.
  *
+ * The buckets of an unbounded map start with MIN_BUCKET_CAPACITY slots, and a full bucket is rebuilt with twice the
+ * slots until it reaches bucketSize, only then it splits, see newBucketsFor().  The buckets of a bounded map always
+ * take bucketSize slots.
+ *
+ * A bucket at the deepest local depth the Directory allows can not split, it keeps doubling its slots beyond
+ * bucketSize, up to MAX_BUCKET_CAPACITY.
+ *
+ * The buckets of a lazy map start with no slots at all, the first write rebuilds the bucket with LAZY_BUCKET_CAPACITY
+ * slots, which then grow the same way.
+ *
+ * In an ADAPTIVE map bucketSize and the load factor are only where the BucketTuner starts: the slots a bucket grows to
+ * and its load factor are chosen per local depth, from what the buckets observed at the depth above.
+ *
  * Created by Weifeng Bao on 1/11/2016.
  */
 class BucketFactory {
+    /** the slots of a new bucket of a map that grows its buckets */
+    static final int MIN_BUCKET_CAPACITY = 64;
+    /** the slots of the first bucket a lazy map allocates */
+    static final int LAZY_BUCKET_CAPACITY = 8;
+    /** the slots of a bucket that can not split any more */
+    static final int MAX_BUCKET_CAPACITY = 1 << 30;
+    /** the deepest local depth, a deeper bucket would double the Directory beyond MAX_BUCKET_COUNT */
+    static final int MAX_LOCAL_DEPTH = Integer.numberOfTrailingZeros(ConcurrentElasticHashMapImpl.MAX_BUCKET_COUNT);
+
     private Directory directory;
     private int bucketSize;
     private float bucketLoadFactor;
-    private AtomicInteger totalEntryCount;
+    private AtomicLong totalEntryCount;
     private AtomicInteger totalSplitCount;
+    private Expiration<?, ?> expiration;
+    private Eviction<?, ?> eviction;
+    /** the kind of buckets to create */
+    private BucketLayout layout;
+    /** chooses the size and the load factor per depth, null unless the layout is ADAPTIVE */
+    private BucketTuner tuner;
 
-    BucketFactory(Directory directory, int bucketSize, float bucketLoadFactor, AtomicInteger totalEntryCount, AtomicInteger splitCount) {
+    BucketFactory(Directory directory, int bucketSize, float bucketLoadFactor, AtomicLong totalEntryCount, AtomicInteger splitCount,
+                  Expiration<?, ?> expiration, Eviction<?, ?> eviction, BucketLayout layout) {
         this.directory = directory;
         this.bucketLoadFactor = bucketLoadFactor;
         this.bucketSize = bucketSize;
         this.totalEntryCount = totalEntryCount;
         this.totalSplitCount = splitCount;
+        this.expiration = expiration;
+        this.eviction = eviction;
+        this.layout = layout;
+        if (layout == BucketLayout.ADAPTIVE) {
+            this.tuner = new BucketTuner(bucketSize, bucketLoadFactor);
+        }
+    }
+
+    /**
+     * An array for the buckets that replace a bucket, see Directory.onSplit().
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Bucket<K, V>[] newArray(int length) {
+        return (Bucket<K, V>[]) new Bucket<?, ?>[length];
+    }
+
+    /**
+     * A bucket of the full size of its depth.
+     */
+    public <K, V> Bucket<K, V> newBucket(int localDepth, int bucketIdx) {
+        return newBucket(localDepth, bucketIdx, bucketSizeAt(localDepth));
     }
 
-    public Bucket newBucket(int localDepth, int bucketIdx) {
-        Bucket result = new LinearProbingBucketImpl(localDepth, bucketIdx, bucketSize, bucketLoadFactor,  totalEntryCount, totalSplitCount).directory(directory);
+    /**
+     * A bucket of the given number of slots, if the layout grows its buckets, otherwise of bucketSize slots.
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Bucket<K, V> newBucket(int localDepth, int bucketIdx, int capacity) {
+        if (!growsBuckets() && capacity < bucketSize) {
+            capacity = bucketSize;
+        }
+        // the layout matches the key and value types of the map that created the factory
+        if (layout == BucketLayout.COMPACT_STRING_KEYS) {
+            return (Bucket<K, V>) new Utf8StringBucketImpl<V>(localDepth, bucketIdx, capacity, bucketLoadFactor,
+                    totalEntryCount).directory(directory);
+        }
+        if (layout == BucketLayout.COUNTERS) {
+            return (Bucket<K, V>) new CounterBucketImpl<K>(localDepth, bucketIdx, capacity, bucketLoadFactor,
+                    totalEntryCount).directory(directory);
+        }
+        if (layout == BucketLayout.KEYS) {
+            return (Bucket<K, V>) new KeySetBucketImpl<K>(localDepth, bucketIdx, capacity, bucketLoadFactor,
+                    totalEntryCount).directory(directory);
+        }
+        Bucket<K, V> result = new LinearProbingBucketImpl<K, V>(localDepth, bucketIdx, capacity, loadFactorAt(localDepth),
+                totalEntryCount, (Expiration<K, V>) expiration, (Eviction<K, V>) eviction,
+                layout == BucketLayout.LOCK_FREE_INSERTS, tuning() ? tuner : null).directory(directory);
         return result;
     }
+
+    /**
+     * The buckets that take the entries of a bucket being rebuilt or split, they are not visible yet.
+     *
+     * 1. A rebuilt bucket keeps its depth and its slots.
+     * 2. A bucket at MAX_LOCAL_DEPTH can not split, it is grown instead, see capacityAtMaxDepth().
+     * 3. A bucket that did not reach the size of its depth yet is grown in place, unless the caller asks to split.
+     * 4. Otherwise the bucket splits, each half takes the slots its entries call for, see capacityToHold().
+     *
+     * @param capacity  the slots of the bucket
+     * @param rebuild  dropping the dead slots frees enough space, or the caller needs the same depth
+     * @param grow  split even if the bucket could grow in place, the entries to come are on their way
+     * @param lowerCount  the live entries that stay at bucketIdx after a split
+     * @param upperCount  the live entries that move to bucketIdx | (1 << localDepth) after a split
+     * @param reserve  the inserts to make room for on top of the live entries
+     * @return  two buckets one level deeper, or one bucket at the same depth
+     */
+    <K, V> Bucket<K, V>[] newBucketsFor(int localDepth, int bucketIdx, int capacity, boolean rebuild, boolean grow,
+                                        int lowerCount, int upperCount, int reserve) {
+        Bucket<K, V>[] newBuckets;
+        if (rebuild) {
+            newBuckets = newArray(1);
+            newBuckets[0] = newBucket(localDepth, bucketIdx, capacity);
+        } else if (localDepth >= MAX_LOCAL_DEPTH) {
+            /** The directory can not double any more, keep growing the bucket instead */
+            newBuckets = newArray(1);
+            newBuckets[0] = newBucket(localDepth, bucketIdx, capacityAtMaxDepth(capacity));
+        } else if (!grow && nextCapacity(localDepth, capacity) > capacity) {
+            /** The bucket has not reached the size of its depth yet, grow it at the same depth */
+            newBuckets = newArray(1);
+            newBuckets[0] = newBucket(localDepth, bucketIdx,
+                    grownCapacity(localDepth, capacity, lowerCount + upperCount + reserve));
+        } else {
+            totalSplitCount.incrementAndGet();
+
+            int newLocalDepth = localDepth + 1;
+            int newBucketIdx = bucketIdx | (1 << localDepth);
+
+            newBuckets = newArray(2);
+            if (grow) {
+                int fullSize = nextCapacity(newLocalDepth, Integer.MAX_VALUE);
+                newBuckets[0] = newBucket(newLocalDepth, bucketIdx,
+                        Math.max(fullSize, capacityToHold(newLocalDepth, lowerCount)));
+                newBuckets[1] = newBucket(newLocalDepth, newBucketIdx,
+                        Math.max(fullSize, capacityToHold(newLocalDepth, upperCount)));
+            } else {
+                // the reserved inserts may all land on either side
+                newBuckets[0] = newBucket(newLocalDepth, bucketIdx,
+                        capacityToHold(newLocalDepth, lowerCount + reserve));
+                newBuckets[1] = newBucket(newLocalDepth, newBucketIdx,
+                        capacityToHold(newLocalDepth, upperCount + reserve));
+            }
+        }
+        return newBuckets;
+    }
+
+    /**
+     * Whether the tuner chooses the size of the buckets.  A bounded map shares the bound by depth and load threshold,
+     * its buckets keep the configured size.
+     */
+    private boolean tuning() {
+        return tuner != null && growsBuckets();
+    }
+
+    /**
+     * The slots a bucket of the depth grows to before it splits.
+     */
+    private int bucketSizeAt(int localDepth) {
+        return tuning() ? tuner.bucketSizeAt(localDepth) : bucketSize;
+    }
+
+    private float loadFactorAt(int localDepth) {
+        return tuning() ? tuner.loadFactorAt(localDepth) : bucketLoadFactor;
+    }
+
+    /**
+     * Whether the buckets start small and grow in place.  The buckets of a bounded map share the bound by their
+     * depth, they keep bucketSize slots.
+     */
+    private boolean growsBuckets() {
+        return (layout == BucketLayout.ENTRIES || layout == BucketLayout.LOCK_FREE_INSERTS
+                || layout == BucketLayout.ADAPTIVE || layout == BucketLayout.COMPACT_STRING_KEYS
+                || layout == BucketLayout.COUNTERS || layout == BucketLayout.KEYS) && !eviction.isBounded();
+    }
+
+    /**
+     * The slots of a bucket of the depth after growing a bucket of the given slots, the size of the depth once it is
+     * reached.
+     */
+    int nextCapacity(int localDepth, int capacity) {
+        int size = bucketSizeAt(localDepth);
+        if (capacity >= size || !growsBuckets()) {
+            return size;
+        }
+        if (capacity == 0) {
+            return Math.min(LAZY_BUCKET_CAPACITY, size);
+        }
+        return (int) Math.min((long) capacity << 1, size);
+    }
+
+    /**
+     * The slots of a bucket of the depth grown in place from the given slots: the next capacity, doubled again while it
+     * can not take the entries, the size of the depth at most.
+     */
+    int grownCapacity(int localDepth, int capacity, int entries) {
+        int size = bucketSizeAt(localDepth);
+        float loadFactor = loadFactorAt(localDepth);
+        int grown = nextCapacity(localDepth, capacity);
+        while (grown < size && entries >= (int) (((float) grown) * loadFactor)) {
+            grown = nextCapacity(localDepth, grown);
+        }
+        return grown;
+    }
+
+    /**
+     * The slots of a bucket of MAX_LOCAL_DEPTH after growing a bucket of the given slots.
+     */
+    int capacityAtMaxDepth(int capacity) {
+        if (capacity >= MAX_BUCKET_CAPACITY) {
+            throw new IllegalStateException("bucket size limit exceeded");
+        }
+        return Math.max(bucketSize, (int) Math.min((long) capacity << 1, MAX_BUCKET_CAPACITY));
+    }
+
+    /**
+     * The fewest slots of a bucket of the depth that hold the entries and leave a quarter of the load threshold free,
+     * the size of the depth at most.
+     */
+    int capacityFor(int localDepth, int entries) {
+        int size = bucketSizeAt(localDepth);
+        float loadFactor = loadFactorAt(localDepth);
+        int capacity = Math.min(MIN_BUCKET_CAPACITY, size);
+        while (capacity < size) {
+            int threshold = (int) (((float) capacity) * loadFactor);
+            if (entries < threshold - (threshold >>> 2)) {
+                break;
+            }
+            capacity = nextCapacity(localDepth, capacity);
+        }
+        return growsBuckets() ? capacity : bucketSize;
+    }
+
+    /**
+     * The slots of a bucket of the depth that takes the entries of a bucket being split or paged in, see capacityFor().
+     * The tuner may have made the depth smaller than the bucket the entries come from, then the bucket takes as many
+     * slots as its load threshold needs, and it splits on the next insert.
+     */
+    int capacityToHold(int localDepth, int entries) {
+        int capacity = capacityFor(localDepth, entries);
+        float loadFactor = loadFactorAt(localDepth);
+        while (entries > (int) (((float) capacity) * loadFactor) && capacity < MAX_BUCKET_CAPACITY) {
+            capacity = (int) Math.min((long) capacity << 1, MAX_BUCKET_CAPACITY);
+        }
+        return capacity;
+    }
 }
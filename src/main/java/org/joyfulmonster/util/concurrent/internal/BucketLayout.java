@@ -0,0 +1,21 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+/**
+ * The kind of buckets a Directory is built of, chosen once when the map is created.
+ *
+ * Created by Weifeng Bao on 1/23/2016.
+ */
+enum BucketLayout {
+    /** LinearProbingBucketImpl, HashEntry objects with support for expiration, bounds and loading */
+    ENTRIES,
+    /** LinearProbingBucketImpl taking inserts without the lock */
+    LOCK_FREE_INSERTS,
+    /** LinearProbingBucketImpl whose size and load factor are tuned per depth, see BucketTuner */
+    ADAPTIVE,
+    /** Utf8StringBucketImpl, String keys kept as UTF-8 bytes */
+    COMPACT_STRING_KEYS,
+    /** CounterBucketImpl, long values kept inline */
+    COUNTERS,
+    /** KeySetBucketImpl, keys without values */
+    KEYS
+}
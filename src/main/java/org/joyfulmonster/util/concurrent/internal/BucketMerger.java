@@ -0,0 +1,203 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+/**
+ * Merges the entries of one map into another bucket by bucket, instead of a put per entry.  Both maps hash with the
+ * same HashStrategy, so a bucket of the source holds the keys of a hash prefix, and they fall into the bucket of the
+ * target that owns the prefix, or into a few neighboring buckets if the target is deeper there.
+ *
+ * 1. Every bucket of the source is a task on the common ForkJoinPool.  Its entries are copied under its lock, like
+ *    MapSerializer does, and the lock is released before the target is written: a task holds one lock at a time, so
+ *    merges in both directions never deadlock.
+ * 2. The entries are sorted by shard, then by their reversed hash bits.  The keys of any bucket of the target then form
+ *    a run whatever its local depth, and the target is written in one pass, one lock per run.
+ * 3. A run is written as an atomic update of the bucket of up to MAX_BATCH keys, see beginAtomic(): the lock free
+ *    writers wait, so the combiner sees and replaces the current value of a key, and the bucket is neither split nor
+ *    rebuilt in the middle.  A bucket without room for the batch gets a smaller batch, a full bucket grows or splits
+ *    first, the same way as for an insert, see makeRoomForAtomic().
+ * 4. The keys keep their hashes, nothing is hashed again.
+ *
+ * Created by Weifeng Bao on 2/1/2016.
+ */
+class BucketMerger<K, V> {
+    /** the most keys written under one lock */
+    private static final int MAX_BATCH = 256;
+
+    private final BucketRouter directory;
+    private final BiFunction<? super V, ? super V, ? extends V> combiner;
+    private final int shardMask;
+    private final Comparator<HashEntry<K, V>> order = new Comparator<HashEntry<K, V>>() {
+        @Override
+        public int compare(HashEntry<K, V> a, HashEntry<K, V> b) {
+            return Long.compare(sortKey(a.getKeyHashCode()), sortKey(b.getKeyHashCode()));
+        }
+    };
+
+    /**
+     * @param directory  the directory of the target
+     * @param combiner  combines the value of a key present in both maps, the target value first; null lets the source
+     *                  value win
+     */
+    BucketMerger(BucketRouter directory, BiFunction<? super V, ? super V, ? extends V> combiner) {
+        this.directory = directory;
+        this.combiner = combiner;
+        this.shardMask = directory.getShards().length - 1;
+    }
+
+    /**
+     * Merge every entry of the source, in parallel.
+     *
+     * @param source  the directory of the source map
+     */
+    void merge(BucketRouter source) {
+        final List<Directory> shards = new ArrayList<Directory>();
+        final List<Integer> prefixes = new ArrayList<Integer>();
+        final List<Integer> depths = new ArrayList<Integer>();
+        for (Directory shard : source.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> buckets = shard.get();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket<?, ?> bucket = buckets.get(i);
+                // a bucket shows up in every slot of its prefix, visit it at its own index only
+                if (bucket.getBucketIdx() == i) {
+                    shards.add(shard);
+                    prefixes.add(i);
+                    depths.add(bucket.getLocalDepth());
+                }
+            }
+        }
+
+        ForkJoinPool.commonPool().invoke(new BulkLoader.RangeTask(new BulkLoader.Step() {
+            @Override
+            void compute(int i) {
+                mergePrefix(shards.get(i), prefixes.get(i), depths.get(i), new ArrayList<HashEntry<K, V>>());
+            }
+        }, 0, shards.size()));
+    }
+
+    /**
+     * Merge the entries of the source whose hashes start with the prefix.
+     */
+    private void mergePrefix(Directory shard, int prefix, int depth, List<HashEntry<K, V>> entries) {
+        while (true) {
+            Bucket<K, V> bucket = shard.getBucket(prefix);
+            if (bucket.getLocalDepth() > depth) {
+                // split since the buckets were listed, buckets never merge, so the two halves cover the prefix
+                mergePrefix(shard, prefix, depth + 1, entries);
+                mergePrefix(shard, prefix | (1 << depth), depth + 1, entries);
+                return;
+            }
+            bucket.lock();
+            try {
+                if (bucket.isInvalid()) {
+                    continue;
+                }
+                bucket.collectEntries(entries);
+            } finally {
+                bucket.unlock();
+            }
+            break;
+        }
+
+        Collections.sort(entries, order);
+        int i = 0;
+        boolean full = false;
+        while (i < entries.size()) {
+            long hashCode = entries.get(i).getKeyHashCode();
+            Bucket<K, V> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (!bucket.prepareWrite()) {
+                    continue;
+                }
+                // a bucket that can be written is never a spilled one
+                LinearProbingBucketImpl<K, V> target = (LinearProbingBucketImpl<K, V>) bucket;
+                if (full) {
+                    // a bounded map keeps the size of its buckets, write the key the way put() does, which evicts
+                    write(target, entries.get(i), false);
+                    full = false;
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < entries.size() && end - i < MAX_BATCH
+                        && isSameBucket(hashCode, entries.get(end).getKeyHashCode(), target)) {
+                    end++;
+                }
+                int batch = end - i;
+                while (batch > 0 && !target.beginAtomic(batch)) {
+                    batch >>>= 1;
+                }
+                if (batch == 0) {
+                    // grow or split the bucket the way an insert does, and start over with the new buckets
+                    full = !target.makeRoomForAtomic(end - i);
+                    continue;
+                }
+                try {
+                    for (int j = i; j < i + batch; j++) {
+                        write(target, entries.get(j), true);
+                    }
+                } finally {
+                    target.endAtomic();
+                }
+                i += batch;
+            } finally {
+                bucket.unlock();
+            }
+        }
+        entries.clear();
+    }
+
+    /**
+     * Write an entry under the lock of the bucket.
+     *
+     * @param atomic  whether an atomic update of the bucket made room for the entry, otherwise the bucket may be split
+     */
+    private void write(LinearProbingBucketImpl<K, V> bucket, HashEntry<K, V> entry, boolean atomic) {
+        K key = entry.getKey();
+        long hashCode = entry.getKeyHashCode();
+        V value = entry.getValue();
+        if (combiner != null) {
+            V current = bucket.get(key, hashCode);
+            if (current != null) {
+                value = combiner.apply(current, value);
+                if (value == null) {
+                    bucket.remove(key, hashCode, null);
+                    return;
+                }
+            }
+        }
+        if (atomic || bucket.hasMoreSpace()) {
+            try {
+                bucket.put(key, value, hashCode, true, Expiration.POLICY_TTL);
+                return;
+            } catch (BucketOverflowError e) {
+                if (atomic) {
+                    throw e;
+                }
+            }
+        }
+        bucket.splitAndPut(key, value, hashCode, true, Expiration.POLICY_TTL);
+    }
+
+    private boolean isSameBucket(long first, long hashCode, Bucket<K, V> bucket) {
+        return shardOf(first) == shardOf(hashCode) && bucket.canHandle(hashCode);
+    }
+
+    private int shardOf(long hashCode) {
+        return (int) (hashCode >>> 32) & shardMask;
+    }
+
+    /**
+     * The shard, then the hash bits from the lowest one: the keys of a bucket of any depth sort next to each other.
+     */
+    private long sortKey(long hashCode) {
+        return ((long) shardOf(hashCode) << 32) | (Integer.reverse((int) hashCode) & 0xFFFFFFFFL);
+    }
+}
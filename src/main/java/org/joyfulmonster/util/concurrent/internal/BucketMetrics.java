@@ -0,0 +1,70 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The bucket metrics of MetricsSupport, computed over every shard of a map from the buckets that implement
+ * BucketMetricsSupport.
+ *
+ * Created by Weifeng Bao on 1/29/2016.
+ */
+final class BucketMetrics {
+    private BucketMetrics() {
+    }
+
+    /**
+     * The difference between the entries of the fullest and of the emptiest bucket.
+     */
+    static int maxBucketCountDifference(BucketRouter directory) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (Directory shard : directory.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> buckets = shard.get();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket<?, ?> bucket = buckets.get(i);
+                if (bucket instanceof BucketMetricsSupport) {
+                    int entries = ((BucketMetricsSupport) bucket).getBucketEntries();
+                    min = Math.min(min, entries);
+                    max = Math.max(max, entries);
+                }
+            }
+        }
+        return max - min;
+    }
+
+    /**
+     * The most entries a bucket holds beyond its load threshold, 0 if no bucket does.
+     */
+    static int maxBucketOverload(BucketRouter directory) {
+        int max = 0;
+        for (Directory shard : directory.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> buckets = shard.get();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket<?, ?> bucket = buckets.get(i);
+                if (bucket instanceof BucketMetricsSupport) {
+                    BucketMetricsSupport metrics = (BucketMetricsSupport) bucket;
+                    max = Math.max(max, metrics.getBucketEntries() - metrics.getBucketLoadThreshold());
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The slots allocated by all the buckets.
+     */
+    static long slotCount(BucketRouter directory) {
+        long slots = 0;
+        for (Directory shard : directory.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> buckets = shard.get();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket<?, ?> bucket = buckets.get(i);
+                // a bucket shows up in every slot of its prefix, count it at its own index only
+                if (bucket.getBucketIdx() == i && bucket instanceof BucketMetricsSupport) {
+                    slots += ((BucketMetricsSupport) bucket).getBucketCapacity();
+                }
+            }
+        }
+        return slots;
+    }
+}
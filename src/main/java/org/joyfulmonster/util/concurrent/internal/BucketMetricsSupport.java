@@ -11,4 +11,16 @@ interface BucketMetricsSupport {
      * @return
      */
     int getBucketEntries();
+
+    /**
+     * The number of slots allocated by the bucket.
+     * @return
+     */
+    int getBucketCapacity();
+
+    /**
+     * The number of entries the bucket holds before it is split or rebuilt.
+     * @return
+     */
+    int getBucketLoadThreshold();
 }
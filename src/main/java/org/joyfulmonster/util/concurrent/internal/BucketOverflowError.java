@@ -6,6 +6,8 @@ package org.joyfulmonster.util.concurrent.internal;
  * Created by Weifeng Bao on 1/11/2016.
  */
 class BucketOverflowError extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
     public BucketOverflowError() {
         super("The bucket does not have enough capacity");
     }
@@ -0,0 +1,30 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+/**
+ * Finds the bucket of a hash.  A map routes its keys through a BucketRouter, either a single Directory or a
+ * ShardedDirectory of several.  The bucket array, the epoch and the BucketFactory belong to the Directory of a shard,
+ * the code that walks the buckets walks getShards().
+ *
+ * Created by Weifeng Bao on 1/29/2016.
+ */
+interface BucketRouter {
+    /**
+     * Get the bucket count
+     * @return
+     */
+    public int getBucketCount();
+
+    /**
+     * Get the bucket for a hashcode
+     * @param hashCode
+     * @return
+     */
+    public <K, V> Bucket<K, V> getBucket(long hashCode);
+
+    /**
+     * The independent directories the hash space is split into, see ShardedDirectory.  A directory that is not
+     * sharded is its only shard.
+     * @return
+     */
+    Directory[] getShards();
+}
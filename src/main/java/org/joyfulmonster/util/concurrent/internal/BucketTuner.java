@@ -0,0 +1,116 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+/**
+ * Chooses the slots and the load factor of the new buckets of an adaptive map, per local depth, from what the buckets
+ * that were split or rebuilt observed during their life.
+ *
+ * 1. A bucket counts under its own lock the lock acquisitions that had to wait, and the slots its inserts probed past
+ *    the home slot of the key.  It hands the counts over when it is split or rebuilt, see retire().
+ * 2. Contention: if more than 1 in 16 lock acquisitions at a depth waited, the buckets of the next depth get half the
+ *    slots, which spreads the writers over more locks.  If fewer than 1 in 256 waited, they get twice the slots, which
+ *    means fewer splits and a smaller directory.
+ * 3. Probe length: more than one slot probed past the home slot per insert lowers the load factor of the next depth by
+ *    LOAD_FACTOR_STEP, less than a quarter of a slot raises it.
+ * 4. Split frequency: a depth is decided once SAMPLE_RETIRED buckets of it were retired and they saw SAMPLE_LOCKS lock
+ *    acquisitions, then its counts are halved.  A depth that splits often is tuned often, and the decisions follow the
+ *    workload as it changes.
+ * 5. A depth that was never decided takes the choice of the deepest decided depth above it, the configured bucket size
+ *    and load factor at first.  A map that keeps splitting therefore converges one depth at a time.
+ *
+ * Created by Weifeng Bao on 1/29/2016.
+ */
+class BucketTuner {
+    /** the most slots the tuner gives a bucket */
+    static final int MAX_TUNED_CAPACITY = 1 << 14;
+    static final float MIN_LOAD_FACTOR = 0.5f;
+    static final float LOAD_FACTOR_STEP = 0.05f;
+    /** the retired buckets and the lock acquisitions a depth needs before it is decided */
+    private static final int SAMPLE_RETIRED = 4;
+    private static final long SAMPLE_LOCKS = 1024L;
+
+    private final int depths = BucketFactory.MAX_LOCAL_DEPTH + 1;
+    /** the choice per depth, 0 until the depth is decided */
+    private final int[] capacity = new int[depths];
+    private final float[] loadFactor = new float[depths];
+    /** the counts of the retired buckets per depth */
+    private final int[] retired = new int[depths];
+    private final long[] locks = new long[depths];
+    private final long[] waited = new long[depths];
+    private final long[] inserts = new long[depths];
+    private final long[] probed = new long[depths];
+
+    /**
+     * @param bucketSize  the slots of a bucket until a depth is decided
+     * @param bucketLoadFactor  the load factor of a bucket until a depth is decided
+     */
+    BucketTuner(int bucketSize, float bucketLoadFactor) {
+        capacity[0] = Math.max(BucketFactory.MIN_BUCKET_CAPACITY, Math.min(bucketSize, MAX_TUNED_CAPACITY));
+        loadFactor[0] = Math.max(MIN_LOAD_FACTOR, bucketLoadFactor);
+    }
+
+    /**
+     * The slots a bucket of the depth grows to before it splits.
+     */
+    synchronized int bucketSizeAt(int localDepth) {
+        int depth = Math.min(localDepth, depths - 1);
+        while (capacity[depth] == 0) {
+            depth--;
+        }
+        return capacity[depth];
+    }
+
+    /**
+     * The load factor of a bucket of the depth.
+     */
+    synchronized float loadFactorAt(int localDepth) {
+        int depth = Math.min(localDepth, depths - 1);
+        while (capacity[depth] == 0) {
+            depth--;
+        }
+        return loadFactor[depth];
+    }
+
+    /**
+     * Take the counts of a bucket that is split or rebuilt, decide the next depth once there are enough of them.
+     *
+     * @param localDepth  the depth of the bucket
+     * @param lockCount  the lock acquisitions of the bucket
+     * @param waitedCount  the lock acquisitions that had to wait
+     * @param insertCount  the inserts under the lock
+     * @param probedSlots  the slots the inserts probed past the home slot of their key
+     */
+    synchronized void retire(int localDepth, long lockCount, long waitedCount, long insertCount, long probedSlots) {
+        if (localDepth + 1 >= depths) {
+            return;
+        }
+        retired[localDepth]++;
+        locks[localDepth] += lockCount;
+        waited[localDepth] += waitedCount;
+        inserts[localDepth] += insertCount;
+        probed[localDepth] += probedSlots;
+        if (retired[localDepth] < SAMPLE_RETIRED || locks[localDepth] < SAMPLE_LOCKS) {
+            return;
+        }
+
+        int size = bucketSizeAt(localDepth);
+        if (waited[localDepth] * 16 > locks[localDepth]) {
+            size = Math.max(BucketFactory.MIN_BUCKET_CAPACITY, size >>> 1);
+        } else if (waited[localDepth] * 256 < locks[localDepth]) {
+            size = Math.min(MAX_TUNED_CAPACITY, size << 1);
+        }
+        float factor = loadFactorAt(localDepth);
+        if (probed[localDepth] > inserts[localDepth]) {
+            factor = Math.max(MIN_LOAD_FACTOR, factor - LOAD_FACTOR_STEP);
+        } else if (probed[localDepth] * 4 < inserts[localDepth]) {
+            factor = Math.min(ConcurrentElasticHashMapImpl.MAX_BUCKET_LOADFACTOR, factor + LOAD_FACTOR_STEP);
+        }
+        capacity[localDepth + 1] = size;
+        loadFactor[localDepth + 1] = factor;
+
+        retired[localDepth] = 0;
+        locks[localDepth] >>>= 1;
+        waited[localDepth] >>>= 1;
+        inserts[localDepth] >>>= 1;
+        probed[localDepth] >>>= 1;
+    }
+}
@@ -0,0 +1,226 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Builds the buckets of a new map from a known set of entries in parallel, then publishes them as one Directory.
+ *
+ * 1. The entries are partitioned by the hash prefix of the target depth with a parallel counting sort: every chunk of
+ *    the input hashes its keys and counts them per bucket, the counts give each chunk a disjoint range of every
+ *    partition, and the chunks scatter into their ranges.  The scatter keeps the input order within a partition.
+ * 2. Every partition is filled into its own bucket on a ForkJoin worker.  Nobody else can see the bucket yet, so no
+ *    lock is taken and the shared entry counter is updated once per bucket.  A partition with more keys than a bucket
+ *    holds is partitioned one bit deeper, the same way a bucket splits.
+ * 3. The directory array is wired from the finished buckets and published in a single step.
+ *
+ * When a key occurs more than once, the last occurrence wins, the same as a sequence of puts.
+ *
+ * Created by Weifeng Bao on 1/20/2016.
+ */
+class BulkLoader<K, V> {
+    /** the smallest number of entries worth a task of its own */
+    private static final int MIN_CHUNK = 4096;
+
+    private final Directory directory;
+    private final AtomicLong totalEntryCount;
+
+    BulkLoader(Directory directory, AtomicLong totalEntryCount) {
+        this.directory = directory;
+        this.totalEntryCount = totalEntryCount;
+    }
+
+    /**
+     * Build and publish the buckets.
+     *
+     * @param entries      Map.Entry instances, neither the key nor the value may be null
+     * @param bucketCount  the number of partitions, a power of 2
+     */
+    void load(final Object[] entries, int bucketCount) {
+        final int n = entries.length;
+        final int depth = Integer.numberOfTrailingZeros(bucketCount);
+        final int mask = bucketCount - 1;
+        final long[] hashes = new long[n];
+        final int[] order = new int[n];
+
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        final int chunkSize = Math.max(MIN_CHUNK, (n + parallelism * 4 - 1) / (parallelism * 4));
+        int chunkCount = Math.max(1, (n + chunkSize - 1) / chunkSize);
+        final int[][] offsets = new int[chunkCount][bucketCount];
+
+        /** Hash the keys and count them per partition */
+        ForkJoinPool.commonPool().invoke(new RangeTask(new Step() {
+            @Override
+            void compute(int chunk) {
+                int[] counts = offsets[chunk];
+                for (int i = chunk * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries[i];
+                    if (entry == null || entry.getKey() == null || entry.getValue() == null) {
+                        throw new IllegalArgumentException("The key or value can not be null.");
+                    }
+                    long hashCode = HashStrategy.getInstance().hash(entry.getKey());
+                    hashes[i] = hashCode;
+                    counts[(int) hashCode & mask]++;
+                }
+            }
+        }, 0, chunkCount));
+
+        /** Turn the counts into the start of every chunk's range within every partition */
+        final int[] partitionStart = new int[bucketCount + 1];
+        int offset = 0;
+        for (int bucketIdx = 0; bucketIdx < bucketCount; bucketIdx++) {
+            partitionStart[bucketIdx] = offset;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int count = offsets[chunk][bucketIdx];
+                offsets[chunk][bucketIdx] = offset;
+                offset += count;
+            }
+        }
+        partitionStart[bucketCount] = offset;
+
+        /** Scatter the entry indexes into their partitions */
+        ForkJoinPool.commonPool().invoke(new RangeTask(new Step() {
+            @Override
+            void compute(int chunk) {
+                int[] next = offsets[chunk];
+                for (int i = chunk * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                    order[next[(int) hashes[i] & mask]++] = i;
+                }
+            }
+        }, 0, chunkCount));
+
+        /** Fill the buckets */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final List<Bucket<?, ?>>[] built = new List[bucketCount];
+        ForkJoinPool.commonPool().invoke(new RangeTask(new Step() {
+            @Override
+            void compute(int bucketIdx) {
+                List<Bucket<?, ?>> buckets = new ArrayList<Bucket<?, ?>>(1);
+                fill(entries, hashes, order, partitionStart[bucketIdx], partitionStart[bucketIdx + 1], depth,
+                        bucketIdx, buckets);
+                built[bucketIdx] = buckets;
+            }
+        }, 0, bucketCount));
+
+        publish(built, depth);
+    }
+
+    /**
+     * Fill order[from, to) into a bucket of the given depth, or into deeper buckets if the keys do not fit.
+     */
+    @SuppressWarnings("unchecked")
+    private void fill(Object[] entries, long[] hashes, int[] order, int from, int to, int depth, int bucketIdx,
+                      List<Bucket<?, ?>> out) {
+        Bucket<K, V> bucket = directory.getBucketFactory().newBucket(depth, bucketIdx,
+                directory.getBucketFactory().capacityFor(depth, to - from));
+        int count = 0;
+        boolean overflow = false;
+        // walk backwards, so the last occurrence of a key is the one kept
+        for (int i = to - 1; i >= from; i--) {
+            int idx = order[i];
+            Map.Entry<K, V> entry = (Map.Entry<K, V>) entries[idx];
+            if (bucket.getEntry(entry.getKey(), hashes[idx]) != null) {
+                continue;
+            }
+            if (!bucket.hasMoreSpace()) {
+                overflow = true;
+                break;
+            }
+            bucket.transferEntry(new HashEntry<K, V>(entry.getKey(), entry.getValue(), hashes[idx]), false);
+            count++;
+        }
+
+        if (!overflow) {
+            totalEntryCount.addAndGet(count);
+            out.add(bucket);
+            return;
+        }
+
+        if (1 << (depth + 1) > ConcurrentElasticHashMapImpl.MAX_BUCKET_COUNT) {
+            throw new IllegalStateException("directory size limit exceeded");
+        }
+
+        /** Partition the range by the next hash bit, keeping the input order, and fill the two halves */
+        int[] upper = new int[to - from];
+        int lowerEnd = from;
+        int upperCount = 0;
+        int bit = 1 << depth;
+        for (int i = from; i < to; i++) {
+            if ((hashes[order[i]] & bit) == 0) {
+                order[lowerEnd++] = order[i];
+            } else {
+                upper[upperCount++] = order[i];
+            }
+        }
+        System.arraycopy(upper, 0, order, lowerEnd, upperCount);
+        fill(entries, hashes, order, from, lowerEnd, depth + 1, bucketIdx, out);
+        fill(entries, hashes, order, lowerEnd, to, depth + 1, bucketIdx | bit, out);
+    }
+
+    /**
+     * Wire the directory array at the deepest local depth and publish it.
+     */
+    private void publish(List<Bucket<?, ?>>[] built, int depth) {
+        int globalDepth = depth;
+        int bucketCount = 0;
+        for (List<Bucket<?, ?>> buckets : built) {
+            for (Bucket<?, ?> bucket : buckets) {
+                globalDepth = Math.max(globalDepth, bucket.getLocalDepth());
+                bucketCount++;
+            }
+        }
+
+        int dirSize = 1 << globalDepth;
+        AtomicReferenceArray<Bucket<?, ?>> bucketsArray = new AtomicReferenceArray<Bucket<?, ?>>(dirSize);
+        for (List<Bucket<?, ?>> buckets : built) {
+            for (Bucket<?, ?> bucket : buckets) {
+                final int step = 1 << bucket.getLocalDepth();
+                for (int i = bucket.getBucketIdx(); i < dirSize; i += step) {
+                    bucketsArray.set(i, bucket);
+                }
+            }
+        }
+        directory.publish(bucketsArray, bucketCount);
+    }
+
+    /**
+     * The work done for one index of a RangeTask.
+     */
+    abstract static class Step {
+        abstract void compute(int i);
+    }
+
+    /**
+     * Runs the step for every index in [from, to), forking halves down to single indexes.
+     */
+    static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Step step;
+        private final int from;
+        private final int to;
+
+        RangeTask(Step step, int from, int to) {
+            this.step = step;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    step.compute(from);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(step, from, mid), new RangeTask(step, mid, to));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The implementation of the counter map.  It uses the same Directory as ConcurrentElasticHashMapImpl, built of
+ * CounterBucketImpl buckets which keep the counts inline.
+ *
+ * Created by Weifeng Bao on 1/23/2016.
+ */
+public class ConcurrentElasticCounterMapImpl<K> implements MetricsSupport {
+
+    private static final String ILLEGAL_ARGUMENT_EXPECTION_MSG = "The key can not be null.";
+
+    /** reference to Directory */
+    private final Directory directory;
+    /** metric: total splitted time */
+    private final AtomicInteger totalSplitCount;
+    /** metric: total number of entries */
+    private final AtomicLong totalEntryCount;
+
+    /**
+     * Creates a counter map with default configuration parameters.
+     */
+    public ConcurrentElasticCounterMapImpl() {
+        this(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE, ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Constructor create a counter map
+     *
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     */
+    public ConcurrentElasticCounterMapImpl(int bucketSize, int initBucketCount, float bucketLoadFactor) {
+        totalSplitCount = new AtomicInteger(0);
+        totalEntryCount = new AtomicLong(0L);
+        // the bucketCount equals to directory size, it needs to be a power 2 value.
+        int bucketCount = 1;
+        while (bucketCount < initBucketCount) {
+            bucketCount <<= 1;
+        }
+        bucketLoadFactor = Math.min(bucketLoadFactor, ConcurrentElasticHashMapImpl.MAX_BUCKET_LOADFACTOR);
+        directory = DirectoryFactory.create(bucketCount, bucketSize, bucketLoadFactor, totalEntryCount, totalSplitCount,
+                new Expiration<K, Long>(), new Eviction<K, Long>(), BucketLayout.COUNTERS);
+    }
+
+    /**
+     * Add delta to the count of the key, an absent key counts as 0.
+     *
+     * @param key
+     * @param delta
+     * @return the count after the add
+     */
+    public long addAndGet(K key, long delta) {
+        long[] result = new long[1];
+        add(key, delta, result);
+        return result[0];
+    }
+
+    /**
+     * Add delta to the count of the key without reading the count back, the cheapest update of a hot key.
+     *
+     * @param key
+     * @param delta
+     */
+    public void add(K key, long delta) {
+        add(key, delta, null);
+    }
+
+    /**
+     * The implementation of the add logic.  A present key is added to without locking, the lock is taken to insert an
+     * absent key, or when the bucket asks for it.
+     */
+    private void add(K key, long delta, long[] result) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        while (true) {
+            CounterBucketImpl<K> bucket = (CounterBucketImpl<K>) directory.<K, Long>getBucket(hashCode);
+            if (bucket.add(key, hashCode, delta, result)) {
+                return;
+            }
+
+            bucket.lock();
+            try {
+                if (bucket.isInvalid()) {
+                    continue;
+                }
+                if (bucket.add(key, hashCode, delta, result)) {
+                    return;
+                }
+                // no space for the key, make room and retry against the new buckets
+                bucket.split(false);
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read the count of the key.
+     *
+     * @param key
+     * @return the count, 0 if the key is absent
+     */
+    public long get(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        Bucket<K, Long> bucket = directory.getBucket(hashCode);
+        Long count = bucket.get(key, hashCode);
+        return (count == null) ? 0L : count;
+    }
+
+    /**
+     * Read the count of the key and reset it to 0.  Every add is either in the returned count or stays in the map,
+     * none is lost.  The key stays in the map.
+     *
+     * @param key
+     * @return the count, 0 if the key is absent
+     */
+    public long sumThenReset(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        long[] result = new long[1];
+        while (true) {
+            CounterBucketImpl<K> bucket = (CounterBucketImpl<K>) directory.<K, Long>getBucket(hashCode);
+            if (bucket.sumThenReset(key, hashCode, result)) {
+                return result[0];
+            }
+
+            bucket.lock();
+            try {
+                if (!bucket.isInvalid() && bucket.sumThenReset(key, hashCode, result)) {
+                    return result[0];
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @param key
+     * @return the count of the key, 0 if the key is absent
+     */
+    public long remove(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        while (true) {
+            Bucket<K, Long> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (!bucket.isInvalid()) {
+                    Long count = bucket.remove(key, hashCode, null);
+                    return (count == null) ? 0L : count;
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Copy the keys and their counts.  The copy does not lock and is weakly consistent: every key present before the
+     * call is included, the count of a key is a value it had during the call.
+     *
+     * @return a new map
+     */
+    @SuppressWarnings("unchecked")
+    public Map<K, Long> snapshot() {
+        /**
+         * A bucket split after the directory array was read still holds all its keys, with the counts of the time of
+         * the split, so visiting the canonical slot of every bucket of the array covers every key once.
+         */
+        AtomicReferenceArray<Bucket<?, ?>> buckets = directory.get();
+        Map<K, Long> result = new HashMap<K, Long>(Math.max(16, (int) (size() / 0.75f) + 1));
+        List<HashEntry<K, Long>> entries = new ArrayList<HashEntry<K, Long>>();
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket<K, Long> bucket = (Bucket<K, Long>) buckets.get(i);
+            if (bucket.getBucketIdx() != i) {
+                continue;
+            }
+            bucket.collectEntries(entries);
+            for (HashEntry<K, Long> entry : entries) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+            entries.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Return the number of the keys in the map
+     * @return
+     */
+    public int size() {
+        return (int) Math.min(totalEntryCount.get(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the number of the keys, which may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
+        return totalEntryCount.get();
+    }
+
+    @Override
+    public int totalSplits() {
+        return totalSplitCount.get();
+    }
+
+    @Override
+    public int getBucketCount() {
+        return directory.getBucketCount();
+    }
+
+    /**
+     * Counter maps are not bounded.
+     */
+    @Override
+    public long totalEvictions() {
+        return 0L;
+    }
+
+    @Override
+    public int getMaxBucketCountDifference() {
+        return BucketMetrics.maxBucketCountDifference(directory);
+    }
+
+    @Override
+    public long getSlotCount() {
+        return BucketMetrics.slotCount(directory);
+    }
+
+    @Override
+    public int getMaxBucketOverload() {
+        return BucketMetrics.maxBucketOverload(directory);
+    }
+}
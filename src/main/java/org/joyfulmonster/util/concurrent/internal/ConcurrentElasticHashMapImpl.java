@@ -1,6 +1,31 @@
 package org.joyfulmonster.util.concurrent.internal;
 
+import org.joyfulmonster.util.concurrent.Codec;
+import org.joyfulmonster.util.concurrent.Weigher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -11,12 +36,24 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
 
     private static final String ILLEGAL_ARGUMENT_EXPECTION_MSG = "The key or value can not be null.";
+    private static final String ILLEGAL_TTL_MSG = "The time to live must be positive.";
+    private static final String ILLEGAL_BOUND_MSG = "The maximum size or weight must be positive.";
+    private static final String ILLEGAL_LOADER_MSG = "The loader or executor can not be null.";
+    private static final String ILLEGAL_CODEC_MSG = "The channel or codec can not be null.";
+    private static final String COMPACT_KEYS_MSG = "Not supported by a map with compact String keys.";
+    private static final String ILLEGAL_CAPACITY_MSG = "The expected size can not be negative.";
+    private static final String ILLEGAL_SHARD_COUNT_MSG = "The shard count must be positive.";
+    private static final String ILLEGAL_UPDATE_MSG = "The update may only map the given keys to non null values.";
+    private static final String ILLEGAL_BATCH_MSG = "Too many keys of the update fall into one bucket.";
+    private static final String NOT_TIERED_MSG = "Not supported by a map without a spill file.";
+    private static final String ILLEGAL_TRACE_MSG = "The trace file can not be null.";
+    private static final String TRACING_MSG = "The map is already recording a trace.";
 
     /**
      * Default Configuration Parameters to this map.
      */
     /** The default bucket size, it may need to be tuned based on machine architecture */
-    public static final int DEFAULT_BUCKET_SIZE = 8092; // 8K block
+    public static final int DEFAULT_BUCKET_SIZE = 8192; // 8K slots
     /** The default intiail bucket count */
     public static final int DEFAULT_BUCKET_COUNT = 8;
     /** the default load factor for bucket */
@@ -28,15 +65,36 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
     public static final int MIN_BUCKET_COUNT = 2;
     /** caluate the max bucket count */
     public static final int MAX_BUCKET_COUNT = MAX_CAPACITY / MIN_BUCKET_COUNT;
+    /** the max number of shards of a sharded map */
+    public static final int MAX_SHARD_COUNT = 1 << 16;
     /** The max loadfactor for a bucket */
     public static final float MAX_BUCKET_LOADFACTOR = 0.95f;
+    /**
+     * The share of the load threshold a pre-sized bucket is expected to fill on average.  Keys do not spread evenly,
+     * the headroom keeps the fuller buckets from splitting.
+     */
+    private static final float PRESIZE_FILL = 0.875f;
 
     /** reference to Directory */
-    private final Directory directory;
+    private final BucketRouter directory;
     /** metric: total splitted time */
     private final AtomicInteger totalSplitCount;
     /** metric: total number of entries */
-    private final AtomicInteger totalEntryCount;
+    private final AtomicLong totalEntryCount;
+    /** expiration policy and background reclaimer */
+    private final Expiration<K, V> expiration;
+    /** bound of the map */
+    private final Eviction<K, V> eviction;
+    /** the number of entries a bucket can hold before it splits */
+    private final int loadThreshold;
+    /** the keys are Strings kept as UTF-8 bytes by Utf8StringBucketImpl */
+    private final boolean compactStringKeys;
+    /** inserts claim empty slots with a CAS instead of locking the bucket */
+    private final boolean lockFreeInserts;
+    /** the file the cold buckets are spilled to, null unless the map is tiered */
+    private final SpillFile<K, V> spillFile;
+    /** records the operations while a trace is being recorded, null otherwise */
+    private volatile TraceRecorder recorder;
 
     /**
      * Creates a map with default configuration parameters.
@@ -45,6 +103,16 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         this(DEFAULT_BUCKET_SIZE, DEFAULT_BUCKET_COUNT, DEFAULT_BUKCET_LOAD_FACTOR);
     }
 
+    /**
+     * Creates a map with default configuration parameters, pre-sized to hold expectedSize entries without splitting.
+     *
+     * @param expectedSize  the number of entries the map is expected to hold
+     */
+    public ConcurrentElasticHashMapImpl(int expectedSize) {
+        this(DEFAULT_BUCKET_SIZE, bucketCountFor(expectedSize, DEFAULT_BUCKET_SIZE, DEFAULT_BUKCET_LOAD_FACTOR),
+                DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
     /**
      * Constructor create a ConcurrentElasticHashMap
      *
@@ -53,13 +121,237 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
      * @param bucketLoadFactor    The bucket load factor.
      */
     public ConcurrentElasticHashMapImpl(int bucketSize, int initBucketCount, float bucketLoadFactor) {
+        this(bucketSize, initBucketCount, bucketLoadFactor, BucketLayout.ENTRIES);
+    }
+
+    /**
+     * Creates a map of String keys whose buckets keep the keys as UTF-8 bytes instead of String objects.  The map
+     * holds plain mappings only: expiration, bounds and loading are not supported.
+     *
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     * @return
+     */
+    public static <V> ConcurrentElasticHashMapImpl<String, V> withCompactStringKeys(int bucketSize, int initBucketCount,
+                                                                                    float bucketLoadFactor) {
+        return new ConcurrentElasticHashMapImpl<String, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.COMPACT_STRING_KEYS);
+    }
+
+    /**
+     * Creates a map whose puts insert absent keys without locking the bucket: the insert claims the empty slot at the
+     * end of the probe chain with a CAS.  The lock is still taken to split, to remove, to evict and to replace
+     * expired entries.  Removed keys leave TOMBSTONEs that are only cleared when the bucket is split or rebuilt.
+     *
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> withLockFreeInserts(int bucketSize, int initBucketCount,
+                                                                              float bucketLoadFactor) {
+        return new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.LOCK_FREE_INSERTS);
+    }
+
+    /**
+     * Creates a map whose buckets allocate their slots on the first write.  A map of a single bucket starts as a few
+     * objects, its bucket takes a handful of slots on the first put and grows in place up to bucketSize before the
+     * directory splits, which suits many small maps.
+     *
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> lazy(int bucketSize, int initBucketCount,
+                                                               float bucketLoadFactor) {
+        return new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.ENTRIES, true);
+    }
+
+    /**
+     * Creates a map that tunes the size and the load factor of its buckets to the workload, see BucketTuner.  The
+     * buckets count the lock acquisitions that waited and the slots their inserts probed, and every depth of the
+     * directory gets the size and load factor that the buckets of the depth above called for: smaller buckets under
+     * contention, larger ones otherwise, a lower load factor when the probes get long.
+     *
+     * @param bucketSize        The number of entries in a bucket until the map has tuned it.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor until the map has tuned it.
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> adaptive(int bucketSize, int initBucketCount,
+                                                                   float bucketLoadFactor) {
+        return new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.ADAPTIVE);
+    }
+
+    /**
+     * Creates a map whose hash space is split over shardCount independent directories, see ShardedDirectory.  Every
+     * shard has its own lock and depth, so splits of different shards run in parallel and doubling a shard only
+     * stalls the splits of that shard.
+     *
+     * @param shardCount        The number of shards, rounded up to a power of 2.
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated over all the shards.
+     * @param bucketLoadFactor    The bucket load factor.
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> sharded(int shardCount, int bucketSize, int initBucketCount,
+                                                                  float bucketLoadFactor) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException(ILLEGAL_SHARD_COUNT_MSG);
+        }
+        return new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.ENTRIES, false, Math.min(shardCount, MAX_SHARD_COUNT), null);
+    }
+
+    /**
+     * Creates a map whose cold buckets can be moved off the heap, see spillColdBuckets().  The spilled buckets are
+     * written to a memory mapped file with the codecs, and leave a stub with a Bloom filter of their keys in the
+     * directory.  A read that the filter rules out returns right away, any other access pages the bucket back in.
+     *
+     * @param file  the spill file, it is truncated and the map owns it from now on
+     * @param keyCodec
+     * @param valueCodec
+     * @param bucketSize        The number of entries in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     * @return
+     * @throws IOException if the file can not be opened
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> tiered(File file, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                                 int bucketSize, int initBucketCount,
+                                                                 float bucketLoadFactor) throws IOException {
+        if (file == null || keyCodec == null || valueCodec == null) {
+            throw new IllegalArgumentException(ILLEGAL_CODEC_MSG);
+        }
+        return new ConcurrentElasticHashMapImpl<K, V>(bucketSize, initBucketCount, bucketLoadFactor,
+                BucketLayout.ENTRIES, false, 1, new SpillFile<K, V>(file, keyCodec, valueCodec));
+    }
+
+    private ConcurrentElasticHashMapImpl(int bucketSize, int initBucketCount, float bucketLoadFactor,
+                                         BucketLayout layout) {
+        this(bucketSize, initBucketCount, bucketLoadFactor, layout, false);
+    }
+
+    private ConcurrentElasticHashMapImpl(int bucketSize, int initBucketCount, float bucketLoadFactor,
+                                         BucketLayout layout, boolean lazy) {
+        this(bucketSize, initBucketCount, bucketLoadFactor, layout, lazy, 1, null);
+    }
+
+    private ConcurrentElasticHashMapImpl(int bucketSize, int initBucketCount, float bucketLoadFactor,
+                                         BucketLayout layout, boolean lazy, int shardCount, SpillFile<K, V> spillFile) {
+        this.compactStringKeys = layout == BucketLayout.COMPACT_STRING_KEYS;
+        this.lockFreeInserts = layout == BucketLayout.LOCK_FREE_INSERTS;
+        this.spillFile = spillFile;
+        shardCount = lowestUpperBound(shardCount);
         totalSplitCount = new AtomicInteger(0);
-        totalEntryCount = new AtomicInteger(0);
+        totalEntryCount = new AtomicLong(0L);
+        expiration = new Expiration<K, V>();
+        eviction = new Eviction<K, V>(Integer.numberOfTrailingZeros(shardCount));
         // the bucketCount equals to directory size, it needs to be a power 2 value.
         initBucketCount = lowestUpperBound(initBucketCount);
         // if the loadfactor is larger than 1, there maybe some unexpected behavior, regulate the value here.
         bucketLoadFactor = (bucketLoadFactor < MAX_BUCKET_LOADFACTOR) ? bucketLoadFactor : MAX_BUCKET_LOADFACTOR;
-        directory = DirectoryFactory.create(initBucketCount, bucketSize, bucketLoadFactor, totalEntryCount, totalSplitCount);
+        loadThreshold = (int) (((float) bucketSize) * bucketLoadFactor);
+        if (shardCount > 1) {
+            directory = DirectoryFactory.createSharded(shardCount, Math.max(1, initBucketCount / shardCount),
+                    bucketSize, bucketLoadFactor, totalEntryCount, totalSplitCount, expiration, eviction, layout);
+        } else {
+            directory = DirectoryFactory.create(initBucketCount, bucketSize, bucketLoadFactor, totalEntryCount,
+                    totalSplitCount, expiration, eviction, layout, lazy);
+        }
+        expiration.directory(directory);
+    }
+
+    /**
+     * Creates a map with default configuration parameters holding the entries, see bulkLoad().
+     */
+    private ConcurrentElasticHashMapImpl(Object[] entries) {
+        compactStringKeys = false;
+        lockFreeInserts = false;
+        spillFile = null;
+        totalSplitCount = new AtomicInteger(0);
+        totalEntryCount = new AtomicLong(0L);
+        expiration = new Expiration<K, V>();
+        eviction = new Eviction<K, V>();
+        loadThreshold = (int) (((float) DEFAULT_BUCKET_SIZE) * DEFAULT_BUKCET_LOAD_FACTOR);
+        Directory unpopulated = DirectoryFactory.createUnpopulated(DEFAULT_BUCKET_SIZE, DEFAULT_BUKCET_LOAD_FACTOR,
+                totalEntryCount, totalSplitCount, expiration, eviction);
+        directory = unpopulated;
+        expiration.directory(directory);
+        new BulkLoader<K, V>(unpopulated, totalEntryCount)
+                .load(entries, bucketCountFor(entries.length, loadThreshold));
+    }
+
+    /**
+     * Build a map from a known set of entries.  The buckets are built in parallel on the common ForkJoinPool without
+     * taking locks, and published as a whole, see BulkLoader.  The last entry of a duplicated key wins.
+     *
+     * @param entries  neither the key nor the value may be null
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> bulkLoad(
+            Collection<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        if (entries == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return new ConcurrentElasticHashMapImpl<K, V>(entries.toArray());
+    }
+
+    /**
+     * Build a map from a stream of entries, see bulkLoad(Collection).  A parallel stream is drained in parallel.
+     *
+     * @param entries  neither the key nor the value may be null
+     * @return
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> bulkLoad(
+            Stream<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        if (entries == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return new ConcurrentElasticHashMapImpl<K, V>(entries.toArray());
+    }
+
+    /**
+     * Write the entries of the map to the channel, see MapSerializer for the format.  Writing is consistent per
+     * bucket, concurrent writes to other buckets may or may not be included.
+     *
+     * @param channel
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel, Codec<? super K> keyCodec, Codec<? super V> valueCodec)
+            throws IOException {
+        if (channel == null || keyCodec == null || valueCodec == null) {
+            throw new IllegalArgumentException(ILLEGAL_CODEC_MSG);
+        }
+        MapSerializer.write(directory, size(), channel, keyCodec, valueCodec);
+    }
+
+    /**
+     * Read a map written by writeTo(), pre-sized for the number of entries that were written.
+     *
+     * @param channel
+     * @param keyCodec
+     * @param valueCodec
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> ConcurrentElasticHashMapImpl<K, V> readFrom(ReadableByteChannel channel,
+                                                                     Codec<? extends K> keyCodec,
+                                                                     Codec<? extends V> valueCodec) throws IOException {
+        if (channel == null || keyCodec == null || valueCodec == null) {
+            throw new IllegalArgumentException(ILLEGAL_CODEC_MSG);
+        }
+        MapSerializer reader = MapSerializer.open(channel);
+        ConcurrentElasticHashMapImpl<K, V> result = new ConcurrentElasticHashMapImpl<K, V>(reader.getExpectedSize());
+        reader.readInto(channel, result, keyCodec, valueCodec);
+        return result;
     }
 
     /**
@@ -72,7 +364,23 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null || value == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        return put(key, value, true);
+        return put(key, value, true, Expiration.POLICY_TTL);
+    }
+
+    /**
+     * Insert key/value pair that expires after ttl.  Override the value if key entry already existed.
+     * @param key
+     * @param value
+     * @param ttl
+     * @param unit
+     * @return
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        requireFullEntries();
+        if (key == null || value == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return put(key, value, true, toTtlNanos(ttl, unit));
     }
 
     /**
@@ -85,7 +393,44 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null || value == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        return put(key, value, false);
+        return put(key, value, false, Expiration.POLICY_TTL);
+    }
+
+    /**
+     * Add the key that expires after ttl if key not existing.  An expired entry counts as not existing.
+     * @param key
+     * @param value
+     * @param ttl
+     * @param unit
+     * @return
+     */
+    public V putIfAbsent(K key, V value, long ttl, TimeUnit unit) {
+        requireFullEntries();
+        if (key == null || value == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        return put(key, value, false, toTtlNanos(ttl, unit));
+    }
+
+    /**
+     * Entries written afterwards without their own time to live expire the given duration after the write.
+     * @param duration
+     * @param unit
+     */
+    public void expireAfterWrite(long duration, TimeUnit unit) {
+        requireFullEntries();
+        expiration.expireAfterWrite(toTtlNanos(duration, unit));
+    }
+
+    /**
+     * Entries written afterwards without their own time to live expire the given duration after the last read or
+     * write.
+     * @param duration
+     * @param unit
+     */
+    public void expireAfterAccess(long duration, TimeUnit unit) {
+        requireFullEntries();
+        expiration.expireAfterAccess(toTtlNanos(duration, unit));
     }
 
     /**
@@ -94,15 +439,33 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
      * @param key
      * @param value
      * @param replaceIfPresent
+     * @param ttlNanos
      * @return
      */
-    private V put(K key, V value, boolean replaceIfPresent) {
-        int hashCode = HashStrategy.getInstance().hash(key.hashCode());
+    @SuppressWarnings("unchecked")
+    private V put(K key, V value, boolean replaceIfPresent, long ttlNanos) {
+        long hashCode = HashStrategy.getInstance().hash(key);
+        trace(replaceIfPresent ? TraceRecorder.PUT : TraceRecorder.PUT_IF_ABSENT, hashCode);
+
+        if (lockFreeInserts) {
+            // both the overwrite and the insert are a CAS on a slot, unless the bucket asks for the lock
+            Bucket<K, V> bucket = directory.getBucket(hashCode);
+            Object result = bucket.tryPut(key, value, hashCode, replaceIfPresent, ttlNanos);
+            if (result != Bucket.RETRY) {
+                return (V) result;
+            }
+        } else if (replaceIfPresent) {
+            // overwriting a present key only swaps its entry, which needs no bucket lock
+            V result = replace(key, hashCode, null, value, ttlNanos);
+            if (result != null) {
+                return result;
+            }
+        }
 
         while (true) {
             Bucket<K, V> bucket = directory.getBucket(hashCode);
             bucket.lock();
-            if (bucket.isInvalid()) {
+            if (!bucket.prepareWrite()) {
                 /**
                  * it means the bucket is being splited, so it is not allowed to write to the bucket any more.
                  * unlock the bucket and ask Directory to give back the new Bucket after split is done.
@@ -116,7 +479,7 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
                     boolean putSuccess;
                     if (bucket.hasMoreSpace()) {
                         try {
-                            result = (V) bucket.put(key, value, hashCode, replaceIfPresent);
+                            result = bucket.put(key, value, hashCode, replaceIfPresent, ttlNanos);
                             putSuccess = true;
                         } catch (BucketOverflowError soe) {
                             putSuccess = false;
@@ -127,7 +490,7 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
 
                     if (!putSuccess) {
                         // the normal put failed, so go ahead split the bucket and put the entry in.
-                        result = bucket.splitAndPut(key, value, hashCode, replaceIfPresent);
+                        result = bucket.splitAndPut(key, value, hashCode, replaceIfPresent, ttlNanos);
                     }
                     return result;
                 } finally {
@@ -147,12 +510,13 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null || value == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        int hashValue = HashStrategy.getInstance().hash(key.hashCode());
+        long hashValue = HashStrategy.getInstance().hash(key);
+        trace(TraceRecorder.REMOVE, hashValue);
         while (true) {
-            Bucket bucket = directory.getBucket(hashValue);
+            Bucket<K, V> bucket = directory.getBucket(hashValue);
             bucket.lock();
             try {
-                if (!bucket.isInvalid()) {
+                if (bucket.prepareWrite()) {
                     /**
                      * it means the bucket is being splited, so it is not allowed to write to the bucket any more.
                      * unlock the bucket and ask Directory to give back the new Bucket after split is done.
@@ -166,32 +530,19 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
     }
 
     /**
-     * Replace the key entry with value
+     * Replace the key entry with value.  Nothing is written if the key is absent.
      *
      * @param key
      * @param value
-     * @return
+     * @return the replaced value, null if the key is absent
      */
     public V replace(K key, V value) {
         if (key == null || value == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        int hashValue = HashStrategy.getInstance().hash(key.hashCode());
-        while (true) {
-            Bucket bucket = directory.getBucket(hashValue);
-            bucket.lock();
-            try {
-                if (!bucket.isInvalid()) {
-                    /**
-                     * it means the bucket is being splited, so it is not allowed to write to the bucket any more.
-                     * unlock the bucket and ask Directory to give back the new Bucket after split is done.
-                     */
-                    return (V) bucket.replace(key, hashValue, null, value);
-                }
-            } finally {
-                bucket.unlock();
-            }
-        }
+        long hashValue = HashStrategy.getInstance().hash(key);
+        trace(TraceRecorder.REPLACE, hashValue);
+        return replace(key, hashValue, null, value, Expiration.POLICY_TTL);
     }
 
     /**
@@ -206,13 +557,38 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null || oldValue == null || newValue == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        int hashValue = HashStrategy.getInstance().hash(key.hashCode());
+        long hashValue = HashStrategy.getInstance().hash(key);
+        trace(TraceRecorder.REPLACE, hashValue);
+        return replace(key, hashValue, oldValue, newValue, Expiration.POLICY_TTL) != null;
+    }
+
+    /**
+     * The implementation of the replace logic.  The bucket swaps the entry with a CAS without locking, the lock is
+     * only taken when the bucket asks for it, for example while the bucket is being split.
+     *
+     * @param key
+     * @param hashCode
+     * @param oldValue  null to replace any value
+     * @param newValue
+     * @param ttlNanos
+     * @return the replaced value, null if nothing was replaced
+     */
+    @SuppressWarnings("unchecked")
+    private V replace(K key, long hashCode, V oldValue, V newValue, long ttlNanos) {
         while (true) {
-            Bucket bucket = directory.getBucket(hashValue);
+            Bucket<K, V> bucket = directory.getBucket(hashCode);
+            Object result = bucket.replace(key, hashCode, oldValue, newValue, ttlNanos);
+            if (result != Bucket.RETRY) {
+                return (V) result;
+            }
+
             bucket.lock();
             try {
-                if (!bucket.isInvalid()) {
-                    return bucket.replace(key, hashValue, oldValue, newValue) != null;
+                if (bucket.prepareWrite()) {
+                    result = bucket.replace(key, hashCode, oldValue, newValue, ttlNanos);
+                    if (result != Bucket.RETRY) {
+                        return (V) result;
+                    }
                 }
             } finally {
                 bucket.unlock();
@@ -229,11 +605,188 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        int hashCode = HashStrategy.getInstance().hash(key.hashCode());
+        long hashCode = HashStrategy.getInstance().hash(key);
+        trace(TraceRecorder.GET, hashCode);
         Bucket<K, V> bucket = directory.getBucket(hashCode);
         return bucket.get(key, hashCode);
     }
 
+    /**
+     * Get the key value, load it if the key is absent.  Concurrent loads of the same key share one call of the
+     * loader, the other threads wait for its result.  The loader must not load the same key again.
+     *
+     * @param key
+     * @param loader  returns the value of the key, null if the key should stay absent
+     * @return the value, null if the loader returned null
+     */
+    public V getOrLoad(K key, Function<? super K, ? extends V> loader) {
+        requireFullEntries();
+        if (key == null || loader == null) {
+            throw new IllegalArgumentException(ILLEGAL_LOADER_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        Bucket<K, V> bucket = directory.getBucket(hashCode);
+        V value = bucket.get(key, hashCode);
+        if (value != null) {
+            return value;
+        }
+
+        LoadingHashEntry<K, V> placeholder = new LoadingHashEntry<K, V>(key, hashCode);
+        HashEntry<K, V> entry = claim(placeholder);
+        if (entry == placeholder) {
+            // this thread owns the load
+            V loaded;
+            try {
+                loaded = loader.apply(key);
+            } catch (RuntimeException | Error e) {
+                finishLoad(placeholder, null, e);
+                throw e;
+            }
+            finishLoad(placeholder, loaded, null);
+            return loaded;
+        }
+        if (!(entry instanceof LoadingHashEntry)) {
+            return entry.getValue();
+        }
+
+        try {
+            return ((LoadingHashEntry<K, V>) entry).getFuture().join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous getOrLoad, the loader runs on the common ForkJoinPool.
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    public CompletableFuture<V> getOrLoadAsync(K key, Function<? super K, ? extends V> loader) {
+        return getOrLoadAsync(key, loader, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Asynchronous getOrLoad.  Concurrent loads of the same key share one call of the loader.
+     *
+     * @param key
+     * @param loader  returns the value of the key, null if the key should stay absent
+     * @param executor  runs the loader
+     * @return a future of the value, completed right away if the key is present
+     */
+    public CompletableFuture<V> getOrLoadAsync(final K key, final Function<? super K, ? extends V> loader,
+                                               Executor executor) {
+        requireFullEntries();
+        if (key == null || loader == null || executor == null) {
+            throw new IllegalArgumentException(ILLEGAL_LOADER_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        Bucket<K, V> bucket = directory.getBucket(hashCode);
+        V value = bucket.get(key, hashCode);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        final LoadingHashEntry<K, V> placeholder = new LoadingHashEntry<K, V>(key, hashCode);
+        HashEntry<K, V> entry = claim(placeholder);
+        if (entry == placeholder) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        V loaded;
+                        try {
+                            loaded = loader.apply(key);
+                        } catch (Throwable t) {
+                            finishLoad(placeholder, null, t);
+                            return;
+                        }
+                        finishLoad(placeholder, loaded, null);
+                    }
+                });
+            } catch (RuntimeException rejected) {
+                finishLoad(placeholder, null, rejected);
+            }
+        } else if (!(entry instanceof LoadingHashEntry)) {
+            return CompletableFuture.completedFuture(entry.getValue());
+        }
+
+        // hand out a dependent future, so a caller completing it can not affect the other waiters
+        return ((LoadingHashEntry<K, V>) entry).getFuture().thenApply(Function.<V>identity());
+    }
+
+    /**
+     * Find the entry of the key, or store the placeholder if the key is absent.
+     *
+     * @param placeholder
+     * @return  the placeholder if it was stored, otherwise the live entry or the placeholder of another load
+     */
+    private HashEntry<K, V> claim(LoadingHashEntry<K, V> placeholder) {
+        K key = placeholder.getKey();
+        long hashCode = placeholder.getKeyHashCode();
+        while (true) {
+            Bucket<K, V> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (!bucket.prepareWrite()) {
+                    continue;
+                }
+                HashEntry<K, V> entry = bucket.getEntry(key, hashCode);
+                if (entry != null) {
+                    return entry;
+                }
+                if (!bucket.hasMoreSpace()) {
+                    // make room and retry against the new buckets
+                    bucket.split(false);
+                    continue;
+                }
+                // a map that loads has full entries, the bucket passed prepareWrite() so it is not paged out
+                if (((LinearProbingBucketImpl<K, V>) bucket).putPlaceholder(placeholder)) {
+                    return placeholder;
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replace the placeholder by the loaded value, then wake up the waiters.
+     *
+     * @param placeholder
+     * @param value
+     * @param failure  the loader failure, null if the loader succeeded
+     */
+    private void finishLoad(LoadingHashEntry<K, V> placeholder, V value, Throwable failure) {
+        long hashCode = placeholder.getKeyHashCode();
+        while (true) {
+            Bucket<K, V> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (bucket.prepareWrite()) {
+                    ((LinearProbingBucketImpl<K, V>) bucket).completePlaceholder(placeholder,
+                            (failure == null) ? value : null);
+                    break;
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+
+        if (failure != null) {
+            placeholder.getFuture().completeExceptionally(failure);
+        } else {
+            placeholder.getFuture().complete(value);
+        }
+    }
+
     /**
      * Remove the key entry
      * @param key
@@ -243,13 +796,14 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         if (key == null) {
             throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
         }
-        int hashValue = HashStrategy.getInstance().hash(key.hashCode());
+        long hashValue = HashStrategy.getInstance().hash(key);
+        trace(TraceRecorder.REMOVE, hashValue);
         while (true) {
             Bucket<K, V> bucket = directory.getBucket(hashValue);
             bucket.lock();
             try {
-                if (!bucket.isInvalid()) {
-                    return (V) bucket.remove(key, hashValue, null);
+                if (bucket.prepareWrite()) {
+                    return bucket.remove(key, hashValue, null);
                 }
             } finally {
                 bucket.unlock();
@@ -257,11 +811,330 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
         }
     }
 
+    /**
+     * Read and write several keys as one atomic step.  The update gets a map of the present keys to their values, and
+     * may put or remove any of the keys in it.  The changes are written when the update returns, no other writer sees
+     * or interleaves with a part of them.  Lock free reads see every key either before or after the update.
+     *
+     * The buckets of the keys are locked in the order of their shard and bucket index, which every atomic update
+     * follows, so two updates never deadlock.  A bucket that can not be written once locked was split in the meantime,
+     * or copied away from a snapshot: all the locks are released and the buckets resolved again.  A bucket without
+     * room for the keys is split first, so no bucket is split or rebuilt while the update is written.
+     *
+     * @param keys  the keys the update may read and write, neither may be null
+     * @param update  called once, with the locks held: it should be short and must not use the map
+     */
+    public void atomically(Collection<? extends K> keys, Consumer<? super Map<K, V>> update) {
+        requireFullEntries();
+        if (keys == null || update == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        Set<K> keySet = new LinkedHashSet<K>(keys);
+        List<K> keyList = new ArrayList<K>(keySet);
+        int keyCount = keyList.size();
+        long[] hashes = new long[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            if (keyList.get(i) == null) {
+                throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+            }
+            hashes[i] = HashStrategy.getInstance().hash(keyList.get(i));
+        }
+        int shardMask = directory.getShards().length - 1;
+
+        /** the lock order of the bucket of every key: the shard, then the bucket index */
+        long[] order = new long[keyCount];
+        while (true) {
+            TreeMap<Long, Bucket<K, V>> buckets = new TreeMap<Long, Bucket<K, V>>();
+            TreeMap<Long, Integer> writes = new TreeMap<Long, Integer>();
+            boolean stale = false;
+            for (int i = 0; i < keyCount && !stale; i++) {
+                Bucket<K, V> bucket = directory.getBucket(hashes[i]);
+                order[i] = ((long) ((int) (hashes[i] >>> 32) & shardMask) << 32) | bucket.getBucketIdx();
+                Bucket<K, V> known = buckets.put(order[i], bucket);
+                // a split in between may show a bucket and its replacement under the same index
+                stale = known != null && known != bucket;
+                Integer count = writes.get(order[i]);
+                writes.put(order[i], (count == null) ? 1 : count + 1);
+            }
+            if (stale) {
+                continue;
+            }
+
+            List<LinearProbingBucketImpl<K, V>> locked = new ArrayList<LinearProbingBucketImpl<K, V>>();
+            try {
+                boolean ready = true;
+                for (Map.Entry<Long, Bucket<K, V>> e : buckets.entrySet()) {
+                    e.getValue().lock();
+                    if (!e.getValue().prepareWrite()) {
+                        e.getValue().unlock();
+                        ready = false;
+                        break;
+                    }
+                    // a bucket that can be written is never a spilled one
+                    LinearProbingBucketImpl<K, V> bucket = (LinearProbingBucketImpl<K, V>) e.getValue();
+                    int count = writes.get(e.getKey());
+                    if (!bucket.beginAtomic(count)) {
+                        // make room, then start over with the new buckets
+                        try {
+                            if (!bucket.makeRoomForAtomic(count) && count >= (loadThreshold >>> 2)) {
+                                throw new IllegalArgumentException(ILLEGAL_BATCH_MSG);
+                            }
+                        } finally {
+                            bucket.unlock();
+                        }
+                        ready = false;
+                        break;
+                    }
+                    locked.add(bucket);
+                }
+                if (!ready) {
+                    continue;
+                }
+
+                Map<K, V> current = new HashMap<K, V>();
+                for (int i = 0; i < keyCount; i++) {
+                    V value = buckets.get(order[i]).get(keyList.get(i), hashes[i]);
+                    if (value != null) {
+                        current.put(keyList.get(i), value);
+                    }
+                }
+                Map<K, V> updated = new HashMap<K, V>(current);
+                update.accept(updated);
+                for (Map.Entry<K, V> e : updated.entrySet()) {
+                    if (e.getKey() == null || e.getValue() == null || !keySet.contains(e.getKey())) {
+                        throw new IllegalArgumentException(ILLEGAL_UPDATE_MSG);
+                    }
+                }
+
+                for (int i = 0; i < keyCount; i++) {
+                    K key = keyList.get(i);
+                    V before = current.get(key);
+                    V after = updated.get(key);
+                    if (after == null) {
+                        if (before != null) {
+                            buckets.get(order[i]).remove(key, hashes[i], null);
+                        }
+                    } else if (after != before) {
+                        buckets.get(order[i]).put(key, after, hashes[i], true, Expiration.POLICY_TTL);
+                    }
+                }
+                return;
+            } finally {
+                for (int i = locked.size() - 1; i >= 0; i--) {
+                    LinearProbingBucketImpl<K, V> bucket = locked.get(i);
+                    try {
+                        bucket.endAtomic();
+                    } finally {
+                        bucket.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Put every entry of the other map into this one, bucket by bucket instead of entry by entry, see BucketMerger.
+     * The buckets of the other map are merged in parallel on the common ForkJoinPool.  Each bucket of the other map is
+     * read consistently, its entries land in this map in batches that are atomic per bucket.  The time to live of the
+     * entries of the other map is not carried over, they expire by the policy of this map.
+     *
+     * @param other  may be this map
+     */
+    public void putAllFrom(ConcurrentElasticHashMapImpl<? extends K, ? extends V> other) {
+        merge(other, null);
+    }
+
+    /**
+     * Merge every entry of the other map into this one like putAllFrom(), except for the keys present in both maps:
+     * their value becomes the combination of the two values, and the key is removed if the combination is null.
+     *
+     * @param other  may be this map
+     * @param combiner  gets the value of this map then the value of the other map.  It is called while a bucket of
+     *                  this map is locked: it should be short and must not use this map
+     */
+    public void join(ConcurrentElasticHashMapImpl<? extends K, ? extends V> other,
+                     BiFunction<? super V, ? super V, ? extends V> combiner) {
+        if (combiner == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        merge(other, combiner);
+    }
+
+    private void merge(ConcurrentElasticHashMapImpl<? extends K, ? extends V> other,
+                       BiFunction<? super V, ? super V, ? extends V> combiner) {
+        requireFullEntries();
+        if (other == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        other.requireFullEntries();
+        new BucketMerger<K, V>(directory, combiner).merge(other.directory);
+    }
+
+    /**
+     * A read only view of the map at one point in time, the writes that follow are not seen by it.
+     *
+     * The snapshot shares the buckets with the map instead of copying the entries: every bucket is locked in the order
+     * of atomically(), the snapshot epoch of the directory moves on, and the directory arrays are copied.  A bucket of
+     * an earlier epoch is never written again, the first writer that touches it afterwards replaces it by a copy in the
+     * map, see Bucket.prepareWrite().  Taking a snapshot costs the size of the directory, and the buckets that are
+     * only read are never copied.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public Map<K, V> snapshot() {
+        requireFullEntries();
+        Directory[] shards = directory.getShards();
+        while (true) {
+            List<Bucket<K, V>> locked = new ArrayList<Bucket<K, V>>();
+            try {
+                boolean ready = true;
+                for (int s = 0; s < shards.length && ready; s++) {
+                    AtomicReferenceArray<Bucket<?, ?>> buckets = shards[s].get();
+                    for (int i = 0; i < buckets.length(); i++) {
+                        Bucket<K, V> bucket = (Bucket<K, V>) buckets.get(i);
+                        // a bucket shows up in every slot of its prefix, lock it at its own index only
+                        if (bucket.getBucketIdx() != i) {
+                            continue;
+                        }
+                        bucket.lock();
+                        locked.add(bucket);
+                        if (bucket.isInvalid()) {
+                            // split in the meantime, the directory array of the shard is stale
+                            ready = false;
+                            break;
+                        }
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+
+                // no bucket can be split or written, the directories are frozen
+                Bucket<?, ?>[][] frozen = new Bucket<?, ?>[shards.length][];
+                for (int s = 0; s < shards.length; s++) {
+                    shards[s].nextEpoch();
+                    AtomicReferenceArray<Bucket<?, ?>> buckets = shards[s].get();
+                    frozen[s] = new Bucket<?, ?>[buckets.length()];
+                    for (int i = 0; i < frozen[s].length; i++) {
+                        frozen[s][i] = buckets.get(i);
+                    }
+                }
+                for (Bucket<K, V> bucket : locked) {
+                    // a spilled bucket is never written
+                    if (bucket instanceof LinearProbingBucketImpl) {
+                        ((LinearProbingBucketImpl<K, V>) bucket).awaitLockFreeWriters();
+                    }
+                }
+                return new MapSnapshot<K, V>(frozen);
+            } finally {
+                for (int i = locked.size() - 1; i >= 0; i--) {
+                    locked.get(i).unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Spill the buckets that were neither read nor written since the previous call to the spill file of a tiered map.
+     * Calling it periodically, e.g. from a ScheduledExecutorService, keeps the buckets accessed within a period on
+     * the heap.  The buckets holding expiring entries or loads in flight stay on the heap.
+     *
+     * @return the number of buckets spilled
+     * @throws IOException if the spill file can not be written, the bucket being spilled stays on the heap
+     */
+    @SuppressWarnings("unchecked")
+    public int spillColdBuckets() throws IOException {
+        if (spillFile == null) {
+            throw new UnsupportedOperationException(NOT_TIERED_MSG);
+        }
+        int spilled = 0;
+        for (Directory shard : directory.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> buckets = shard.get();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket<?, ?> bucket = buckets.get(i);
+                // a bucket shows up in every slot of its prefix, visit it at its own index only
+                if (bucket.getBucketIdx() != i || !(bucket instanceof LinearProbingBucketImpl)) {
+                    continue;
+                }
+                bucket.lock();
+                try {
+                    if (((LinearProbingBucketImpl<K, V>) bucket).spillIfCold(spillFile)) {
+                        spilled++;
+                    }
+                } finally {
+                    bucket.unlock();
+                }
+            }
+        }
+        return spilled;
+    }
+
+    /**
+     * Close the spill file of a tiered map, once the map is no longer used.  The spilled buckets stay readable, a get()
+     * still pages them in, but spillColdBuckets() fails on the next cold bucket.
+     *
+     * @throws IOException if the spill file can not be closed
+     */
+    public void closeSpillFile() throws IOException {
+        if (spillFile == null) {
+            throw new UnsupportedOperationException(NOT_TIERED_MSG);
+        }
+        spillFile.close();
+    }
+
+    /**
+     * Start recording get, put, putIfAbsent, replace and remove into a trace file, see TraceRecorder.  Every operation
+     * writes its type, the hash of its key and its time into a buffer of the calling thread, the buffers are written
+     * to the file as they fill up.  The keys and the values are not recorded.
+     *
+     * @param file  the trace file, it is truncated
+     * @throws IOException if the file can not be opened
+     */
+    public synchronized void startTrace(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException(ILLEGAL_TRACE_MSG);
+        }
+        if (recorder != null) {
+            throw new IllegalStateException(TRACING_MSG);
+        }
+        recorder = new TraceRecorder(file);
+    }
+
+    /**
+     * Stop recording the trace and flush the buffers of all the threads into the file.  Nothing happens if no trace
+     * is being recorded.
+     *
+     * @throws IOException if a part of the trace could not be written
+     */
+    public synchronized void stopTrace() throws IOException {
+        TraceRecorder current = recorder;
+        if (current != null) {
+            recorder = null;
+            current.close();
+        }
+    }
+
+    private void trace(int type, long hashCode) {
+        TraceRecorder current = recorder;
+        if (current != null) {
+            current.record(type, hashCode);
+        }
+    }
+
     /**
      * Return the number of the entries in the table
      * @return
      */
     public int size() {
+        return (int) Math.min(totalEntryCount.get(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the number of the entries, which may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
         return totalEntryCount.get();
     }
 
@@ -283,22 +1156,139 @@ public class ConcurrentElasticHashMapImpl<K, V> implements MetricsSupport {
 
     @Override
     public int getMaxBucketCountDifference() {
-        AtomicReferenceArray<Bucket> buckets = directory.get();
-        int min = Integer.MAX_VALUE;
-        int max = Integer.MIN_VALUE;
-        for (int i=0; i<buckets.length(); i++) {
-            Bucket bucket = buckets.get(i);
-            if (bucket instanceof BucketMetricsSupport) {
-                int entries = ((BucketMetricsSupport)bucket).getBucketEntries();
-                if (entries < min) {
-                    min = entries;
-                }
-                if (entries > max) {
-                    max = entries;
+        return BucketMetrics.maxBucketCountDifference(directory);
+    }
+
+    @Override
+    public long getSlotCount() {
+        return BucketMetrics.slotCount(directory);
+    }
+
+    @Override
+    public int getMaxBucketOverload() {
+        return BucketMetrics.maxBucketOverload(directory);
+    }
+
+    /**
+     * Bound the number of entries.  Buckets whose share of the bound is small enough evict with CLOCK instead of
+     * splitting.  Should be set before the map is populated.
+     * @param maximumSize
+     */
+    public void maximumSize(long maximumSize) {
+        requireFullEntries();
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException(ILLEGAL_BOUND_MSG);
+        }
+        eviction.maximumSize(maximumSize);
+    }
+
+    /**
+     * Bound the total weight of the entries.  A bucket over its share of the bound evicts with CLOCK.  Should be set
+     * before the map is populated.
+     * @param maximumWeight
+     * @param weigher
+     */
+    public void maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        requireFullEntries();
+        if (maximumWeight <= 0 || weigher == null) {
+            throw new IllegalArgumentException(ILLEGAL_BOUND_MSG);
+        }
+        eviction.maximumWeight(maximumWeight, weigher);
+    }
+
+    /**
+     * Return the metric that tracking how many entries were evicted
+     * @return
+     */
+    @Override
+    public long totalEvictions() {
+        return eviction.getEvictionCount();
+    }
+
+    /**
+     * Grow the map ahead of a bulk load, so that expectedSize entries fit without splitting.  Every bucket shallower
+     * than the depth needed is split right away, the buckets that are already deep enough are left alone.  A bounded
+     * map does not grow beyond the depth at which it starts evicting.
+     *
+     * @param expectedSize  the number of entries the map is expected to hold
+     */
+    public void ensureCapacity(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException(ILLEGAL_CAPACITY_MSG);
+        }
+        Directory[] shards = directory.getShards();
+        int bucketCount = Math.max(1, bucketCountFor(expectedSize, loadThreshold) / shards.length);
+        int targetDepth = Integer.numberOfTrailingZeros(bucketCount);
+
+        /**
+         * Walk every bucket index of the target depth in every shard.  The index is a valid hash prefix, so
+         * getBucket() of the shard finds the bucket that owns it at the current depth.
+         */
+        for (Directory shard : shards) {
+            for (int bucketIdx = 0; bucketIdx < bucketCount; bucketIdx++) {
+                while (true) {
+                    Bucket<K, V> bucket = shard.getBucket(bucketIdx);
+                    if (bucket.getLocalDepth() >= targetDepth) {
+                        break;
+                    }
+                    bucket.lock();
+                    try {
+                        // a spilled bucket is paged in, a bucket read by a snapshot is copied first
+                        if (!bucket.prepareWrite()) {
+                            continue;
+                        }
+                        if (!bucket.split(true)) {
+                            // evicting at this depth, stop growing this branch
+                            break;
+                        }
+                    } finally {
+                        bucket.unlock();
+                    }
                 }
             }
         }
-        return max-min;
+    }
+
+    /**
+     * The bucket count that holds expectedSize entries without splitting, using the default configuration.
+     */
+    private static int bucketCountFor(int expectedSize, int bucketSize, float bucketLoadFactor) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException(ILLEGAL_CAPACITY_MSG);
+        }
+        return bucketCountFor(expectedSize, (int) (((float) bucketSize) * bucketLoadFactor));
+    }
+
+    /**
+     * Round the number of buckets needed up to a power of 2, no smaller than MIN_BUCKET_COUNT.
+     */
+    private static int bucketCountFor(int expectedSize, int loadThreshold) {
+        long perBucket = Math.max(1L, (long) (loadThreshold * PRESIZE_FILL));
+        long needed = (expectedSize + perBucket - 1) / perBucket;
+        int bucketCount = MIN_BUCKET_COUNT;
+        while (bucketCount < needed && bucketCount < MAX_BUCKET_COUNT) {
+            bucketCount <<= 1;
+        }
+        return bucketCount;
+    }
+
+    /**
+     * Expiration, bounds and loading need HashEntry objects, which compact String key buckets do not keep.
+     */
+    private void requireFullEntries() {
+        if (compactStringKeys) {
+            throw new UnsupportedOperationException(COMPACT_KEYS_MSG);
+        }
+    }
+
+    /**
+     * Validate a time to live and convert it to nanoseconds.
+     */
+    private static long toTtlNanos(long ttl, TimeUnit unit) {
+        if (ttl <= 0 || unit == null) {
+            throw new IllegalArgumentException(ILLEGAL_TTL_MSG);
+        }
+        return Math.min(unit.toNanos(ttl), Expiration.MAX_TTL_NANOS);
     }
 
     /**
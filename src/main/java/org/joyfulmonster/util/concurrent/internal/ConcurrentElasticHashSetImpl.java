@@ -0,0 +1,331 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The implementation of the set.  It uses the same Directory as ConcurrentElasticHashMapImpl, built of
+ * KeySetBucketImpl buckets which keep the keys only.
+ *
+ * Created by Weifeng Bao on 1/24/2016.
+ */
+public class ConcurrentElasticHashSetImpl<K> implements MetricsSupport {
+
+    private static final String ILLEGAL_ARGUMENT_EXPECTION_MSG = "The key can not be null.";
+
+    /** reference to Directory */
+    private final Directory directory;
+    /** metric: total splitted time */
+    private final AtomicInteger totalSplitCount;
+    /** metric: total number of entries */
+    private final AtomicLong totalEntryCount;
+
+    /**
+     * Creates a set with default configuration parameters.
+     */
+    public ConcurrentElasticHashSetImpl() {
+        this(ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE, ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT,
+                ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR);
+    }
+
+    /**
+     * Constructor create a set
+     *
+     * @param bucketSize        The number of keys in a bucket.
+     * @param initBucketCount  The initial buckets to be allocated, it maps to the depth of Directory.
+     * @param bucketLoadFactor    The bucket load factor.
+     */
+    public ConcurrentElasticHashSetImpl(int bucketSize, int initBucketCount, float bucketLoadFactor) {
+        totalSplitCount = new AtomicInteger(0);
+        totalEntryCount = new AtomicLong(0L);
+        // the bucketCount equals to directory size, it needs to be a power 2 value.
+        int bucketCount = 1;
+        while (bucketCount < initBucketCount) {
+            bucketCount <<= 1;
+        }
+        bucketLoadFactor = Math.min(bucketLoadFactor, ConcurrentElasticHashMapImpl.MAX_BUCKET_LOADFACTOR);
+        directory = DirectoryFactory.create(bucketCount, bucketSize, bucketLoadFactor, totalEntryCount, totalSplitCount,
+                new Expiration<K, Boolean>(), new Eviction<K, Boolean>(), BucketLayout.KEYS);
+    }
+
+    /**
+     * Add the key.
+     *
+     * @param key
+     * @return true if the key was absent
+     */
+    public boolean add(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        while (true) {
+            Bucket<K, Boolean> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (!bucket.isInvalid()) {
+                    return add(bucket, key, hashCode);
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Add the key to the locked bucket, split the bucket if the key does not fit.
+     */
+    private boolean add(Bucket<K, Boolean> bucket, K key, long hashCode) {
+        if (bucket.hasMoreSpace()) {
+            try {
+                return bucket.put(key, Boolean.TRUE, hashCode, false, Expiration.POLICY_TTL) == null;
+            } catch (BucketOverflowError soe) {
+                // fall through to split
+            }
+        }
+        return bucket.splitAndPut(key, Boolean.TRUE, hashCode, false, Expiration.POLICY_TTL) == null;
+    }
+
+    /**
+     * Add all the keys.  The keys are ordered by the low bits of their hashes first, so the keys of a bucket come in a
+     * row and the bucket is locked once for all of them.
+     *
+     * @param keys  no key may be null
+     * @return true if any key was absent
+     */
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends K> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        Object[] array = keys.toArray();
+        long[] hashes = new long[array.length];
+        /**
+         * Sort by the reversed hash, which orders the keys by hash bit 0, then bit 1 and so on: the keys that share
+         * the low bits of a bucket index are next to each other whatever the local depth of the bucket.  The index
+         * of the key rides in the low half of the sort key.
+         */
+        long[] order = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == null) {
+                throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+            }
+            hashes[i] = HashStrategy.getInstance().hash(array[i]);
+            order[i] = ((long) Integer.reverse((int) hashes[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        boolean changed = false;
+        int next = 0;
+        while (next < order.length) {
+            int idx = (int) order[next];
+            Bucket<K, Boolean> bucket = directory.getBucket(hashes[idx]);
+            bucket.lock();
+            try {
+                if (bucket.isInvalid()) {
+                    continue;
+                }
+                // add the keys of the run while they still belong to the bucket, a split ends the run
+                while (next < order.length) {
+                    idx = (int) order[next];
+                    if (bucket.isInvalid() || !bucket.canHandle(hashes[idx])) {
+                        break;
+                    }
+                    changed |= add(bucket, (K) array[idx], hashes[idx]);
+                    next++;
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Lock free membership test.
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        KeySetBucketImpl<K> bucket = (KeySetBucketImpl<K>) directory.<K, Boolean>getBucket(hashCode);
+        return bucket.contains(key, hashCode);
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException(ILLEGAL_ARGUMENT_EXPECTION_MSG);
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        while (true) {
+            Bucket<K, Boolean> bucket = directory.getBucket(hashCode);
+            bucket.lock();
+            try {
+                if (!bucket.isInvalid()) {
+                    return bucket.remove(key, hashCode, null) != null;
+                }
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * A stream of the keys.  It is weakly consistent: every key present before the call and not removed afterwards is
+     * included exactly once.  A parallel stream splits along the buckets.
+     *
+     * @param parallel
+     * @return
+     */
+    public Stream<K> stream(boolean parallel) {
+        AtomicReferenceArray<Bucket<?, ?>> buckets = directory.get();
+        return StreamSupport.stream(new KeySpliterator<K>(buckets, 0, buckets.length()), parallel);
+    }
+
+    /**
+     * Return the number of the keys in the set
+     * @return
+     */
+    public int size() {
+        return (int) Math.min(totalEntryCount.get(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the number of the keys, which may exceed Integer.MAX_VALUE
+     * @return
+     */
+    public long mappingCount() {
+        return totalEntryCount.get();
+    }
+
+    @Override
+    public int totalSplits() {
+        return totalSplitCount.get();
+    }
+
+    @Override
+    public int getBucketCount() {
+        return directory.getBucketCount();
+    }
+
+    /**
+     * Sets are not bounded.
+     */
+    @Override
+    public long totalEvictions() {
+        return 0L;
+    }
+
+    @Override
+    public int getMaxBucketCountDifference() {
+        return BucketMetrics.maxBucketCountDifference(directory);
+    }
+
+    @Override
+    public long getSlotCount() {
+        return BucketMetrics.slotCount(directory);
+    }
+
+    @Override
+    public int getMaxBucketOverload() {
+        return BucketMetrics.maxBucketOverload(directory);
+    }
+
+    /**
+     * Walks the canonical slots [from, to) of a snapshot of the directory array.  A bucket split after the snapshot
+     * still holds all its keys of the time of the split, so every bucket is walked once and no key is seen twice.
+     */
+    private static class KeySpliterator<K> implements Spliterator<K> {
+        private final AtomicReferenceArray<Bucket<?, ?>> buckets;
+        private int from;
+        private final int to;
+        /** the keys of the current bucket */
+        private final List<K> keys;
+        private int keyIdx;
+
+        KeySpliterator(AtomicReferenceArray<Bucket<?, ?>> buckets, int from, int to) {
+            this.buckets = buckets;
+            this.from = from;
+            this.to = to;
+            this.keys = new ArrayList<K>();
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super K> action) {
+            while (keyIdx >= keys.size()) {
+                if (!nextBucket()) {
+                    return false;
+                }
+            }
+            action.accept(keys.get(keyIdx++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super K> action) {
+            do {
+                while (keyIdx < keys.size()) {
+                    action.accept(keys.get(keyIdx++));
+                }
+            } while (nextBucket());
+        }
+
+        /**
+         * Load the keys of the next bucket whose canonical slot is in range.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean nextBucket() {
+            keys.clear();
+            keyIdx = 0;
+            while (from < to) {
+                int i = from++;
+                KeySetBucketImpl<K> bucket = (KeySetBucketImpl<K>) buckets.get(i);
+                if (bucket.getBucketIdx() == i) {
+                    bucket.collectKeys(keys);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<K> trySplit() {
+            if (keyIdx < keys.size() || to - from < 2) {
+                return null;
+            }
+            int mid = (from + to) >>> 1;
+            KeySpliterator<K> prefix = new KeySpliterator<K>(buckets, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) (to - from) * Math.max(1, keys.size());
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bucket of a counter map, it keeps the count of a key as a long in the slot instead of a value object.
+ *
+ * 1. A slot holds the key, the precomputed hash of the key and the count.  Collisions are resolved with linear probing,
+ *    removed keys leave a TOMBSTONE which is not reused until the bucket is rebuilt.
+ * 2. Adding to a present key does not lock, the count is updated with a CAS.  Like the lock free replace of the other
+ *    buckets, the adders register in writers, and spread() waits for them to drain after invalidating the bucket.
+ * 3. A key whose CAS keeps failing is hot.  It gets striped cells: one padded long per stripe, a thread adds to the
+ *    stripe picked by its id, so adders of a hot key stop contending on one cache line.  The count of a key is the
+ *    slot plus its stripes.  Once striped, addAndGet() sums the stripes after the add, the sum includes the add but
+ *    possibly concurrent adds of other threads as well.
+ * 4. sumThenReset() and overwrites take every part out with getAndSet, so an add is either in the returned value or in
+ *    the new count, never lost.  Removing a key and conditional replaces need the count to hold still: they quiesce
+ *    the bucket, lock free adders go to the lock while they wait for the adders in flight to drain.
+ *
+ * Created by Weifeng Bao on 1/23/2016.
+ */
+class CounterBucketImpl<K> extends OpenAddressingBucket<K, Long> {
+    /** the key of a slot whose key was removed */
+    private static final Object TOMBSTONE = new Object();
+    /** the number of stripes of a hot key, a power of 2 */
+    private static final int STRIPE_COUNT = stripeCount();
+    /** the longs between two stripes, keeps every stripe on a cache line of its own */
+    private static final int STRIPE_PADDING = 8;
+    /** the number of failed CAS in one add after which the key is striped */
+    private static final int CONTENDED_RETRIES = 3;
+
+    /** set under the lock while the counts must hold still, lock free adders go to the lock meanwhile */
+    private volatile boolean quiescing;
+
+    /** the key of every slot, null if never used, or TOMBSTONE */
+    private final AtomicReferenceArray<Object> keys;
+    /** the count of every slot, not including its stripes */
+    private final AtomicLongArray counts;
+    /** the stripes of the hot keys by slot, allocated with the first hot key */
+    private final AtomicReference<AtomicReferenceArray<AtomicLongArray>> stripes;
+
+    /**
+     *
+     * @param localDepth   localDepth of the bucket
+     * @param bucketID
+     * @param bucketSize   the number of slots
+     * @param loadFactor
+     * @param totalEntryCount
+     */
+    CounterBucketImpl(int localDepth, int bucketID, int bucketSize, float loadFactor, AtomicLong totalEntryCount) {
+        super(localDepth, bucketID, bucketSize, loadFactor, totalEntryCount);
+        this.keys = new AtomicReferenceArray<Object>(bucketSize);
+        this.counts = new AtomicLongArray(bucketSize);
+        this.stripes = new AtomicReference<AtomicReferenceArray<AtomicLongArray>>();
+    }
+
+    @Override
+    int match(int idx, Object key, long hashCode) {
+        Object found = keys.get(idx);
+        if (found == null) {
+            return SLOT_EMPTY;
+        }
+        if (found == TOMBSTONE) {
+            return SLOT_DEAD;
+        }
+        return (hashes[idx] == hashCode && (found == key || found.equals(key))) ? SLOT_MATCH : SLOT_OTHER;
+    }
+
+    @Override
+    boolean isLive(int idx) {
+        Object key = keys.get(idx);
+        return key != null && key != TOMBSTONE;
+    }
+
+    /**
+     * The stripes of a key are folded into its count, the key is striped again if it stays hot.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    void transferSlot(int idx, OpenAddressingBucket<K, Long> target) {
+        ((CounterBucketImpl<K>) target).transfer((K) keys.get(idx), hashes[idx], sumOf(idx));
+    }
+
+    /**
+     * Add delta to the count of the key.
+     *
+     * Without the lock only a present key is added to, and nothing is done if the bucket is being split or quiesced.
+     * Under the lock an absent key is inserted with delta as its count, unless the bucket has no more space.
+     *
+     * @param key
+     * @param hashCode
+     * @param delta
+     * @param result  receives the count after the add, null if the caller does not need it
+     * @return false if nothing was added, the caller retries under the lock, or splits if it holds the lock
+     */
+    boolean add(K key, long hashCode, long delta, long[] result) {
+        if (lock.isHeldByCurrentThread()) {
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            if (prober.found()) {
+                long count = addAt(prober.theIdx, delta, result != null);
+                if (result != null) {
+                    result[0] = count;
+                }
+                return true;
+            }
+            if (!hasMoreSpace()) {
+                return false;
+            }
+            insert(prober.theIdx, key, hashCode, delta);
+            entryCount++;
+            totalEntryCount.incrementAndGet();
+            if (result != null) {
+                result[0] = delta;
+            }
+            return true;
+        }
+
+        writers.incrementAndGet();
+        try {
+            if (!valid || quiescing) {
+                return false;
+            }
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            if (!prober.found()) {
+                return false;
+            }
+            long count = addAt(prober.theIdx, delta, result != null);
+            if (result != null) {
+                result[0] = count;
+            }
+            return true;
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take the count of the key and reset it to 0.  Does not lock, the key stays in the bucket.
+     *
+     * @param key
+     * @param hashCode
+     * @param result  receives the count, 0 if the key is absent
+     * @return false if the bucket is being split or quiesced, the caller retries under the lock
+     */
+    boolean sumThenReset(K key, long hashCode, long[] result) {
+        writers.incrementAndGet();
+        try {
+            if (!valid || (quiescing && !lock.isHeldByCurrentThread())) {
+                return false;
+            }
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            result[0] = prober.found() ? exchange(prober.theIdx, 0L) : 0L;
+            return true;
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Add to the slot, or to the stripe of the current thread once the slot is hot.
+     *
+     * @return the count after the add if sum is set, otherwise 0
+     */
+    private long addAt(int idx, long delta, boolean sum) {
+        AtomicLongArray slotStripes = stripesOf(idx);
+        if (slotStripes == null) {
+            for (int failures = 0; failures < CONTENDED_RETRIES; failures++) {
+                long current = counts.get(idx);
+                if (counts.compareAndSet(idx, current, current + delta)) {
+                    return current + delta;
+                }
+            }
+            slotStripes = stripe(idx);
+        }
+        slotStripes.getAndAdd(stripeIndex(), delta);
+        return sum ? sumOf(idx) : 0L;
+    }
+
+    /**
+     * Set the count of the slot to value.
+     *
+     * @return the count that was replaced
+     */
+    private long exchange(int idx, long value) {
+        long result = counts.getAndSet(idx, value);
+        AtomicLongArray slotStripes = stripesOf(idx);
+        if (slotStripes != null) {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                result += slotStripes.getAndSet(i * STRIPE_PADDING, 0L);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The count of the slot, including its stripes.
+     */
+    private long sumOf(int idx) {
+        long result = counts.get(idx);
+        AtomicLongArray slotStripes = stripesOf(idx);
+        if (slotStripes != null) {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                result += slotStripes.get(i * STRIPE_PADDING);
+            }
+        }
+        return result;
+    }
+
+    private AtomicLongArray stripesOf(int idx) {
+        AtomicReferenceArray<AtomicLongArray> all = stripes.get();
+        return (all == null) ? null : all.get(idx);
+    }
+
+    /**
+     * Give the slot its stripes, or return the stripes another adder gave it first.
+     */
+    private AtomicLongArray stripe(int idx) {
+        AtomicReferenceArray<AtomicLongArray> all = stripes.get();
+        if (all == null) {
+            stripes.compareAndSet(null, new AtomicReferenceArray<AtomicLongArray>(bucketSize));
+            all = stripes.get();
+        }
+        AtomicLongArray slotStripes = all.get(idx);
+        if (slotStripes == null) {
+            all.compareAndSet(idx, null, new AtomicLongArray(STRIPE_COUNT * STRIPE_PADDING));
+            slotStripes = all.get(idx);
+        }
+        return slotStripes;
+    }
+
+    /**
+     * The index of the stripe of the current thread, the thread id is spread with a Fibonacci hash.
+     */
+    private static int stripeIndex() {
+        int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPE_COUNT - 1);
+        return stripe * STRIPE_PADDING;
+    }
+
+    private static int stripeCount() {
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        int result = 1;
+        while (result < cpus) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Fill a never used slot: publish hash and count before the key.
+     */
+    private void insert(int idx, K key, long hashCode, long count) {
+        counts.set(idx, count);
+        hashes[idx] = hashCode;
+        keys.set(idx, key);
+    }
+
+    /**
+     * Wait until the lock free adders in flight are done, new ones go to the lock.  Called under the lock, every
+     * quiesce() is followed by resume().
+     */
+    private void quiesce() {
+        quiescing = true;
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
+    }
+
+    private void resume() {
+        quiescing = false;
+    }
+
+    /**
+     * Set the count of the key.  This method is running inside a lock.
+     */
+    @Override
+    public Long put(K key, Long value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+
+        if (prober.found()) {
+            return replaceIfPresent ? exchange(prober.theIdx, value) : sumOf(prober.theIdx);
+        }
+
+        insert(prober.theIdx, key, hashCode, value);
+        entryCount++;
+        totalEntryCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void transferEntry(HashEntry<K, Long> entry, boolean referenced) {
+        transfer(entry.getKey(), entry.getKeyHashCode(), entry.getValue());
+    }
+
+    /**
+     * Move a key of another bucket in, the key is known to be absent.
+     */
+    private void transfer(K key, long hashCode, long count) {
+        insert(freeSlot(hashCode), key, hashCode, count);
+        entryCount++;
+    }
+
+    /**
+     * Copy the keys with their counts, the counts of different keys are read at different times.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void collectEntries(List<HashEntry<K, Long>> out) {
+        for (int i = 0; i < bucketSize; i++) {
+            Object key = keys.get(i);
+            if (key != null && key != TOMBSTONE) {
+                out.add(new HashEntry<K, Long>((K) key, sumOf(i), hashes[i]));
+            }
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public Long remove(K key, long hashCode, Long value) {
+        quiesce();
+        try {
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            if (!prober.found()) {
+                return null;
+            }
+            long count = sumOf(prober.theIdx);
+            if (value != null && value != count) {
+                return null;
+            }
+            keys.set(prober.theIdx, TOMBSTONE);
+            tombstoneCount++;
+            entryCount--;
+            totalEntryCount.decrementAndGet();
+            return count;
+        } finally {
+            resume();
+        }
+    }
+
+    /**
+     * Lock free read.  The count is only returned if the key is still in its slot after reading it.
+     */
+    @Override
+    public Long get(K key, long hashCode) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (!prober.found()) {
+            return null;
+        }
+        long count = sumOf(prober.theIdx);
+        // slots are not reused, a changed key means the key was removed
+        return (keys.get(prober.theIdx) != TOMBSTONE) ? count : null;
+    }
+
+    /**
+     * @inheritdoc
+     *
+     * Replacing any count does not lock.  Replacing a given count needs the lock, the count must hold still while it is
+     * compared.
+     */
+    @Override
+    public Object replace(K key, long hashCode, Long oldValue, Long newValue, long ttlNanos) {
+        boolean locked = lock.isHeldByCurrentThread();
+        if (oldValue != null) {
+            if (!locked) {
+                return RETRY;
+            }
+            quiesce();
+            try {
+                LinearProber prober = new LinearProber();
+                prober.probe(key, hashCode);
+                if (!prober.found() || sumOf(prober.theIdx) != oldValue) {
+                    return null;
+                }
+                return exchange(prober.theIdx, newValue);
+            } finally {
+                resume();
+            }
+        }
+
+        writers.incrementAndGet();
+        try {
+            if (!valid || (quiescing && !locked)) {
+                return RETRY;
+            }
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            return prober.found() ? exchange(prober.theIdx, newValue) : null;
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+}
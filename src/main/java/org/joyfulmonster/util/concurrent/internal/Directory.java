@@ -3,9 +3,11 @@ package org.joyfulmonster.util.concurrent.internal;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * The bucket array of one shard, see BucketRouter.
+ *
  * Created by Weifeng Bao on 1/11/2016.
  */
-interface Directory {
+interface Directory extends BucketRouter {
     /**
      * Lock directory
      */
@@ -17,17 +19,16 @@ interface Directory {
     public void unlock();
 
     /**
-     * Get the bucket count
+     * The snapshot epoch, a bucket created in an earlier epoch may be read by a snapshot.
      * @return
      */
-    public int getBucketCount();
+    int getEpoch();
 
     /**
-     * Get the bucket for a hashcode
-     * @param hashCode
-     * @return
+     * Start a new snapshot epoch, called while every bucket is locked.
+     * @return the new epoch
      */
-    public Bucket getBucket(int hashCode);
+    int nextEpoch();
 
     /**
      * Get the Bucket Factory
@@ -36,10 +37,17 @@ interface Directory {
     public BucketFactory getBucketFactory();
 
     /**
-     * Get the
+     * Get the bucket array.  The array is replaced when the directory doubles.
      * @return
      */
-    AtomicReferenceArray<Bucket> get();
+    AtomicReferenceArray<Bucket<?, ?>> get();
+
+    /**
+     * Replace the whole bucket array in one step, used to publish buckets that were built off-line.
+     * @param buckets
+     * @param bucketCount  the number of distinct buckets in the array
+     */
+    public void publish(AtomicReferenceArray<Bucket<?, ?>> buckets, int bucketCount);
 
     /**
      * Notify a bucket is going to scale out to two buckets
@@ -47,12 +55,19 @@ interface Directory {
      * @param newBuckets
      * @return
      */
-    public int onSplit(Bucket oldBucket, Bucket[] newBuckets);
+    public int onSplit(Bucket<?, ?> oldBucket, Bucket<?, ?>[] newBuckets);
+
+    /**
+     * Notify a bucket is rebuilt at the same local depth, the new bucket takes over all the slots of the old one.
+     * @param oldBucket
+     * @param newBucket
+     */
+    public void onReplace(Bucket<?, ?> oldBucket, Bucket<?, ?> newBucket);
 
     /**
      * Notify a bucket is going to scale down
      * @param oldBucket
      * @return
      */
-    public int onMerge(Bucket oldBucket);
+    public int onMerge(Bucket<?, ?> oldBucket);
 }
@@ -1,6 +1,7 @@
 package org.joyfulmonster.util.concurrent.internal;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -10,38 +11,89 @@ class DirectoryFactory {
     /**
      * Bootstrap Directory object:
      *
-     * 1. create Bucket array based on the configuration parameter
-     * 2. new Directory instance
-     * 3. Link the Bucket to the Directory instance.
-     * 4. create BucketFactory instance, and provisioning configuration parameter into the Factory.   Whenever somewhere
+     * 1. new Directory instance over an empty Bucket array sized by the configuration parameter
+     * 2. create BucketFactory instance, and provisioning configuration parameter into the Factory.   Whenever somewhere
      *    need to create a new bucket, it should ask Directory for the BucketFactory reference and call newBucket from
      *    there.
+     * 3. fill the Bucket array through the BucketFactory, which links every Bucket to the Directory instance.
      *
      * @param bucketCount
      * @param bucketSize
      * @param loadFactor
      * @param totalEntryCount
      * @param splitCount
+     * @param expiration
+     * @param eviction
+     * @param layout
      * @return
      */
-    public static Directory create(int bucketCount, int bucketSize, float loadFactor, AtomicInteger totalEntryCount, AtomicInteger splitCount) {
+    public static Directory create(int bucketCount, int bucketSize, float loadFactor, AtomicLong totalEntryCount, AtomicInteger splitCount,
+                                   Expiration<?, ?> expiration, Eviction<?, ?> eviction, BucketLayout layout) {
+        return create(bucketCount, bucketSize, loadFactor, totalEntryCount, splitCount, expiration, eviction, layout, false);
+    }
+
+    /**
+     * Bootstrap Directory object, see create() above.
+     *
+     * @param lazy  the buckets start without slots and allocate them on the first write, if the layout grows its buckets
+     * @return
+     */
+    public static Directory create(int bucketCount, int bucketSize, float loadFactor, AtomicLong totalEntryCount, AtomicInteger splitCount,
+                                   Expiration<?, ?> expiration, Eviction<?, ?> eviction, BucketLayout layout, boolean lazy) {
         int dirSize = bucketCount;
         int dirMask = dirSize - 1;
         int globalDepth = Integer.bitCount(dirMask);
 
-        AtomicReferenceArray<Bucket> bucketsArray = new AtomicReferenceArray<Bucket>(bucketCount);
+        AtomicReferenceArray<Bucket<?, ?>> bucketsArray = new AtomicReferenceArray<Bucket<?, ?>>(bucketCount);
+        DirectoryImpl result = new DirectoryImpl(bucketsArray);
+
+        BucketFactory bucketFactory = new BucketFactory(result, bucketSize, loadFactor, totalEntryCount, splitCount, expiration, eviction,
+                layout);
+        result.bucketFactory(bucketFactory);
+
+        int capacity = lazy ? 0 : bucketFactory.capacityFor(globalDepth, 0);
         for (int bucketIdex = 0; bucketIdex < bucketCount; bucketIdex++) {
-            bucketsArray.set(bucketIdex, new LinearProbingBucketImpl(globalDepth, bucketIdex, bucketSize, loadFactor, totalEntryCount, splitCount));
+            bucketsArray.set(bucketIdex, bucketFactory.newBucket(globalDepth, bucketIdex, capacity));
         }
 
-        DirectoryImpl result = new DirectoryImpl(bucketsArray);
-        for (int i = 0; i < bucketCount; i++) {
-            ((LinearProbingBucketImpl)bucketsArray.get(i)).directory(result);
-        }
+        return result;
+    }
 
-        BucketFactory bucketFactory = new BucketFactory(result, bucketSize, loadFactor, totalEntryCount, splitCount);
-        result.bucketFactory(bucketFactory);
+    /**
+     * Bootstrap a ShardedDirectory of shardCount independent Directory instances, each built by create() above with
+     * its own BucketFactory.  The counters, the expiration and the eviction are shared by the shards.
+     *
+     * @param shardCount  a power of 2
+     * @param bucketCount  the initial buckets of each shard, a power of 2
+     * @return
+     */
+    public static BucketRouter createSharded(int shardCount, int bucketCount, int bucketSize, float loadFactor,
+                                          AtomicLong totalEntryCount, AtomicInteger splitCount, Expiration<?, ?> expiration,
+                                          Eviction<?, ?> eviction, BucketLayout layout) {
+        Directory[] shards = new Directory[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = create(bucketCount, bucketSize, loadFactor, totalEntryCount, splitCount, expiration, eviction,
+                    layout, false);
+        }
+        return new ShardedDirectory(shards);
+    }
 
+    /**
+     * Bootstrap a Directory without buckets, its bucket array is built elsewhere and handed to Directory.publish().
+     *
+     * @param bucketSize
+     * @param loadFactor
+     * @param totalEntryCount
+     * @param splitCount
+     * @param expiration
+     * @param eviction
+     * @return
+     */
+    public static Directory createUnpopulated(int bucketSize, float loadFactor, AtomicLong totalEntryCount,
+                                              AtomicInteger splitCount, Expiration<?, ?> expiration, Eviction<?, ?> eviction) {
+        DirectoryImpl result = new DirectoryImpl(new AtomicReferenceArray<Bucket<?, ?>>(0));
+        result.bucketFactory(new BucketFactory(result, bucketSize, loadFactor, totalEntryCount, splitCount, expiration, eviction,
+                BucketLayout.ENTRIES));
         return result;
     }
 }
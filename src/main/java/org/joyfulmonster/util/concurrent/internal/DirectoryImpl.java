@@ -1,23 +1,39 @@
 package org.joyfulmonster.util.concurrent.internal;
 
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * The bucket array of extendible hashing.
+ *
+ * 1. Readers never lock, they read the array reference and a slot of the AtomicReferenceArray.
+ * 2. A split that does not double the array only rewires the slots of the bucket being split.  The bucket is frozen
+ *    under its own lock, so the splits of different buckets touch disjoint slots: they take the read side of the
+ *    directory lock and swap every slot from the old bucket to its replacement with a CAS, many of them at once.
+ * 3. Doubling the array copies every slot, a slot rewired during the copy would be lost.  Doubling, publish() and
+ *    lock() take the write side of the lock, which waits for the rewiring splits to finish.
+ *
  * Created by Weifeng Bao on 1/15/2016.
  */
-
-class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implements Directory {
+class DirectoryImpl implements Directory {
+    /**
+     * The bucket array.  A doubled array is filled before it is published, the slots of the current array are
+     * rewired with compareAndSet() under the read lock.
+     */
+    private volatile AtomicReferenceArray<Bucket<?, ?>> buckets;
     /**
-     * Locker for Directory instance
+     * Locker for Directory instance, shared by the splits that rewire slots and exclusive for doubling
      */
-    private final ReentrantLock lock;
+    private final ReentrantReadWriteLock lock;
     /**
      * The number of buckets
      */
-    private volatile int bucketCount;
+    private final AtomicInteger bucketCount;
+    /**
+     * The snapshot epoch
+     */
+    private final AtomicInteger epoch;
     /**
      * bucket factory instance
      */
@@ -28,22 +44,46 @@ class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implem
      *
      * @param buckets
      */
-    DirectoryImpl(AtomicReferenceArray<Bucket> buckets) {
-        super(buckets);
-        lock = new ReentrantLock(true);
-        bucketCount = buckets.length();
+    DirectoryImpl(AtomicReferenceArray<Bucket<?, ?>> buckets) {
+        this.buckets = buckets;
+        lock = new ReentrantReadWriteLock(true);
+        bucketCount = new AtomicInteger(buckets.length());
+        epoch = new AtomicInteger(0);
+    }
+
+    @Override
+    public AtomicReferenceArray<Bucket<?, ?>> get() {
+        return buckets;
     }
 
+    @Override
+    public Directory[] getShards() {
+        return new Directory[] {this};
+    }
+
+    /**
+     * Lock the directory exclusively, no split can rewire a slot until unlock().
+     */
     public void lock() {
-        lock.lock();
+        lock.writeLock().lock();
     }
 
     public void unlock() {
-        lock.unlock();
+        lock.writeLock().unlock();
     }
 
     public int getBucketCount() {
-        return bucketCount;
+        return bucketCount.get();
+    }
+
+    @Override
+    public int getEpoch() {
+        return epoch.get();
+    }
+
+    @Override
+    public int nextEpoch() {
+        return epoch.incrementAndGet();
     }
 
     /**
@@ -52,12 +92,13 @@ class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implem
      * @param hashCode
      * @return
      */
-    public Bucket getBucket(int hashCode) {
-        AtomicReferenceArray<Bucket> dir = get();
+    @SuppressWarnings("unchecked")
+    public <K, V> Bucket<K, V> getBucket(long hashCode) {
+        AtomicReferenceArray<Bucket<?, ?>> dir = buckets;
         int dirSize = dir.length();
         int dirMask = dirSize - 1;
-        int bucketIndex = hashCode & dirMask;
-        Bucket bucket = dir.get(bucketIndex);
+        int bucketIndex = (int) hashCode & dirMask;
+        Bucket<K, V> bucket = (Bucket<K, V>) dir.get(bucketIndex);
 
         return bucket;
     }
@@ -82,28 +123,56 @@ class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implem
         return bucketFactory;
     }
 
+    /**
+     * Publish a bucket array built off-line.  Readers see either the old array or the complete new one.
+     *
+     * @param buckets
+     * @param bucketCount
+     */
+    @Override
+    public void publish(AtomicReferenceArray<Bucket<?, ?>> buckets, int bucketCount) {
+        lock();
+        try {
+            this.bucketCount.set(bucketCount);
+            this.buckets = buckets;
+        } finally {
+            unlock();
+        }
+    }
+
     /**
      * Take care directory with the two newly created buckets.
      * <p/>
-     * 1. if the newly created buckets local depth is smaller than directory global depth, there is no need to double directory
-     * 2. otherwise, double the directory size, and rewire all the directory -> buckets mapping.
+     * 1. if the newly created buckets local depth is not larger than directory global depth, rewire the slots of the
+     *    old bucket under the read lock, concurrently with the other splits.
+     * 2. otherwise, double the directory size under the write lock, and rewire all the directory -> buckets mapping.
      *
      * @param newBuckets
      * @return
      */
-    public int onSplit(Bucket oldBucket, Bucket[] newBuckets) {
-        lock();
+    public int onSplit(Bucket<?, ?> oldBucket, Bucket<?, ?>[] newBuckets) {
+        int newDepth = newBuckets[0].getLocalDepth();
+        lock.readLock().lock();
         try {
-            this.bucketCount++; // doesn't need to be atomic; only modified under directory lock
-            AtomicReferenceArray<Bucket> bucketArray = get();
-            int bucketsNumber = bucketArray.length();
-            int dirMask = bucketsNumber - 1;
-            int globalDepth = Integer.bitCount(dirMask);
+            // the array can not be doubled while the read lock is held
+            AtomicReferenceArray<Bucket<?, ?>> bucketArray = buckets;
+            if (newDepth <= globalDepth(bucketArray)) {
+                rewire(bucketArray, oldBucket, newBuckets);
+                return bucketCount.incrementAndGet();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
 
-            if (globalDepth < newBuckets[0].getLocalDepth()) {
+        lock();
+        try {
+            AtomicReferenceArray<Bucket<?, ?>> bucketArray = buckets;
+            // another split may have doubled the array meanwhile
+            if (globalDepth(bucketArray) < newDepth) {
 				/*
 				 * double directory size
 				 */
+                int bucketsNumber = bucketArray.length();
                 int newDirSize = bucketsNumber * 2;
                 if (newDirSize > ConcurrentElasticHashMapImpl.MAX_BUCKET_COUNT) {
                     throw new IllegalStateException("directory size limit exceeded");
@@ -112,7 +181,7 @@ class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implem
                 /**
                  * Link the old existing buckets
                  */
-                AtomicReferenceArray<Bucket> newDirectory = new AtomicReferenceArray<Bucket>(newDirSize);
+                AtomicReferenceArray<Bucket<?, ?>> newDirectory = new AtomicReferenceArray<Bucket<?, ?>>(newDirSize);
                 for (int i = 0; i < bucketsNumber; i++) {
                     newDirectory.set(i, bucketArray.get(i));
                     newDirectory.set(i + bucketsNumber, bucketArray.get(i));
@@ -122,31 +191,64 @@ class DirectoryImpl extends AtomicReference<AtomicReferenceArray<Bucket>> implem
                  * Set the Directory's bucketArray pointer to new Directory.
                  */
                 bucketArray = newDirectory;
-                bucketsNumber = newDirSize;
-                set(newDirectory);
-            } else {
-                // otherwise, the directory do not need to be doubled.
+                buckets = newDirectory;
             }
 
-            /**
-             * wire up the new two buckets
-             */
-            final int step = 1 << newBuckets[0].getLocalDepth();
-            for (int i = newBuckets[1].getBucketIdx(); i < bucketsNumber; i += step) {
-                bucketArray.set(i, newBuckets[1]);
-            }
-            for (int i = newBuckets[0].getBucketIdx(); i < bucketsNumber; i += step) {
-                bucketArray.set(i, newBuckets[0]);
-            }
+            rewire(bucketArray, oldBucket, newBuckets);
+            return bucketCount.incrementAndGet();
         } finally {
             unlock();
         }
+    }
 
-        return bucketCount;
+    /**
+     * Point all the directory slots of the old bucket to the new bucket.  The bucket count does not change.
+     *
+     * @param oldBucket
+     * @param newBucket
+     */
+    @Override
+    public void onReplace(Bucket<?, ?> oldBucket, Bucket<?, ?> newBucket) {
+        lock.readLock().lock();
+        try {
+            AtomicReferenceArray<Bucket<?, ?>> bucketArray = buckets;
+            final int step = 1 << newBucket.getLocalDepth();
+            for (int i = newBucket.getBucketIdx(); i < bucketArray.length(); i += step) {
+                swap(bucketArray, i, oldBucket, newBucket);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public int onMerge(Bucket oldBucket) {
+    public int onMerge(Bucket<?, ?> oldBucket) {
         return 0;
     }
+
+    /**
+     * Wire up the two new buckets in the slots of the old one.
+     */
+    private static void rewire(AtomicReferenceArray<Bucket<?, ?>> bucketArray, Bucket<?, ?> oldBucket, Bucket<?, ?>[] newBuckets) {
+        final int step = 1 << newBuckets[0].getLocalDepth();
+        for (int i = newBuckets[1].getBucketIdx(); i < bucketArray.length(); i += step) {
+            swap(bucketArray, i, oldBucket, newBuckets[1]);
+        }
+        for (int i = newBuckets[0].getBucketIdx(); i < bucketArray.length(); i += step) {
+            swap(bucketArray, i, oldBucket, newBuckets[0]);
+        }
+    }
+
+    /**
+     * The slot belongs to the old bucket, which is locked by the splitting thread, no other thread may rewire it.
+     */
+    private static void swap(AtomicReferenceArray<Bucket<?, ?>> bucketArray, int idx, Bucket<?, ?> oldBucket, Bucket<?, ?> newBucket) {
+        if (!bucketArray.compareAndSet(idx, oldBucket, newBucket)) {
+            throw new IllegalStateException("directory slot " + idx + " is not owned by the rebuilt bucket");
+        }
+    }
+
+    private static int globalDepth(AtomicReferenceArray<Bucket<?, ?>> bucketArray) {
+        return Integer.numberOfTrailingZeros(bucketArray.length());
+    }
 }
@@ -0,0 +1,125 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import org.joyfulmonster.util.concurrent.Weigher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bound of a map and the bookkeeping of evictions.
+ *
+ * A bound is spread evenly over the hash space, a bucket of local depth d covers 1/2^d of the hash codes, so it is
+ * allowed 1/2^d of the maximum size or weight.  The limits of all the buckets add up to the bound of the map, and each
+ * bucket enforces its own limit under its own lock.  There is no global eviction queue.
+ *
+ * 1. When the size limit of a depth drops to EVICTION_LOAD of the bucket load threshold, a full bucket of that depth
+ *    evicts instead of splitting, so the depth of the directory stops growing.  Keeping the limit below the load
+ *    threshold leaves room for the TOMBSTONEs left by evictions, a bucket is rebuilt once they fill it up.
+ * 2. The weight limit is checked on every write, a bucket over its weight limit evicts until the new entry fits.
+ * 3. The shards of a sharded map split the hash space first, a bucket of local depth d in one of 2^s shards covers
+ *    1/2^(s+d) of the hash codes.
+ *
+ * Created by Weifeng Bao on 1/20/2016.
+ */
+class Eviction<K, V> {
+    /** the part of the load threshold a bounded bucket may fill with entries */
+    static final float EVICTION_LOAD = 0.75f;
+
+    /** the maximum number of entries, 0 if not bounded by size */
+    private volatile long maximumSize;
+    /** the maximum total weight, 0 if not bounded by weight */
+    private volatile long maximumWeight;
+    private volatile Weigher<? super K, ? super V> weigher;
+    /** metric: the number of entries evicted */
+    private final AtomicLong evictionCount;
+    /** log2 of the number of shards the hash space is split into before the buckets */
+    private final int shardDepth;
+
+    Eviction() {
+        this(0);
+    }
+
+    Eviction(int shardDepth) {
+        this.evictionCount = new AtomicLong(0L);
+        this.shardDepth = shardDepth;
+    }
+
+    void maximumSize(long maximumSize) {
+        this.maximumWeight = 0L;
+        this.weigher = null;
+        this.maximumSize = maximumSize;
+    }
+
+    void maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        this.maximumSize = 0L;
+        this.weigher = weigher;
+        this.maximumWeight = maximumWeight;
+    }
+
+    boolean isBounded() {
+        return maximumSize > 0 || maximumWeight > 0;
+    }
+
+    boolean isWeighted() {
+        return maximumWeight > 0;
+    }
+
+    /**
+     * The number of entries a bucket of the local depth may hold before it evicts, Integer.MAX_VALUE if the bucket
+     * should split as usual.
+     *
+     * @param localDepth
+     * @param loadThreshold
+     * @return
+     */
+    int sizeLimit(int localDepth, int loadThreshold) {
+        long max = maximumSize;
+        if (max <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        long limit = share(max, shardDepth + localDepth);
+        return (limit <= (long) (loadThreshold * EVICTION_LOAD)) ? (int) Math.max(limit, 1L) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * The total weight a bucket of the local depth may hold, Long.MAX_VALUE if not bounded by weight.
+     *
+     * @param localDepth
+     * @return
+     */
+    long weightLimit(int localDepth) {
+        long max = maximumWeight;
+        return (max <= 0) ? Long.MAX_VALUE : share(max, shardDepth + localDepth);
+    }
+
+    /**
+     * Weight of the entry, 0 if the map is not bounded by weight.
+     */
+    int weigh(K key, V value) {
+        Weigher<? super K, ? super V> w = weigher;
+        if (w == null) {
+            return 0;
+        }
+        int weight = w.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("negative weight " + weight + " for key " + key);
+        }
+        return weight;
+    }
+
+    void onEvicted() {
+        evictionCount.incrementAndGet();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** ceil(max / 2^localDepth) */
+    private static long share(long max, int localDepth) {
+        if (localDepth >= 63) {
+            return 1L;
+        }
+        long share = max >>> localDepth;
+        return ((max & ((1L << localDepth) - 1)) == 0) ? share : share + 1;
+    }
+}
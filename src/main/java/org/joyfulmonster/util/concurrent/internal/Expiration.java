@@ -0,0 +1,241 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The expiration policy of a map and the background reclaimer of expired entries.
+ *
+ * 1. The policy decides which kind of HashEntry a write creates.  Without a time to live a plain HashEntry is created,
+ *    so maps that never expire anything pay nothing.
+ * 2. Buckets drop expired entries lazily: reads treat them as absent and writes reuse their slots.
+ * 3. The rest is reclaimed in the background.  Every stored ExpiringHashEntry is scheduled in a TimingWheel, one shared
+ *    daemon thread advances the wheels of all the maps, groups the fired entries by Bucket and reclaims each group
+ *    under a single bucket lock.
+ * 4. A group whose reclaiming fails, a key equals() that throws for one, is logged and scheduled again for the next
+ *    tick.  The other groups of the round are reclaimed as usual.
+ *
+ * Created by Weifeng Bao on 1/18/2016.
+ */
+class Expiration<K, V> {
+    private static final Logger LOG = LoggerFactory.getLogger(Expiration.class);
+
+    /** Pass as ttlNanos to apply the policy configured on the map */
+    static final long POLICY_TTL = 0L;
+    /** The upper limit of a time to live, keeps now + ttl away from overflow */
+    static final long MAX_TTL_NANOS = Long.MAX_VALUE >>> 1;
+    /** The width of a level 0 slot of the TimingWheel */
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** The thread that advances the TimingWheels of all the maps */
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "elastic-hashmap-expiration");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** created with the first expiring entry, most maps never need one */
+    private volatile TimingWheel<K, V> wheel;
+    /** the time to live applied to writes that do not carry their own, 0 means never expire */
+    private volatile long policyTtlNanos;
+    /** whether the policy time to live is refreshed by reads */
+    private volatile boolean refreshOnAccess;
+    /** The reference to the Directory object */
+    private BucketRouter directory;
+
+    Expiration() {
+    }
+
+    /**
+     * Help method that links the Expiration back to the Directory
+     *
+     * @param directory
+     */
+    Expiration<K, V> directory(BucketRouter directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * Every entry written afterwards without its own time to live expires ttlNanos after the write.
+     */
+    void expireAfterWrite(long ttlNanos) {
+        this.refreshOnAccess = false;
+        this.policyTtlNanos = Math.min(ttlNanos, MAX_TTL_NANOS);
+    }
+
+    /**
+     * Every entry written afterwards without its own time to live expires ttlNanos after the last read or write.
+     */
+    void expireAfterAccess(long ttlNanos) {
+        this.refreshOnAccess = true;
+        this.policyTtlNanos = Math.min(ttlNanos, MAX_TTL_NANOS);
+    }
+
+    /**
+     * Create the entry for a write.
+     *
+     * @param key
+     * @param value
+     * @param hashCode
+     * @param ttlNanos   the time to live of this entry, or POLICY_TTL
+     * @return
+     */
+    HashEntry<K, V> newEntry(K key, V value, long hashCode, long ttlNanos) {
+        long accessTtlNanos = 0L;
+        if (ttlNanos <= POLICY_TTL) {
+            ttlNanos = policyTtlNanos;
+            if (refreshOnAccess) {
+                accessTtlNanos = ttlNanos;
+            }
+        }
+        if (ttlNanos <= 0L) {
+            return new HashEntry<K, V>(key, value, hashCode);
+        }
+        ttlNanos = Math.min(ttlNanos, MAX_TTL_NANOS);
+        return new ExpiringHashEntry<K, V>(key, value, hashCode, System.nanoTime() + ttlNanos, accessTtlNanos);
+    }
+
+    /**
+     * Called by the bucket after the entry is stored, schedules it for background reclaiming.
+     *
+     * @param entry
+     */
+    void onStored(HashEntry<K, V> entry) {
+        if (entry instanceof ExpiringHashEntry) {
+            TimingWheel<K, V> w = wheel;
+            if (w == null) {
+                w = start();
+            }
+            w.schedule((ExpiringHashEntry<K, V>) entry);
+        }
+    }
+
+    /**
+     * Create the wheel and start ticking it, once.
+     */
+    private synchronized TimingWheel<K, V> start() {
+        if (wheel == null) {
+            wheel = new TimingWheel<K, V>(TICK_NANOS, System.nanoTime());
+            Tick tick = new Tick(this);
+            tick.future = TICKER.scheduleAtFixedRate(tick, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return wheel;
+    }
+
+    /**
+     * Advance the wheel and reclaim the fired entries.  Only called from the TICKER thread.
+     */
+    void advance() {
+        long now = System.nanoTime();
+        List<ExpiringHashEntry<K, V>> fired = new ArrayList<ExpiringHashEntry<K, V>>();
+        wheel.advance(now, fired);
+
+        while (!fired.isEmpty()) {
+            List<ExpiringHashEntry<K, V>> stillLive = new ArrayList<ExpiringHashEntry<K, V>>();
+            reclaim(fired, now, stillLive);
+
+            // entries refreshed by reads go back into the wheel, the ones due again are reclaimed in another round
+            fired = new ArrayList<ExpiringHashEntry<K, V>>();
+            for (ExpiringHashEntry<K, V> entry : stillLive) {
+                wheel.reschedule(entry, fired);
+            }
+        }
+    }
+
+    /**
+     * Group the fired entries by bucket and reclaim each group under one bucket lock.  A group that hits a bucket
+     * being split is regrouped against the new buckets.
+     */
+    @SuppressWarnings("unchecked")
+    private void reclaim(List<ExpiringHashEntry<K, V>> fired, long now, List<ExpiringHashEntry<K, V>> stillLive) {
+        List<ExpiringHashEntry<K, V>> work = fired;
+        while (!work.isEmpty()) {
+            Map<Bucket<K, V>, List<ExpiringHashEntry<K, V>>> batches =
+                    new IdentityHashMap<Bucket<K, V>, List<ExpiringHashEntry<K, V>>>();
+            for (ExpiringHashEntry<K, V> entry : work) {
+                Bucket<K, V> bucket = directory.getBucket(entry.getKeyHashCode());
+                List<ExpiringHashEntry<K, V>> batch = batches.get(bucket);
+                if (batch == null) {
+                    batch = new ArrayList<ExpiringHashEntry<K, V>>();
+                    batches.put(bucket, batch);
+                }
+                batch.add(entry);
+            }
+
+            work = new ArrayList<ExpiringHashEntry<K, V>>();
+            for (Map.Entry<Bucket<K, V>, List<ExpiringHashEntry<K, V>>> batch : batches.entrySet()) {
+                Bucket<K, V> bucket = batch.getKey();
+                // only a batch that went through adds to stillLive, an entry must not be scheduled twice
+                List<ExpiringHashEntry<K, V>> live = new ArrayList<ExpiringHashEntry<K, V>>();
+                boolean done = false;
+                bucket.lock();
+                try {
+                    if (!bucket.prepareWrite()) {
+                        work.addAll(batch.getValue());
+                    } else {
+                        bucket.expire(batch.getValue(), now, live);
+                        stillLive.addAll(live);
+                    }
+                    done = true;
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to reclaim {} expired entries, retrying on the next tick",
+                            batch.getValue().size(), e);
+                } finally {
+                    bucket.unlock();
+                    if (!done) {
+                        // the entries already buried are not found again and skipped by the retry
+                        for (ExpiringHashEntry<K, V> entry : batch.getValue()) {
+                            wheel.schedule(entry);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The periodic task.  It only holds the Expiration weakly, so an unreachable map stops its own ticking.
+     */
+    private static class Tick implements Runnable {
+        private final WeakReference<Expiration<?, ?>> expiration;
+        private volatile ScheduledFuture<?> future;
+
+        Tick(Expiration<?, ?> expiration) {
+            this.expiration = new WeakReference<Expiration<?, ?>>(expiration);
+        }
+
+        @Override
+        public void run() {
+            Expiration<?, ?> target = expiration.get();
+            if (target == null) {
+                ScheduledFuture<?> f = future;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                return;
+            }
+            try {
+                target.advance();
+            } catch (RuntimeException e) {
+                // must not stop the expiration of all the other maps, a failing bucket is already retried by reclaim()
+                LOG.error("Failed to advance the expiration of a map", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+/**
+ * A HashEntry that carries an expiration deadline.
+ *
+ * The deadline is a System.nanoTime() value.  Entries written under an expireAfterAccess policy move the deadline
+ * forward on every read, so the deadline is volatile.  The next pointer links the entry into the TimingWheel, it is
+ * written by the thread that schedules the entry and afterwards only by the thread that advances the wheel.
+ *
+ * Created by Weifeng Bao on 1/18/2016.
+ */
+class ExpiringHashEntry<K, V> extends HashEntry<K, V> {
+    /** the deadline in System.nanoTime() terms */
+    private volatile long expireAt;
+    /** how far a read pushes the deadline, 0 if reads do not refresh the entry */
+    private final long accessTtlNanos;
+    /** link to the next entry in the same TimingWheel slot */
+    ExpiringHashEntry<K, V> next;
+
+    ExpiringHashEntry(K key, V value, long keyHashCode, long expireAt, long accessTtlNanos) {
+        super(key, value, keyHashCode);
+        this.expireAt = expireAt;
+        this.accessTtlNanos = accessTtlNanos;
+    }
+
+    long getExpireAt() {
+        return expireAt;
+    }
+
+    /**
+     * Whether the deadline has passed.  Uses the overflow safe comparison recommended by System.nanoTime().
+     *
+     * @param now
+     * @return
+     */
+    boolean isExpired(long now) {
+        return now - expireAt >= 0;
+    }
+
+    /**
+     * Called on read, move the deadline forward if the entry was written under expireAfterAccess.
+     *
+     * @param now
+     */
+    void touch(long now) {
+        if (accessTtlNanos > 0) {
+            expireAt = now + accessTtlNanos;
+        }
+    }
+}
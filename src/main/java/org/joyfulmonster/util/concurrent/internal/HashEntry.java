@@ -10,16 +10,16 @@ import java.util.Map;
 class HashEntry<K,V> implements Map.Entry<K, V> {
     private final K key;
     private final V value;
-    private transient final int keyHashCode;
+    private transient final long keyHashCode;
 
-    HashEntry(K key, V value, int keyHashCode) {
+    HashEntry(K key, V value, long keyHashCode) {
         this.key = key;
         this.value = value;
         this.keyHashCode = keyHashCode;
     }
 
     private HashEntry(K key, V value) {
-        this(key, value, HashStrategy.getInstance().hash(key.hashCode()));
+        this(key, value, HashStrategy.getInstance().hash(key));
     }
 
     private HashEntry(Map.Entry<? extends K, ? extends V> entry) {
@@ -52,7 +52,7 @@ class HashEntry<K,V> implements Map.Entry<K, V> {
         return key.hashCode() ^ value.hashCode();
     }
 
-    int getKeyHashCode() {
+    long getKeyHashCode() {
         return keyHashCode;
     }
 
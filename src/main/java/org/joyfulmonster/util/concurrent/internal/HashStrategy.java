@@ -3,36 +3,60 @@ package org.joyfulmonster.util.concurrent.internal;
 /**
  * It is intended to register different hash algorithms.
  *
+ * The hash is 64 bits.  The Directory indexes with its low bits and a bucket places the key with its high 32 bits, so
+ * the slot placement does not lose entropy as the directory grows deeper.
+ *
  * Created by Weifeng Bao on 1/11/2016.
  */
 public class HashStrategy {
+    private static final HashStrategy INSTANCE = new Murmur3Hash();
+
     public static HashStrategy getInstance() {
-        return new WangJinkensHash();
+        return INSTANCE;
     }
 
-    public int hash(int code) {
-        return code;
+    public long hash(Object key) {
+        return key.hashCode();
     }
 
-    private static class WangJinkensHash extends HashStrategy{
-        /** Copied from JDK ConcurrentHashMap implementation */
+    private static class Murmur3Hash extends HashStrategy {
         /**
-         * Applies a supplemental hash function to a given hashCode, which
-         * defends against poor quality hash functions.  This is critical
-         * because ConcurrentHashMap uses power-of-two length hash tables,
-         * that otherwise encounter collisions for hashCodes that do not
-         * differ in lower or upper bits.
+         * Keys whose value is wider than an int, Longs, Doubles and Strings, are hashed from their full value.  Other
+         * keys only have their hashCode, it is spread over the 64 bits by the finalizer of MurmurHash3.
          */
         @Override
-        public int hash(int h) {
-            // Spread bits to regularize both segment and index locations,
-            // using variant of single-word Wang/Jenkins hash.
-            h += (h <<  15) ^ 0xffffcd7d;
-            h ^= (h >>> 10);
-            h += (h <<   3);
-            h ^= (h >>>  6);
-            h += (h <<   2) + (h << 14);
-            return h ^ (h >>> 16);
+        public long hash(Object key) {
+            if (key instanceof String) {
+                return hash((String) key);
+            }
+            if (key instanceof Long) {
+                return fmix64((Long) key);
+            }
+            if (key instanceof Double) {
+                return fmix64(Double.doubleToLongBits((Double) key));
+            }
+            return fmix64(key.hashCode());
+        }
+
+        /**
+         * The chars are folded into a 64 bit state instead of the 32 bits of String.hashCode(), so distinct Strings
+         * only collide with a 64 bit probability.
+         */
+        private static long hash(String key) {
+            long h = 0x9E3779B97F4A7C15L ^ key.length();
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x100000001B3L;
+            }
+            return fmix64(h);
+        }
+
+        /** Copied from the MurmurHash3 finalizer, every input bit affects every output bit */
+        private static long fmix64(long h) {
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB53A85EC8E53L;
+            return h ^ (h >>> 33);
         }
     }
 }
@@ -0,0 +1,187 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bucket of a set, it keeps the keys only.
+ *
+ * 1. A slot holds the key itself and the precomputed hash of the key, there is no HashEntry and no value.  contains()
+ *    compares the hash array and the key, one dereference less per probe than a HashEntry.
+ * 2. Collisions are resolved with linear probing, removed keys leave a TOMBSTONE so the probe chains stay intact.  A
+ *    TOMBSTONE is reused by the next key added after the probe chain was checked for it.
+ * 3. Reads do not lock, adds and removes are done under the bucket lock.
+ *
+ * The Bucket methods see every key mapped to Boolean.TRUE.
+ *
+ * Created by Weifeng Bao on 1/24/2016.
+ */
+class KeySetBucketImpl<K> extends OpenAddressingBucket<K, Boolean> {
+    /** the key of a slot whose key was removed */
+    private static final Object TOMBSTONE = new Object();
+
+    /** the key of every slot, null if never used, or TOMBSTONE */
+    private final AtomicReferenceArray<Object> keys;
+
+    /**
+     *
+     * @param localDepth   localDepth of the bucket
+     * @param bucketID
+     * @param bucketSize   the number of slots
+     * @param loadFactor
+     * @param totalEntryCount
+     */
+    KeySetBucketImpl(int localDepth, int bucketID, int bucketSize, float loadFactor, AtomicLong totalEntryCount) {
+        super(localDepth, bucketID, bucketSize, loadFactor, totalEntryCount);
+        this.keys = new AtomicReferenceArray<Object>(bucketSize);
+    }
+
+    @Override
+    int match(int idx, Object key, long hashCode) {
+        Object found = keys.get(idx);
+        if (found == null) {
+            return SLOT_EMPTY;
+        }
+        if (found == TOMBSTONE) {
+            return SLOT_DEAD;
+        }
+        return (hashes[idx] == hashCode && (found == key || found.equals(key))) ? SLOT_MATCH : SLOT_OTHER;
+    }
+
+    @Override
+    boolean isLive(int idx) {
+        Object key = keys.get(idx);
+        return key != null && key != TOMBSTONE;
+    }
+
+    @Override
+    void transferSlot(int idx, OpenAddressingBucket<K, Boolean> target) {
+        ((KeySetBucketImpl<K>) target).transferKey(keys.get(idx), hashes[idx]);
+    }
+
+    /**
+     * Lock free membership test.
+     *
+     * @param key
+     * @param hashCode
+     * @return
+     */
+    boolean contains(Object key, long hashCode) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        return prober.found();
+    }
+
+    /**
+     * Add the key.  This method is running inside a lock.
+     *
+     * @return Boolean.TRUE if the key was present, null if it was added
+     */
+    @Override
+    public Boolean put(K key, Boolean value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (prober.found()) {
+            return Boolean.TRUE;
+        }
+
+        int idx = prober.theIdx;
+        if (prober.reusableIdx >= 0) {
+            idx = prober.reusableIdx;
+            tombstoneCount--;
+        }
+        insert(idx, key, hashCode);
+        entryCount++;
+        totalEntryCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Publish the hash before the key.
+     */
+    private void insert(int idx, Object key, long hashCode) {
+        hashes[idx] = hashCode;
+        keys.set(idx, key);
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void transferEntry(HashEntry<K, Boolean> entry, boolean referenced) {
+        transferKey(entry.getKey(), entry.getKeyHashCode());
+    }
+
+    /**
+     * Move a key of another bucket in, the key is known to be absent.
+     */
+    private void transferKey(Object key, long hashCode) {
+        insert(freeSlot(hashCode), key, hashCode);
+        entryCount++;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void collectEntries(List<HashEntry<K, Boolean>> out) {
+        for (int i = 0; i < bucketSize; i++) {
+            Object key = keys.get(i);
+            if (key != null && key != TOMBSTONE) {
+                out.add(new HashEntry<K, Boolean>((K) key, Boolean.TRUE, hashes[i]));
+            }
+        }
+    }
+
+    /**
+     * Copy the keys of the bucket, does not lock.
+     *
+     * @param out
+     */
+    @SuppressWarnings("unchecked")
+    void collectKeys(List<? super K> out) {
+        for (int i = 0; i < bucketSize; i++) {
+            Object key = keys.get(i);
+            if (key != null && key != TOMBSTONE) {
+                out.add((K) key);
+            }
+        }
+    }
+
+    /**
+     * Remove the key.  This method is running inside a lock.
+     *
+     * @return Boolean.TRUE if the key was removed, null if it was absent
+     */
+    @Override
+    public Boolean remove(K key, long hashCode, Boolean value) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (!prober.found()) {
+            return null;
+        }
+        keys.set(prober.theIdx, TOMBSTONE);
+        tombstoneCount++;
+        entryCount--;
+        totalEntryCount.decrementAndGet();
+        return Boolean.TRUE;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public Boolean get(K key, long hashCode) {
+        return contains(key, hashCode) ? Boolean.TRUE : null;
+    }
+
+    /**
+     * A key has no value to replace, a present key is reported as replaced without writing.
+     */
+    @Override
+    public Object replace(K key, long hashCode, Boolean oldValue, Boolean newValue, long ttlNanos) {
+        return contains(key, hashCode) ? Boolean.TRUE : null;
+    }
+}
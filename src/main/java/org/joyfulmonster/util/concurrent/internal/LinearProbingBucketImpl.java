@@ -1,6 +1,10 @@
 package org.joyfulmonster.util.concurrent.internal;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -9,10 +13,37 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * 1. A bucket is a hashmap.
  * 2. this implementation uses Linear probing algorithm to resolve collision.
+ * 3. removed keys leave a TOMBSTONE behind, so the probe chains running through their slots stay intact.  Expired
+ *    entries are dropped lazily: reads skip them, writes reuse their slots, and the entries reclaimed by the
+ *    TimingWheel leave a TOMBSTONE as well.  TOMBSTONEs count against hasMoreSpace().  Once they take more than a
+ *    quarter of the load threshold, a remove or a reclaim compacts the bucket: the live entries are copied into a
+ *    fresh bucket of the same local depth, which shortens the probe chains without growing the directory.
+ * 4. a LoadingHashEntry takes a slot while the value of its key is loaded, it counts in entryCount but not in the total
+ *    entry count of the map, and it is never evicted.
+ * 5. in a bounded map the bucket evicts with CLOCK: reads set the reference bit of the slot, the clock hand clears
+ *    the bits it passes and evicts the first entry whose bit is already clear.  Evicted slots become TOMBSTONEs.
+ * 6. with lockFreeInserts, tryPut() claims the empty slot at the end of the probe chain with a CAS instead of taking
+ *    the lock.  Such a bucket never reuses TOMBSTONEs, so the first empty slot of a chain is the only place a key can
+ *    be inserted, by any writer, and two inserts of a key race for the same slot.
+ * 7. the number of slots is set by the BucketFactory and need not be a power of 2.  A full bucket with fewer slots
+ *    than the configured bucket size is rebuilt at the same depth with twice the slots, instead of being split.  The
+ *    buckets of a lazy map start with no slots, they hold no entry and the first write rebuilds them.  A bucket at
+ *    the deepest depth the Directory allows keeps doubling its slots instead of splitting.
+ * 8. an atomic update of several keys holds the lock of every bucket involved, see beginAtomic().  Meanwhile the lock
+ *    free writers retry under the lock and compaction waits, so the bucket is not replaced halfway through the update.
+ * 9. a bucket created before the last snapshot of the map may be read by that snapshot, it is never written again.
+ *    The first writer that locks it replaces it by a copy at the same depth, see prepareWrite(), and the lock free
+ *    writers retry under the lock until then.
+ * 10. in an adaptive map the bucket counts the lock acquisitions that waited and the slots the inserts probed, under
+ *    the lock, and hands them to the BucketTuner when it is split or rebuilt.
+ * 11. in a tiered map the reads and writes mark the bucket as accessed, and a bucket left alone between two sweeps is
+ *    spilled to the SpillFile, see spillIfCold().  A bucket with expiring or loading entries stays on the heap.
  *
  * Created by Weifeng Bao on 1/11/2016.
  */
 class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSupport {
+    /** Marks a slot whose entry was reclaimed.  The slot is still part of the probe chains and can be reused. */
+    private static final HashEntry<?, ?> TOMBSTONE = new HashEntry<Object, Object>(null, null, 0);
 
     /** localDepth of the bucket */
     private final int localDepth;
@@ -20,46 +51,87 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
     private final int bucketID;
     /** The mask for calculating bucketIndex */
     private final int bucketIDMask;
-    /** The max number of entries in this bucket */
+    /** The number of slots in this bucket */
     private final int bucketSize;
-    /** The mask for the entry index, so the entry index will not overflow */
-    private final int entryIndexMask;
     /** the upper limit of the entryCount before the bucket needs to be splitted */
     private final int loadThreshold;
 
-    /** the nubmer of entries in this bucket.  EntryCount is only modified during a segment lock, so it's volatile instead of atom */
-    private volatile int entryCount;
+    /** the nubmer of entries in this bucket, atomic since lock free inserts add to it outside the lock */
+    private final AtomicInteger entryCount;
+    /** the number of TOMBSTONE slots, only modified under the bucket lock */
+    private volatile int tombstoneCount;
+    /** the total weight of the entries in a map bounded by weight, only modified under the bucket lock */
+    private long weight;
+    /** CLOCK reference bits, one per slot, allocated once the map is bounded.  Set by reads without locking. */
+    private volatile byte[] referenced;
+    /** CLOCK hand, only modified under the bucket lock */
+    private int clockHand;
     /** the flag indicate whether this bucket is being split, and so this bucket will be abondoned */
     private volatile boolean valid;
+    /** set while the lock holder applies an atomic update, see beginAtomic() */
+    private volatile boolean atomic;
+    /** the snapshot epoch of the directory when the bucket was created */
+    private int epoch;
+    /** set by the reads and writes, cleared by the sweeps of a tiered map */
+    private volatile boolean accessed = true;
 
     /** the lock coordination is done in the hashmap level, the entries are atomic array only because Java doesn't support arrays of volatile types.*/
     private final AtomicReferenceArray<HashEntry<K, V>> entries;
     /** Bucket level lock */
     private final ReentrantLock lock;
+    /** the number of lock free replaces and inserts in flight, spread() waits for them to drain */
+    private final AtomicInteger writers;
+    /** inserts claim empty slots with a CAS, see tryPut() */
+    private final boolean lockFreeInserts;
     /** The reference variable to the global entry count */
-    private final AtomicInteger totalEntryCount;
-    /** The matrix that track number of splits happened since map is created  */
-    private final AtomicInteger totalSplitCount;
+    private final AtomicLong totalEntryCount;
+    /** The expiration policy of the map */
+    private final Expiration<K, V> expiration;
+    /** The bound of the map */
+    private final Eviction<K, V> eviction;
     /** The reference to the Directory object */
     private Directory directory;
+    /** The tuner of an adaptive map, null otherwise */
+    private final BucketTuner tuner;
+    /** the lock acquisitions, those that waited, the inserts and the slots they probed, counted for the tuner */
+    private long lockCount;
+    private long waitedCount;
+    private long insertCount;
+    private long probedSlots;
 
     /**
      * Helper class to do linear probing collision resolution.
      */
     private class LinearProber {
         private int theIdx;
-        private HashEntry entry;
+        private HashEntry<K, V> entry;
+        /** the first slot on the probe path that holds a TOMBSTONE or an expired entry, -1 if there is none */
+        private int reusableIdx;
+        /** System.nanoTime() taken on the first expiring entry met, only valid if clockRead is set */
+        private long now;
+        private boolean clockRead;
 
-        void probe (K key, int hashCode) {
+        void probe (K key, long hashCode) {
+            if (bucketSize == 0) {
+                // a bucket of a lazy map before its first write, hasMoreSpace() sends the writes to splitAndPut()
+                theIdx = -1;
+                reusableIdx = -1;
+                entry = null;
+                return;
+            }
             int slotIndex = findSlotIndex(hashCode);
 
             // linear probing resolve conflict
             theIdx = slotIndex;
+            reusableIdx = -1;
             entry = entries.get(slotIndex);
             while (entry != null) {
-                if (entry.getKeyHashCode() == hashCode && key.equals(entry.getKey())) {
+                if (entry.getKeyHashCode() == hashCode && entry != TOMBSTONE && key.equals(entry.getKey())) {
                     break;
                 } else {
+                    if (reusableIdx < 0 && (entry == TOMBSTONE || isExpired(entry))) {
+                        reusableIdx = theIdx;
+                    }
                     theIdx++;
                     if (theIdx >= bucketSize) {
                         theIdx = 0;
@@ -72,6 +144,27 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
                 }
             }
         }
+
+        /**
+         * Whether the probe stopped on the entry of the key.
+         */
+        boolean found() {
+            return entry != null;
+        }
+
+        /**
+         * Whether the entry is an ExpiringHashEntry past its deadline.  The clock is read once per probe.
+         */
+        boolean isExpired(HashEntry<?, ?> e) {
+            if (!(e instanceof ExpiringHashEntry)) {
+                return false;
+            }
+            if (!clockRead) {
+                now = System.nanoTime();
+                clockRead = true;
+            }
+            return ((ExpiringHashEntry) e).isExpired(now);
+        }
     }
 
     /**
@@ -81,26 +174,36 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * @param bucketSize
      * @param loadFactor
      * @param totalEntryCount
-     * @param totalSplitCount
+     * @param expiration
+     * @param eviction
+     * @param lockFreeInserts
+     * @param tuner  the tuner of an adaptive map, or null
      */
     LinearProbingBucketImpl(int localDepth, int bucketID, int bucketSize, float loadFactor,
-                            AtomicInteger totalEntryCount, AtomicInteger totalSplitCount) {
+                            AtomicLong totalEntryCount, Expiration<K, V> expiration,
+                            Eviction<K, V> eviction, boolean lockFreeInserts, BucketTuner tuner) {
         this.bucketSize = bucketSize;
         this.localDepth = localDepth;
         this.bucketID = bucketID;
         this.bucketIDMask = (1 << localDepth) - 1;
-        this.entryIndexMask = bucketSize - 1;
 
         this.lock = new ReentrantLock(true);
+        this.writers = new AtomicInteger(0);
         this.loadThreshold = (int) (((float) bucketSize) * loadFactor);
 
-        this.entryCount = 0;
+        this.entryCount = new AtomicInteger(0);
+        this.lockFreeInserts = lockFreeInserts;
+        this.tuner = tuner;
         this.valid = true;
 
-        this.totalSplitCount = totalSplitCount;
         this.totalEntryCount = totalEntryCount;
+        this.expiration = expiration;
+        this.eviction = eviction;
 
         this.entries = new AtomicReferenceArray<HashEntry<K, V>>(bucketSize);
+        if (eviction.isBounded()) {
+            this.referenced = new byte[bucketSize];
+        }
     }
 
     /**
@@ -108,8 +211,9 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      *
      * @param directory
      */
-    public LinearProbingBucketImpl directory(Directory directory) {
+    public LinearProbingBucketImpl<K, V> directory(Directory directory) {
         this.directory = directory;
+        this.epoch = directory.getEpoch();
         return this;
     }
 
@@ -134,85 +238,501 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * This method is running inside a lock.
      */
     @Override
-    public V put(K key, V value, int hashCode, boolean replaceIfPresent) {
-        return put(key, value, hashCode, replaceIfPresent, true);
+    public V put(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        LinearProber prober = new LinearProber();
+        while (true) {
+            prober.probe(key, hashCode);
+            HashEntry<K, V> found = prober.entry;
+
+            if (found instanceof LoadingHashEntry) {
+                // the key is being loaded, the write wins and the placeholder turns into a mapping
+                store(prober.theIdx, found, expiration.newEntry(key, value, hashCode, ttlNanos));
+                totalEntryCount.incrementAndGet();
+                return null;
+            }
+            if (prober.found() && !prober.isExpired(found)) {
+                V oldResult = found.getValue();
+                if (replaceIfPresent) {
+                    if (eviction.isWeighted()) {
+                        makeRoom(eviction.weigh(key, value) - eviction.weigh(key, oldResult), prober.theIdx, false);
+                    }
+                    if (!store(prober.theIdx, found, expiration.newEntry(key, value, hashCode, ttlNanos))) {
+                        // a lock free replace got there first, overwrite its entry
+                        continue;
+                    }
+                }
+                return oldResult;
+            }
+
+            boolean slotsChanged = false;
+            if (prober.found()) {
+                // the entry of the key expired, it counts as absent
+                if (!bury(prober.theIdx, found)) {
+                    // refreshed by a lock free replace, the key is present after all
+                    continue;
+                }
+                slotsChanged = true;
+            }
+            if (eviction.isBounded()) {
+                slotsChanged |= makeRoom(eviction.weigh(key, value), -1, true);
+            }
+            if (slotsChanged) {
+                // TOMBSTONEs were added, look for the first reusable slot again
+                prober.probe(key, hashCode);
+            }
+
+            int theIdx = prober.theIdx;
+            HashEntry<K, V> expected = null;
+            if (prober.reusableIdx >= 0 && !lockFreeInserts) {
+                // reuse the first TOMBSTONE or expired entry on the probe path, so the probe chain stays intact
+                theIdx = prober.reusableIdx;
+                expected = entries.get(theIdx);
+            }
+            // otherwise entry is null, so found the empty slot
+            if (!store(theIdx, expected, expiration.newEntry(key, value, hashCode, ttlNanos))) {
+                // the expired entry of another key was refreshed by a lock free replace, or a lock free insert took
+                // the empty slot, possibly for the same key
+                continue;
+            }
+            if (expected == TOMBSTONE) {
+                tombstoneCount--;
+            } else if (expected != null) {
+                // the expired entry of another key is dropped
+                entryCount.decrementAndGet();
+                totalEntryCount.decrementAndGet();
+            }
+            entryCount.incrementAndGet();
+            totalEntryCount.incrementAndGet();
+            if (tuner != null) {
+                int home = findSlotIndex(hashCode);
+                insertCount++;
+                probedSlots += (theIdx >= home) ? theIdx - home : theIdx + bucketSize - home;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public Object replace(K key, long hashCode, V oldValue, V newValue, long ttlNanos) {
+        boolean locked = lock.isHeldByCurrentThread();
+        if (!locked && eviction.isWeighted()) {
+            // the weight of the bucket is only kept under the lock
+            return RETRY;
+        }
+
+        writers.incrementAndGet();
+        try {
+            if (!valid || (!locked && (atomic || isShared()))) {
+                // spread() is copying the slots, or already did, or an atomic update or a snapshot holds the bucket
+                return RETRY;
+            }
+            touch();
+            LinearProber prober = new LinearProber();
+            while (true) {
+                prober.probe(key, hashCode);
+                HashEntry<K, V> found = prober.entry;
+                if (!prober.found() || found instanceof LoadingHashEntry || prober.isExpired(found)) {
+                    return null;
+                }
+                V current = found.getValue();
+                if (oldValue != null && !oldValue.equals(current)) {
+                    return null;
+                }
+                if (locked && eviction.isWeighted()) {
+                    makeRoom(eviction.weigh(key, newValue) - eviction.weigh(key, current), prober.theIdx, false);
+                }
+                if (store(prober.theIdx, found, expiration.newEntry(key, newValue, hashCode, ttlNanos))) {
+                    byte[] ref = referenced;
+                    if (ref != null) {
+                        ref[prober.theIdx] = 1;
+                    }
+                    return current;
+                }
+                // another replace of the same key won, compare against its value
+            }
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public Object tryPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        if (!lockFreeInserts || eviction.isBounded()) {
+            // evicting needs the lock
+            return RETRY;
+        }
+
+        writers.incrementAndGet();
+        try {
+            if (!valid || atomic || isShared()) {
+                // spread() is copying the slots, or already did, or an atomic update or a snapshot holds the bucket
+                return RETRY;
+            }
+            touch();
+            LinearProber prober = new LinearProber();
+            HashEntry<K, V> newEntry = null;
+            while (true) {
+                prober.probe(key, hashCode);
+                HashEntry<K, V> found = prober.entry;
+                if (prober.found()) {
+                    if (found instanceof LoadingHashEntry || prober.isExpired(found)) {
+                        // completing a load or dropping the expired entry is done under the lock
+                        return RETRY;
+                    }
+                    if (!replaceIfPresent) {
+                        return found.getValue();
+                    }
+                    if (newEntry == null) {
+                        newEntry = expiration.newEntry(key, value, hashCode, ttlNanos);
+                    }
+                    if (store(prober.theIdx, found, newEntry)) {
+                        return found.getValue();
+                    }
+                    // another writer of the key won, overwrite its entry
+                    continue;
+                }
+
+                if (!reserve()) {
+                    // the bucket splits under the lock
+                    return RETRY;
+                }
+                if (newEntry == null) {
+                    newEntry = expiration.newEntry(key, value, hashCode, ttlNanos);
+                }
+                if (store(prober.theIdx, null, newEntry)) {
+                    totalEntryCount.incrementAndGet();
+                    return null;
+                }
+                // another insert took the slot, maybe for the same key, give the room back and probe again
+                entryCount.decrementAndGet();
+            }
+        } catch (BucketOverflowError e) {
+            return RETRY;
+        } finally {
+            writers.decrementAndGet();
+        }
     }
 
     /**
      * @inheritdoc
      */
     @Override
-    public V transferEntry(K key, V value, int hashCode) {
-        return put(key, value, hashCode, true, false);
+    public void transferEntry(HashEntry<K, V> entry, boolean referenced) {
+        int theIdx = findSlotIndex(entry.getKeyHashCode());
+        while (entries.get(theIdx) != null) {
+            theIdx++;
+            if (theIdx >= bucketSize) {
+                theIdx = 0;
+            }
+        }
+        entries.set(theIdx, entry);
+        entryCount.incrementAndGet();
+        if (referenced && this.referenced != null) {
+            this.referenced[theIdx] = 1;
+        }
+        if (eviction.isWeighted() && !(entry instanceof LoadingHashEntry)) {
+            weight += eviction.weigh(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
      * @inheritdoc
      */
-    private V put(K key, V value, int hashCode, boolean replaceIfPresent, boolean countInTotalEntryCount) {
+    @Override
+    public HashEntry<K, V> getEntry(K key, long hashCode) {
+        touch();
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (prober.found() && prober.isExpired(prober.entry)) {
+            return null;
+        }
+        return prober.entry;
+    }
+
+    /**
+     * Store the placeholder of a key that getEntry reported absent under the same bucket lock.  Only the buckets of a
+     * map with full entries load, the other buckets do not take placeholders.
+     *
+     * @param placeholder
+     * @return false if the key turned out to be present, because a lock free replace refreshed its expiring entry
+     */
+    boolean putPlaceholder(LoadingHashEntry<K, V> placeholder) {
+        K key = placeholder.getKey();
+        long hashCode = placeholder.getKeyHashCode();
         LinearProber prober = new LinearProber();
         prober.probe(key, hashCode);
 
-        V oldResult = null;
-        if (prober.entry != null && prober.entry.getKeyHashCode() == hashCode && key.equals(prober.entry.getKey())) {
-            oldResult = (V) prober.entry.getValue();
-            if (replaceIfPresent) {
-                HashEntry<K, V> newEntry = new HashEntry<K, V>(key, value, hashCode);
-                entries.set(prober.theIdx, newEntry);
+        boolean slotsChanged = false;
+        if (prober.found()) {
+            // the entry of the key expired
+            if (!bury(prober.theIdx, prober.entry)) {
+                return false;
             }
+            slotsChanged = true;
+        }
+        if (eviction.isBounded()) {
+            slotsChanged |= makeRoom(0, -1, true);
+        }
+        if (slotsChanged) {
+            prober.probe(key, hashCode);
+        }
+
+        int theIdx = prober.theIdx;
+        HashEntry<K, V> expected = null;
+        if (prober.reusableIdx >= 0 && !lockFreeInserts) {
+            theIdx = prober.reusableIdx;
+            expected = entries.get(theIdx);
+        }
+        if (!entries.compareAndSet(theIdx, expected, placeholder)) {
+            // the expired entry of another key was refreshed, or a lock free insert took the slot, let the caller
+            // look again
+            return false;
+        }
+        if (expected == TOMBSTONE) {
+            tombstoneCount--;
+        } else if (expected != null) {
+            entryCount.decrementAndGet();
+            totalEntryCount.decrementAndGet();
+            if (eviction.isWeighted()) {
+                weight -= eviction.weigh(expected.getKey(), expected.getValue());
+            }
+        }
+        entryCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Replace the placeholder by an entry of the loaded value, or drop it if the value is null.
+     *
+     * @param placeholder
+     * @param value
+     * @return false if the placeholder is no longer stored, for example because a put replaced it
+     */
+    boolean completePlaceholder(LoadingHashEntry<K, V> placeholder, V value) {
+        K key = placeholder.getKey();
+        long hashCode = placeholder.getKeyHashCode();
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (prober.entry != placeholder) {
+            return false;
+        }
+
+        if (value == null) {
+            entries.set(prober.theIdx, tombstone());
+            entryCount.decrementAndGet();
+            tombstoneCount++;
         } else {
-            // entry is null, so found the empty slot
-            HashEntry<K, V> newEntry = new HashEntry<K, V>(key, value, hashCode);
-            entries.set(prober.theIdx, newEntry);
-            entryCount++;
-            if (countInTotalEntryCount) {
-                totalEntryCount.incrementAndGet();
+            if (eviction.isWeighted()) {
+                makeRoom(eviction.weigh(key, value), prober.theIdx, false);
             }
+            store(prober.theIdx, placeholder, expiration.newEntry(key, value, hashCode, Expiration.POLICY_TTL));
+            totalEntryCount.incrementAndGet();
         }
-        return oldResult;
+        return true;
+    }
+
+    /**
+     * Swap the entry into the slot and hand it over to the expiration policy.  The swap is a CAS, since lock free
+     * replaces may swap the live entries concurrently.
+     *
+     * @param oldEntry  the entry the caller found in the slot
+     * @return false if the slot no longer holds oldEntry
+     */
+    private boolean store(int idx, HashEntry<K, V> oldEntry, HashEntry<K, V> newEntry) {
+        if (!entries.compareAndSet(idx, oldEntry, newEntry)) {
+            return false;
+        }
+        if (eviction.isWeighted()) {
+            weight += eviction.weigh(newEntry.getKey(), newEntry.getValue());
+            if (oldEntry != null && oldEntry != TOMBSTONE && !(oldEntry instanceof LoadingHashEntry)) {
+                weight -= eviction.weigh(oldEntry.getKey(), oldEntry.getValue());
+            }
+        }
+        expiration.onStored(newEntry);
+        return true;
+    }
+
+    /**
+     * Replace the entry of the slot by a TOMBSTONE, the probe chains running through the slot stay intact.
+     *
+     * @param oldEntry  the entry the caller found in the slot
+     * @return false if a lock free replace swapped the entry in the meantime
+     */
+    private boolean bury(int idx, HashEntry<K, V> oldEntry) {
+        if (!entries.compareAndSet(idx, oldEntry, tombstone())) {
+            return false;
+        }
+        entryCount.decrementAndGet();
+        tombstoneCount++;
+        totalEntryCount.decrementAndGet();
+        if (eviction.isWeighted()) {
+            weight -= eviction.weigh(oldEntry.getKey(), oldEntry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Evict until the incoming entry fits into the limits of this bucket.
+     *
+     * @param incomingWeight  the weight the write adds to the bucket
+     * @param protectedIdx  the slot being overwritten, it must not be evicted, -1 if none
+     * @param addsEntry  whether the write adds an entry
+     * @return whether anything was evicted
+     */
+    private boolean makeRoom(long incomingWeight, int protectedIdx, boolean addsEntry) {
+        int sizeLimit = eviction.sizeLimit(localDepth, loadThreshold);
+        long weightLimit = eviction.weightLimit(localDepth);
+        int minEntries = (protectedIdx >= 0) ? 1 : 0;
+
+        boolean evicted = false;
+        while (entryCount.get() > minEntries
+                && ((addsEntry && entryCount.get() >= sizeLimit) || weight + incomingWeight > weightLimit)) {
+            int victim = nextVictim(protectedIdx);
+            if (victim < 0) {
+                break;
+            }
+            if (bury(victim, entries.get(victim))) {
+                eviction.onEvicted();
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Move the CLOCK hand to the next victim.  Expired entries are taken right away, referenced entries get a second
+     * chance.
+     *
+     * @param protectedIdx  slot to skip
+     * @return  the slot of the victim, -1 if there is none
+     */
+    private int nextVictim(int protectedIdx) {
+        byte[] ref = referenced;
+        if (ref == null) {
+            ref = new byte[bucketSize];
+            referenced = ref;
+        }
+        long now = System.nanoTime();
+        for (int scanned = 0; scanned < 2 * bucketSize; scanned++) {
+            int idx = clockHand;
+            clockHand = (idx + 1 == bucketSize) ? 0 : idx + 1;
+
+            HashEntry<K, V> entry = entries.get(idx);
+            if (entry == null || entry == TOMBSTONE || entry instanceof LoadingHashEntry || idx == protectedIdx) {
+                continue;
+            }
+            if (!isExpired(entry, now) && ref[idx] != 0) {
+                ref[idx] = 0;
+                continue;
+            }
+            return idx;
+        }
+        return -1;
     }
 
     /**
      * @inheritdoc
      */
     @Override
-    public V remove(K key, int hashCode, V value) {
+    public void expire(List<ExpiringHashEntry<K, V>> expired, long now, List<ExpiringHashEntry<K, V>> stillLive) {
         LinearProber prober = new LinearProber();
-        prober.probe(key, hashCode);
+        for (ExpiringHashEntry<K, V> entry : expired) {
+            prober.probe(entry.getKey(), entry.getKeyHashCode());
+            if (prober.entry != entry) {
+                // the entry was overwritten, removed or dropped by a split, its successor carries its own deadline
+                continue;
+            }
+            if (entry.isExpired(now)) {
+                // a lock free replace may have swapped the entry meanwhile, its successor carries its own deadline
+                bury(prober.theIdx, entry);
+            } else {
+                stillLive.add(entry);
+            }
+        }
+        compactIfNeeded();
+    }
 
-        V oldResult = null;
-        if (prober.entry != null && prober.entry.getKeyHashCode() == hashCode && key.equals(prober.entry.getKey())) {
-            oldResult = (V) prober.entry.getValue();
-            boolean delete = true;
-            if (value != null) {
-                if (oldResult.equals(value)) {
-                    delete = true;
-                } else {
-                    oldResult = null;
-                    delete = false;
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void collectEntries(List<HashEntry<K, V>> out) {
+        long now = System.nanoTime();
+        for (int i = 0; i < bucketSize; i++) {
+            HashEntry<K, V> entry = entries.get(i);
+            if (entry != null && entry != TOMBSTONE && !(entry instanceof LoadingHashEntry) && !isExpired(entry, now)) {
+                out.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public V remove(K key, long hashCode, V value) {
+        LinearProber prober = new LinearProber();
+        while (true) {
+            prober.probe(key, hashCode);
+            HashEntry<K, V> found = prober.entry;
+
+            if (!prober.found() || found instanceof LoadingHashEntry) {
+                // absent, or the key is being loaded and there is nothing to remove yet
+                return null;
+            }
+            if (prober.isExpired(found)) {
+                // an expired entry counts as absent, drop it while we are here
+                if (bury(prober.theIdx, found)) {
+                    compactIfNeeded();
+                    return null;
                 }
+                continue;
             }
 
-            if (delete) {
-                entries.getAndSet(prober.theIdx, null);
-                entryCount--;
-                totalEntryCount.decrementAndGet();
+            V oldResult = found.getValue();
+            if (value != null && !oldResult.equals(value)) {
+                return null;
+            }
+            if (!bury(prober.theIdx, found)) {
+                // a lock free replace swapped the entry, decide again on its value
+                continue;
             }
+            compactIfNeeded();
+            return oldResult;
         }
-        return oldResult;
     }
 
     /**
      * @inheritdoc
      */
     @Override
-    public V get(K key, int hashCode) {
+    public V get(K key, long hashCode) {
+        touch();
         LinearProber prober = new LinearProber();
         prober.probe(key, hashCode);
 
         V oldResult = null;
-        if (prober.entry != null && prober.entry.getKeyHashCode() == hashCode && key.equals(prober.entry.getKey())) {
-            oldResult = (V) prober.entry.getValue();
+        if (prober.found()) {
+            HashEntry<K, V> entry = prober.entry;
+            if (entry instanceof ExpiringHashEntry) {
+                // reads never modify the slots, an expired entry is left for a writer or the TimingWheel to drop
+                long now = System.nanoTime();
+                if (((ExpiringHashEntry) entry).isExpired(now)) {
+                    return null;
+                }
+                ((ExpiringHashEntry) entry).touch(now);
+            }
+            byte[] ref = referenced;
+            if (ref != null) {
+                ref[prober.theIdx] = 1;
+            }
+            oldResult = entry.getValue();
         }
         return oldResult;
     }
@@ -221,65 +741,218 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * @inheritdoc
      */
     @Override
-    public V splitAndPut(K key, V value, int hashCode, boolean replaceIfPresent) {
+    public V splitAndPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        Bucket<K, V>[] newBuckets = spread(false, false, 0);
+
+        /**
+         * Now put the new entry into the new buckets
+         */
+        V result = null;
+        try {
+            boolean handled = false;
+            for (Bucket<K, V> newBucket : newBuckets) {
+                if (newBucket.canHandle(hashCode)) {
+                    result = newBucket.put(key, value, hashCode, replaceIfPresent, ttlNanos);
+                    handled = true;
+                    break;
+                }
+            }
+            if (!handled) {
+                // it should not happen
+                throw new IllegalStateException("bucketIdxBits conflict during segment split");
+            }
+        } catch (BucketOverflowError soe1) {
+            throw new IllegalStateException("sgement overflow occured after split");
+        }
+        register(newBuckets);
+        return result;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public boolean split(boolean grow) {
+        Bucket<K, V>[] newBuckets = spread(grow, false, 0);
+        register(newBuckets);
+        return newBuckets.length == 2;
+    }
+
+    /**
+     * Make room for an atomic update that beginAtomic() refused, called under the lock.  The bucket is rebuilt without
+     * its TOMBSTONEs, grown in place to hold the writes, or split once it has the size of its depth, the same way an
+     * insert makes room, so a small update does not allocate full size buckets.  The caller must not touch the bucket
+     * afterwards.
+     *
+     * @param writes  the number of keys the update may insert
+     * @return false if the bucket could neither grow nor split, and still has no room for the writes
+     */
+    boolean makeRoomForAtomic(int writes) {
+        int capacity = bucketSize;
+        Bucket<K, V>[] newBuckets = spread(false, false, writes);
+        register(newBuckets);
+        if (newBuckets.length == 2) {
+            return true;
+        }
+        LinearProbingBucketImpl<K, V> rebuilt = (LinearProbingBucketImpl<K, V>) newBuckets[0];
+        return rebuilt.bucketSize > capacity || rebuilt.entryCount.get() + writes < rebuilt.loadThreshold;
+    }
+
+    /**
+     * Rebuild the bucket at the same local depth once TOMBSTONEs take more than a quarter of the load threshold.
+     * Called under the lock after slots were buried, the caller must not touch the bucket afterwards.
+     */
+    private void compactIfNeeded() {
+        if (!atomic && tombstoneCount > (loadThreshold >>> 2)) {
+            register(spread(false, true, 0));
+        }
+    }
+
+    /**
+     * Start an atomic update of at most writes keys, called under the lock.  Until endAtomic() the lock free writers
+     * retry under the lock, and the removes do not compact the bucket, so the bucket stays in place however the keys
+     * are written.
+     *
+     * @param writes  the number of keys the update may insert or remove
+     * @return false if the bucket has no room for the inserts, it should be split first
+     */
+    boolean beginAtomic(int writes) {
+        // fence off the lock free inserts first, one of them could take the room checked for otherwise
+        atomic = true;
+        awaitLockFreeWriters();
+        if (entryCount.get() + tombstoneCount + writes >= loadThreshold) {
+            atomic = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the lock free writers in flight, after setting a flag that makes the next ones retry under the lock.
+     * Same handshake as spread(), a lock free writer that missed the flag is waited for.
+     */
+    void awaitLockFreeWriters() {
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Whether a snapshot taken since the bucket was created may read it.
+     */
+    private boolean isShared() {
+        return epoch != directory.getEpoch();
+    }
+
+    /**
+     * End the atomic update, called under the lock.  The bucket is compacted now if the removes of the update left
+     * too many TOMBSTONEs, the caller must not touch the bucket afterwards.
+     */
+    void endAtomic() {
+        atomic = false;
+        compactIfNeeded();
+    }
+
+    /**
+     * Abandon this bucket and spread its entries into new buckets, which are not visible yet.
+     *
+     * @param grow  split even if dropping the dead slots would free enough space
+     * @param compact  rebuild at the same depth, whatever the number of live entries
+     * @param reserve  the inserts of an atomic update to make room for, on top of the live entries
+     * @return  two buckets one level deeper, or one bucket at the same depth if the bucket is rebuilt
+     */
+    private Bucket<K, V>[] spread(boolean grow, boolean compact, int reserve) {
         /* this bucket will be abandoned, so it should not set the flag back to allow access */
         disallowAccess();
-        totalSplitCount.incrementAndGet();
+        /*
+         * Wait for the lock free replaces that passed the valid check before the flag was cleared, the later ones see
+         * the flag and retry under the lock.  Both sides write their flag before reading the other one.
+         */
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
 
-        int newLocalDepth = localDepth + 1;
+        /** Count what survives, expired entries and TOMBSTONEs are left behind, and where it goes after a split */
+        long now = System.nanoTime();
+        int liveCount = 0;
+        int upperCount = 0;
         int newBucketID = 1 << localDepth;
-
-        Bucket[] newBuckets = new Bucket[2];
-        newBuckets[0] = directory.getBucketFactory().newBucket(newLocalDepth, bucketID);
-        newBuckets[1] = directory.getBucketFactory().newBucket(newLocalDepth, bucketID | newBucketID);
-
-        /** Spread the entries in this bucket to the new buckets */
         for (int i = 0; i < bucketSize; i++) {
             HashEntry<K, V> entry = entries.get(i);
-            if (entry != null) {
-                if (newBuckets[0].canHandle(entry.getKeyHashCode())) {
-                    newBuckets[0].transferEntry(entry.getKey(), entry.getValue(), entry.getKeyHashCode());
-                } else {
-                    newBuckets[1].transferEntry(entry.getKey(), entry.getValue(), entry.getKeyHashCode());
+            if (entry != null && entry != TOMBSTONE && !isExpired(entry, now)) {
+                liveCount++;
+                if ((entry.getKeyHashCode() & newBucketID) != 0) {
+                    upperCount++;
                 }
             }
         }
 
+        if (tuner != null) {
+            tuner.retire(localDepth, lockCount, waitedCount, insertCount, probedSlots);
+        }
         /**
-         * Now put the new entry into the two new buckets
+         * Rebuild the bucket at the same depth instead of splitting if dropping the dead slots frees enough space, or
+         * if the bucket reached the depth at which a bounded map evicts.  With grow set, ensureCapacity() asked for the
+         * split and the entries to come are on their way.
          */
-        V result;
-        try {
-            if (newBuckets[0].canHandle(hashCode)) {
-                result = (V) newBuckets[0].put(key, value, hashCode, replaceIfPresent);
-            } else if (newBuckets[1].canHandle(hashCode)) {
-                result = (V) newBuckets[1].put(key, value, hashCode, replaceIfPresent);
+        boolean evicting = eviction.sizeLimit(localDepth, loadThreshold) != Integer.MAX_VALUE;
+        boolean rebuild = compact || evicting
+                || (!grow && liveCount + reserve < loadThreshold - (loadThreshold >>> 2));
+        Bucket<K, V>[] newBuckets = directory.getBucketFactory().newBucketsFor(localDepth, bucketID, bucketSize,
+                rebuild, grow, liveCount - upperCount, upperCount, reserve);
+
+        /** Spread the entries in this bucket to the new buckets */
+        byte[] ref = referenced;
+        for (int i = 0; i < bucketSize; i++) {
+            HashEntry<K, V> entry = entries.get(i);
+            if (entry == null || entry == TOMBSTONE) {
+                continue;
+            }
+            if (isExpired(entry, now)) {
+                totalEntryCount.decrementAndGet();
+            } else if (newBuckets[0].canHandle(entry.getKeyHashCode())) {
+                newBuckets[0].transferEntry(entry, ref != null && ref[i] != 0);
             } else {
-                // it should not happen
-                throw new IllegalStateException("bucketIdxBits conflict during segment split");
+                newBuckets[1].transferEntry(entry, ref != null && ref[i] != 0);
             }
-        } catch (BucketOverflowError soe1) {
-            throw new IllegalStateException("sgement overflow occured after split");
         }
-        directory.onSplit(this, newBuckets);
-        return result;
+        return newBuckets;
     }
 
-    /*
-     * Implements replace(Object key, V value) and replace (Object key, V oldValue, V newValue).
-     * If oldValue is null, treat it as replace(key, value), otherwise, only replace
-     * if existing entry value equals oldValue.
+    /**
+     * Make the new buckets visible through the directory.
      */
-    @Override
-    public V replace(K key, int hashCode, V oldValue, V newValue) {
-        return put(key, newValue, hashCode, true);
+    private void register(Bucket<K, V>[] newBuckets) {
+        if (newBuckets.length == 1) {
+            directory.onReplace(this, newBuckets[0]);
+        } else {
+            directory.onSplit(this, newBuckets);
+        }
     }
 
     /**
-     * Check if this bucket still have enough space
+     * Check if this bucket still have enough space.  TOMBSTONEs occupy slots until the bucket is rebuilt.
      */
     public boolean hasMoreSpace() {
-        return entryCount < loadThreshold;
+        return entryCount.get() + tombstoneCount < loadThreshold;
+    }
+
+    /**
+     * Count a lock free insert in before it claims its slot, so the concurrent inserts never fill the bucket past
+     * loadThreshold.  The caller gives the room back if it loses the slot.
+     *
+     * @return false if the bucket has no more space
+     */
+    private boolean reserve() {
+        while (true) {
+            int count = entryCount.get();
+            if (count + tombstoneCount >= loadThreshold) {
+                return false;
+            }
+            if (entryCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
     }
 
     /**
@@ -289,6 +962,76 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
         return !valid;
     }
 
+    /**
+     * A bucket read by a snapshot is copied at the same depth, then the writer retries against the copy.
+     */
+    @Override
+    public boolean prepareWrite() {
+        if (!valid) {
+            return false;
+        }
+        if (isShared()) {
+            register(spread(false, true, 0));
+            return false;
+        }
+        touch();
+        return true;
+    }
+
+    /**
+     * Mark the bucket as accessed, the flag is read before it is written so the hot buckets are not written at all.
+     */
+    private void touch() {
+        if (!accessed) {
+            accessed = true;
+        }
+    }
+
+    /**
+     * Spill the bucket if it was not accessed since the last call, otherwise clear the flag.  Called under the lock.
+     * The bucket is replaced by a SpilledBucketImpl, the caller must not touch the bucket afterwards.
+     *
+     * @param spillFile
+     * @return whether the bucket was spilled
+     */
+    boolean spillIfCold(SpillFile<K, V> spillFile) throws IOException {
+        if (!valid || atomic) {
+            return false;
+        }
+        if (accessed) {
+            accessed = false;
+            return false;
+        }
+        for (int i = 0; i < bucketSize; i++) {
+            HashEntry<K, V> entry = entries.get(i);
+            if (entry instanceof ExpiringHashEntry || entry instanceof LoadingHashEntry) {
+                // the file keeps neither deadlines nor loads in flight
+                return false;
+            }
+        }
+        disallowAccess();
+        awaitLockFreeWriters();
+        List<HashEntry<K, V>> live = new ArrayList<HashEntry<K, V>>(entryCount.get());
+        collectEntries(live);
+        for (HashEntry<K, V> entry : live) {
+            if (entry instanceof ExpiringHashEntry) {
+                // a lock free replace wrote an expiring entry meanwhile, the bucket can not take writes any more
+                register(spread(false, true, 0));
+                return false;
+            }
+        }
+        Bucket<K, V> stub;
+        try {
+            stub = spillFile.spill(localDepth, bucketID, live, directory);
+        } catch (IOException | RuntimeException e) {
+            // leave a copy in place of the bucket
+            register(spread(false, true, 0));
+            throw e;
+        }
+        directory.onReplace(this, stub);
+        return true;
+    }
+
     /**
      * set the flag that the bucket needs to be splitted
      */
@@ -301,7 +1044,16 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      */
     @Override
     public void lock() {
+        if (tuner == null) {
+            lock.lock();
+            return;
+        }
+        boolean waited = lock.isLocked() && !lock.isHeldByCurrentThread();
         lock.lock();
+        lockCount++;
+        if (waited) {
+            waitedCount++;
+        }
     }
 
     /**
@@ -316,7 +1068,7 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * All the entries in this bucket will have the hashcode that has the same collections of lower bits.
      */
     @Override
-    public boolean canHandle(int hashCode) {
+    public boolean canHandle(long hashCode) {
         return bucketIdxBits(hashCode) == bucketID;
     }
 
@@ -325,8 +1077,21 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * @param hashCode
      * @return
      */
-    private int findSlotIndex(int hashCode) {
-        return (hashCode >>> localDepth) & entryIndexMask;
+    private int findSlotIndex(long hashCode) {
+        // the low bits index the directory, scale the high 32 bits to [0, bucketSize) with a multiply
+        return (int) (((hashCode >>> 32) * bucketSize) >>> 32);
+    }
+
+    /**
+     * TOMBSTONE as an entry of the bucket, it is only ever compared by identity.
+     */
+    @SuppressWarnings("unchecked")
+    private HashEntry<K, V> tombstone() {
+        return (HashEntry<K, V>) TOMBSTONE;
+    }
+
+    private static boolean isExpired(HashEntry<?, ?> entry, long now) {
+        return entry instanceof ExpiringHashEntry && ((ExpiringHashEntry) entry).isExpired(now);
     }
 
     /**
@@ -334,8 +1099,8 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      * @param hashCode
      * @return
      */
-    private int bucketIdxBits(int hashCode) {
-        return hashCode & bucketIDMask;
+    private int bucketIdxBits(long hashCode) {
+        return (int) hashCode & bucketIDMask;
     }
 
     /**
@@ -343,6 +1108,22 @@ class LinearProbingBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSuppor
      */
     @Override
     public int getBucketEntries() {
-        return entryCount;
+        return entryCount.get();
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketCapacity() {
+        return bucketSize;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketLoadThreshold() {
+        return loadThreshold;
     }
 }
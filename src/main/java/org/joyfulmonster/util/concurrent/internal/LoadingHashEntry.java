@@ -0,0 +1,35 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Placeholder stored in a Bucket while the value of its key is being loaded.
+ *
+ * The placeholder takes a slot but is not a mapping: reads see the key as absent and it is not counted by size().
+ * Concurrent loads of the same key find the placeholder and wait on its future, so the loader runs once per key.
+ * A put that lands on the placeholder replaces it, the result of the load is then only handed to the waiters.
+ *
+ * Created by Weifeng Bao on 1/21/2016.
+ */
+class LoadingHashEntry<K, V> extends HashEntry<K, V> {
+    private final CompletableFuture<V> future;
+
+    LoadingHashEntry(K key, long keyHashCode) {
+        super(key, null, keyHashCode);
+        this.future = new CompletableFuture<V>();
+    }
+
+    CompletableFuture<V> getFuture() {
+        return future;
+    }
+
+    @Override
+    public int hashCode() {
+        return getKey().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getKey() + "=<loading>";
+    }
+}
@@ -0,0 +1,223 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import org.joyfulmonster.util.concurrent.Codec;
+import org.joyfulmonster.util.concurrent.Codecs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Streams the entries of a map bucket by bucket through a direct ByteBuffer.
+ *
+ * The stream layout is:
+ *
+ * 1. a header of MAGIC, then the size of the map as a varint, used by the reader to pre-size the new map.
+ * 2. one block per non-empty bucket: the entry count as a varint, followed by the encoded key and value of every entry.
+ * 3. a block count of 0 that ends the stream.
+ *
+ * The entries of a bucket are copied under the bucket lock and encoded after the lock is released, so writing is
+ * consistent per bucket and weakly consistent across buckets, like the iterators of java.util.concurrent.  Deadlines
+ * of expiring entries are not written, the reader stores plain entries.
+ *
+ * Created by Weifeng Bao on 1/21/2016.
+ */
+class MapSerializer {
+    /** "EHM" and the format version */
+    private static final int MAGIC = 0x45484D01;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** the fixed width header word */
+    private static final Codec<Integer> INT32 = new Codec<Integer>() {
+        @Override
+        public void encode(Integer value, ByteBuffer out) {
+            out.putInt(value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer in) {
+            return in.getInt();
+        }
+    };
+
+    private ByteBuffer buffer;
+    /** the size of the map that was written, read from the header */
+    private int expectedSize;
+
+    private MapSerializer() {
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Write the entries of the map to the channel.
+     */
+    static <K, V> void write(BucketRouter directory, int size, WritableByteChannel channel,
+                             Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+        MapSerializer writer = new MapSerializer();
+        writer.encode(channel, INT32, MAGIC);
+        writer.encode(channel, Codecs.VARINT_LONG, (long) size);
+
+        /**
+         * The canonical slot of a bucket is its bucket index, visiting those of a snapshot of the directory array
+         * covers every hash prefix once.  A bucket split in the meantime is visited through its replacements.
+         */
+        List<HashEntry<K, V>> entries = new ArrayList<HashEntry<K, V>>();
+        for (Directory shard : directory.getShards()) {
+            AtomicReferenceArray<Bucket<?, ?>> snapshot = shard.get();
+            for (int i = 0; i < snapshot.length(); i++) {
+                Bucket<?, ?> bucket = snapshot.get(i);
+                if (bucket.getBucketIdx() == i) {
+                    writer.writePrefix(shard, i, bucket.getLocalDepth(), channel, keyCodec, valueCodec, entries);
+                }
+            }
+        }
+
+        writer.encode(channel, Codecs.VARINT_INT, 0);
+        writer.flush(channel);
+    }
+
+    /**
+     * Start reading a stream written by write(), the header is consumed.
+     */
+    static MapSerializer open(ReadableByteChannel channel) throws IOException {
+        MapSerializer reader = new MapSerializer();
+        reader.buffer.flip();
+        if (reader.decode(channel, INT32) != MAGIC) {
+            throw new StreamCorruptedException("not a map stream");
+        }
+        long size = reader.decode(channel, Codecs.VARINT_LONG);
+        reader.expectedSize = (int) Math.min(Math.max(size, 0L), ConcurrentElasticHashMapImpl.MAX_CAPACITY);
+        return reader;
+    }
+
+    int getExpectedSize() {
+        return expectedSize;
+    }
+
+    /**
+     * Put the entries of the stream into the map.
+     */
+    <K, V> void readInto(ReadableByteChannel channel, ConcurrentElasticHashMapImpl<K, V> map,
+                         Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+        int count;
+        while ((count = decode(channel, Codecs.VARINT_INT)) != 0) {
+            if (count < 0) {
+                throw new StreamCorruptedException("negative block size");
+            }
+            for (int i = 0; i < count; i++) {
+                K key = decode(channel, keyCodec);
+                V value = decode(channel, valueCodec);
+                if (key == null || value == null) {
+                    throw new StreamCorruptedException("null key or value");
+                }
+                map.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Write the entries whose hash has the low depth bits equal to prefix.
+     */
+    @SuppressWarnings("unchecked")
+    private <K, V> void writePrefix(Directory directory, int prefix, int depth, WritableByteChannel channel,
+                                    Codec<? super K> keyCodec, Codec<? super V> valueCodec,
+                                    List<HashEntry<K, V>> entries) throws IOException {
+        while (true) {
+            Bucket<K, V> bucket = directory.getBucket(prefix);
+            if (bucket.getLocalDepth() > depth) {
+                // split since the snapshot, buckets never merge, so the two halves cover the prefix
+                writePrefix(directory, prefix, depth + 1, channel, keyCodec, valueCodec, entries);
+                writePrefix(directory, prefix | (1 << depth), depth + 1, channel, keyCodec, valueCodec, entries);
+                return;
+            }
+            bucket.lock();
+            try {
+                if (bucket.isInvalid()) {
+                    continue;
+                }
+                bucket.collectEntries(entries);
+            } finally {
+                bucket.unlock();
+            }
+            break;
+        }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+        encode(channel, Codecs.VARINT_INT, entries.size());
+        for (HashEntry<K, V> entry : entries) {
+            encode(channel, keyCodec, entry.getKey());
+            encode(channel, valueCodec, entry.getValue());
+        }
+        entries.clear();
+    }
+
+    /**
+     * Encode into the buffer, flush it or grow it if the value does not fit.
+     */
+    private <T> void encode(WritableByteChannel channel, Codec<? super T> codec, T value) throws IOException {
+        while (true) {
+            int start = buffer.position();
+            try {
+                codec.encode(value, buffer);
+                return;
+            } catch (BufferOverflowException e) {
+                buffer.position(start);
+                if (start > 0) {
+                    flush(channel);
+                } else {
+                    // a single value larger than the buffer
+                    buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                }
+            }
+        }
+    }
+
+    private void flush(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Decode from the buffer, read more bytes or grow it if the buffer holds only part of the value.
+     */
+    private <T> T decode(ReadableByteChannel channel, Codec<? extends T> codec) throws IOException {
+        while (true) {
+            int start = buffer.position();
+            try {
+                return codec.decode(buffer);
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                fill(channel);
+            }
+        }
+    }
+
+    private void fill(ReadableByteChannel channel) throws IOException {
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            // a single value larger than the buffer
+            ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            throw new EOFException("unexpected end of map stream");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read only view of a map at the time of ConcurrentElasticHashMapImpl.snapshot().
+ *
+ * 1. The view keeps a copy of the directory array of every shard, the buckets themselves are shared with the map.  A
+ *    bucket referenced by a snapshot is never written again, writers replace it by a copy in the map, so reads need no
+ *    lock.
+ * 2. get() routes the key like the map does at the time of the snapshot: the shard by the upper half of the hash, the
+ *    bucket by its low bits.
+ * 3. Expiration goes on, an entry that expires after the snapshot disappears from it.  size() walks the buckets.
+ *
+ * Created by Weifeng Bao on 1/27/2016.
+ */
+class MapSnapshot<K, V> extends AbstractMap<K, V> {
+    /** the directory array of every shard */
+    private final Bucket<?, ?>[][] shards;
+    private final int shardMask;
+
+    MapSnapshot(Bucket<?, ?>[][] shards) {
+        this.shards = shards;
+        this.shardMask = shards.length - 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        long hashCode = HashStrategy.getInstance().hash(key);
+        Bucket<?, ?>[] buckets = shards[(int) (hashCode >>> 32) & shardMask];
+        Bucket<K, V> bucket = (Bucket<K, V>) buckets[(int) hashCode & (buckets.length - 1)];
+        return bucket.get((K) key, hashCode);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Iterator<Map.Entry<K, V>> it = iterator(); it.hasNext(); it.next()) {
+                    size++;
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Walks the canonical buckets of every shard, one bucket at a time.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private int shard;
+        private int bucketIdx;
+        /** the entries of the current bucket */
+        private final List<HashEntry<K, V>> entries = new ArrayList<HashEntry<K, V>>();
+        private int entryIdx;
+
+        @Override
+        public boolean hasNext() {
+            while (entryIdx >= entries.size()) {
+                if (!nextBucket()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.get(entryIdx++);
+        }
+
+        /**
+         * Load the entries of the next bucket at its own index.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean nextBucket() {
+            entries.clear();
+            entryIdx = 0;
+            while (shard < shards.length) {
+                Bucket<?, ?>[] buckets = shards[shard];
+                while (bucketIdx < buckets.length) {
+                    int i = bucketIdx++;
+                    if (buckets[i].getBucketIdx() == i) {
+                        ((Bucket<K, V>) buckets[i]).collectEntries(entries);
+                        return true;
+                    }
+                }
+                shard++;
+                bucketIdx = 0;
+            }
+            return false;
+        }
+    }
+}
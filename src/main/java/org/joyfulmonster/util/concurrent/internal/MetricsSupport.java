@@ -18,8 +18,24 @@ public interface MetricsSupport {
      */
     int getBucketCount();
 
+    /**
+     * Metric that tracks how many entries were evicted from a bounded map.
+     * @return
+     */
+    long totalEvictions();
+
     /**
      * Metric that indicate the greatest difference of bucket counts among buckets.
      */
     int getMaxBucketCountDifference();
+
+    /**
+     * Metric that tracks how many slots the buckets allocated, the memory footprint of the map.
+     */
+    long getSlotCount();
+
+    /**
+     * Metric that tracks the most entries a bucket holds beyond its load threshold, 0 while every bucket is within it.
+     */
+    int getMaxBucketOverload();
 }
@@ -0,0 +1,362 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base of the buckets that keep their keys in slot arrays of their own instead of HashEntry objects: the
+ * CounterBucketImpl, the KeySetBucketImpl and the Utf8StringBucketImpl.
+ *
+ * 1. The subclass keeps the keys and what goes with them, this class the hash of every slot and the counts.  The
+ *    subclass tells what a slot holds through match(), the probing, the splits and the sizing are done here.
+ * 2. Collisions are resolved with linear probing, removed keys leave a TOMBSTONE so the probe chains stay intact.
+ * 3. Inserts and removes are done under the bucket lock.  The lock free writers of a subclass register in writers,
+ *    and spread() waits for them to drain after invalidating the bucket.
+ * 4. A full bucket is rebuilt, grown in place or split as BucketFactory.newBucketsFor() decides, the same way as a
+ *    LinearProbingBucketImpl.
+ *
+ * Created by Weifeng Bao on 1/29/2016.
+ */
+abstract class OpenAddressingBucket<K, V> implements Bucket<K, V>, BucketMetricsSupport {
+    /** match(): the slot was never used */
+    static final int SLOT_EMPTY = 0;
+    /** match(): the key of the slot was removed */
+    static final int SLOT_DEAD = 1;
+    /** match(): the slot holds another key */
+    static final int SLOT_OTHER = 2;
+    /** match(): the slot holds the key */
+    static final int SLOT_MATCH = 3;
+
+    /** localDepth of the bucket */
+    final int localDepth;
+    /** the bucketID */
+    final int bucketID;
+    /** The mask for calculating bucketIndex */
+    private final int bucketIDMask;
+    /** The number of slots of this bucket */
+    final int bucketSize;
+    /** the upper limit of the entryCount before the bucket needs to be split */
+    final int loadThreshold;
+
+    /** the number of keys in this bucket, only modified under the bucket lock */
+    volatile int entryCount;
+    /** the number of TOMBSTONE slots, only modified under the bucket lock */
+    int tombstoneCount;
+    /** the flag indicate whether this bucket is being split, and so this bucket will be abandoned */
+    volatile boolean valid;
+
+    /** the hash of the key of every slot, written before the key is published */
+    final long[] hashes;
+
+    /** Bucket level lock */
+    final ReentrantLock lock;
+    /** the number of lock free writes in flight, spread() waits for them to drain */
+    final AtomicInteger writers;
+    /** The reference variable to the global entry count */
+    final AtomicLong totalEntryCount;
+    /** The reference to the Directory object */
+    Directory directory;
+
+    /**
+     * Helper class to do linear probing collision resolution.
+     */
+    class LinearProber {
+        int theIdx;
+        /** the first TOMBSTONE on the probe chain, -1 if none */
+        int reusableIdx;
+        /** whether theIdx holds the key, otherwise it is the never used slot that ended the probe */
+        private boolean found;
+
+        void probe(Object key, long hashCode) {
+            int slotIndex = findSlotIndex(hashCode);
+
+            theIdx = slotIndex;
+            reusableIdx = -1;
+            while (true) {
+                int slot = match(theIdx, key, hashCode);
+                if (slot == SLOT_EMPTY || slot == SLOT_MATCH) {
+                    found = (slot == SLOT_MATCH);
+                    return;
+                }
+                if (slot == SLOT_DEAD && reusableIdx < 0) {
+                    reusableIdx = theIdx;
+                }
+                theIdx = nextSlot(theIdx);
+                if (theIdx == slotIndex) {
+                    // it should not happen, since we use a threshold value to guide the bucket not too full.
+                    throw new BucketOverflowError();
+                }
+            }
+        }
+
+        boolean found() {
+            return found;
+        }
+    }
+
+    /**
+     *
+     * @param localDepth   localDepth of the bucket
+     * @param bucketID
+     * @param bucketSize   the number of slots
+     * @param loadFactor
+     * @param totalEntryCount
+     */
+    OpenAddressingBucket(int localDepth, int bucketID, int bucketSize, float loadFactor, AtomicLong totalEntryCount) {
+        this.bucketSize = bucketSize;
+        this.localDepth = localDepth;
+        this.bucketID = bucketID;
+        this.bucketIDMask = (1 << localDepth) - 1;
+
+        this.lock = new ReentrantLock(true);
+        this.writers = new AtomicInteger(0);
+        this.loadThreshold = (int) (((float) bucketSize) * loadFactor);
+
+        this.entryCount = 0;
+        this.valid = true;
+
+        this.totalEntryCount = totalEntryCount;
+        this.hashes = new long[bucketSize];
+    }
+
+    /**
+     * Help method that links the bucket back to the Directory
+     *
+     * @param directory
+     */
+    public OpenAddressingBucket<K, V> directory(Directory directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * What the slot holds for the probe of the key, read with one volatile read of the slot.
+     *
+     * @return SLOT_EMPTY, SLOT_DEAD, SLOT_OTHER or SLOT_MATCH
+     */
+    abstract int match(int idx, Object key, long hashCode);
+
+    /**
+     * Whether the slot holds a key, neither never used nor a TOMBSTONE.
+     */
+    abstract boolean isLive(int idx);
+
+    /**
+     * Copy the key of the slot into the new bucket, called by spread() before the new bucket is visible.
+     */
+    abstract void transferSlot(int idx, OpenAddressingBucket<K, V> target);
+
+    @Override
+    public int getBucketIdx() {
+        return bucketID;
+    }
+
+    @Override
+    public int getLocalDepth() {
+        return localDepth;
+    }
+
+    /**
+     * The slot after idx, the probes wrap around at the end of the bucket.
+     */
+    final int nextSlot(int idx) {
+        idx++;
+        return (idx >= bucketSize) ? 0 : idx;
+    }
+
+    /**
+     * The never used slot a key of another bucket moves into, the key is known to be absent and the bucket has no
+     * TOMBSTONE yet.
+     */
+    final int freeSlot(long hashCode) {
+        int theIdx = findSlotIndex(hashCode);
+        while (isLive(theIdx)) {
+            theIdx = nextSlot(theIdx);
+        }
+        return theIdx;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public HashEntry<K, V> getEntry(K key, long hashCode) {
+        V value = get(key, hashCode);
+        return (value == null) ? null : new HashEntry<K, V>(key, value, hashCode);
+    }
+
+    /**
+     * Nothing expires in these buckets.
+     */
+    @Override
+    public void expire(List<ExpiringHashEntry<K, V>> expired, long now, List<ExpiringHashEntry<K, V>> stillLive) {
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public V splitAndPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        Bucket<K, V>[] newBuckets = spread(false);
+
+        V result = null;
+        boolean handled = false;
+        for (Bucket<K, V> newBucket : newBuckets) {
+            if (newBucket.canHandle(hashCode)) {
+                result = newBucket.put(key, value, hashCode, replaceIfPresent, ttlNanos);
+                handled = true;
+                break;
+            }
+        }
+        if (!handled) {
+            // it should not happen
+            throw new IllegalStateException("bucketIdxBits conflict during segment split");
+        }
+        register(newBuckets);
+        return result;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public boolean split(boolean grow) {
+        Bucket<K, V>[] newBuckets = spread(grow);
+        register(newBuckets);
+        return newBuckets.length == 2;
+    }
+
+    /**
+     * Abandon this bucket and copy its keys into new buckets, which are not visible yet.  TOMBSTONEs are left behind.
+     *
+     * @param grow  split even if dropping the TOMBSTONEs would free enough space
+     * @return  two buckets one level deeper, or one bucket at the same depth if the bucket is rebuilt or grown
+     */
+    private Bucket<K, V>[] spread(boolean grow) {
+        /* this bucket will be abandoned, so it should not set the flag back to allow access */
+        disallowAccess();
+        /* wait for the lock free writes that passed the valid check before the flag was cleared */
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
+
+        int upperCount = 0;
+        int newBucketID = 1 << localDepth;
+        for (int i = 0; i < bucketSize; i++) {
+            if (isLive(i) && (hashes[i] & newBucketID) != 0) {
+                upperCount++;
+            }
+        }
+        boolean rebuild = !grow && entryCount < loadThreshold - (loadThreshold >>> 2);
+        Bucket<K, V>[] newBuckets = directory.getBucketFactory().newBucketsFor(localDepth, bucketID, bucketSize, rebuild,
+                grow, entryCount - upperCount, upperCount, 0);
+
+        for (int i = 0; i < bucketSize; i++) {
+            if (!isLive(i)) {
+                continue;
+            }
+            Bucket<K, V> target = newBuckets[0].canHandle(hashes[i]) ? newBuckets[0] : newBuckets[1];
+            transferSlot(i, (OpenAddressingBucket<K, V>) target);
+        }
+        return newBuckets;
+    }
+
+    /**
+     * Make the new buckets visible through the directory.
+     */
+    private void register(Bucket<K, V>[] newBuckets) {
+        if (newBuckets.length == 1) {
+            directory.onReplace(this, newBuckets[0]);
+        } else {
+            directory.onSplit(this, newBuckets);
+        }
+    }
+
+    /**
+     * Inserts are done under the lock.
+     */
+    @Override
+    public Object tryPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        return RETRY;
+    }
+
+    /**
+     * Check if this bucket still have enough space.  TOMBSTONEs occupy slots until they are reused or the bucket is
+     * rebuilt.
+     */
+    @Override
+    public boolean hasMoreSpace() {
+        return entryCount + tombstoneCount < loadThreshold;
+    }
+
+    @Override
+    public boolean isInvalid() {
+        return !valid;
+    }
+
+    /**
+     * Snapshots are not taken of these buckets.
+     */
+    @Override
+    public boolean prepareWrite() {
+        return valid;
+    }
+
+    /**
+     * set the flag that the bucket needs to be split
+     */
+    public void disallowAccess() {
+        valid = false;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public boolean canHandle(long hashCode) {
+        return ((int) hashCode & bucketIDMask) == bucketID;
+    }
+
+    /**
+     * Map the hashCode to the entryIndex within the bucket.
+     * @param hashCode
+     * @return
+     */
+    final int findSlotIndex(long hashCode) {
+        // the low bits index the directory, scale the high 32 bits to [0, bucketSize) with a multiply
+        return (int) (((hashCode >>> 32) * bucketSize) >>> 32);
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketEntries() {
+        return entryCount;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketCapacity() {
+        return bucketSize;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketLoadThreshold() {
+        return loadThreshold;
+    }
+}
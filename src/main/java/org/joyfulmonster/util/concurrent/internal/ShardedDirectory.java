@@ -0,0 +1,55 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+/**
+ * A BucketRouter that splits the hash space over independent DirectoryImpl shards.
+ *
+ * 1. A key is routed to a shard by the low bits of the upper half of its hash.  The shard indexes its buckets with
+ *    the low bits of the hash and a bucket places the key with the highest bits, so the three never share a bit.
+ * 2. Every shard has its own lock, its own depth and its own bucket count.  A split or a doubling locks the shard of
+ *    the bucket only, splits in the other shards go on in parallel.
+ * 3. The buckets are linked to their shard, which they notify of splits and rebuilds.  The sharded directory itself
+ *    only routes, the bucket array, the epoch and the BucketFactory are those of the shards.
+ *
+ * Created by Weifeng Bao on 1/26/2016.
+ */
+class ShardedDirectory implements BucketRouter {
+    private final Directory[] shards;
+    private final int shardMask;
+
+    /**
+     * @param shards  a power of 2 number of shards
+     */
+    ShardedDirectory(Directory[] shards) {
+        this.shards = shards;
+        this.shardMask = shards.length - 1;
+    }
+
+    /**
+     * The shard of a hash.
+     *
+     * @param hashCode
+     * @return
+     */
+    private int shardOf(long hashCode) {
+        return (int) (hashCode >>> 32) & shardMask;
+    }
+
+    @Override
+    public int getBucketCount() {
+        int bucketCount = 0;
+        for (Directory shard : shards) {
+            bucketCount += shard.getBucketCount();
+        }
+        return bucketCount;
+    }
+
+    @Override
+    public <K, V> Bucket<K, V> getBucket(long hashCode) {
+        return shards[shardOf(hashCode)].getBucket(hashCode);
+    }
+
+    @Override
+    public Directory[] getShards() {
+        return shards.clone();
+    }
+}
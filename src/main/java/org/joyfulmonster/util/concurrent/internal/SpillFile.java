@@ -0,0 +1,235 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import org.joyfulmonster.util.concurrent.Codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The memory mapped file that holds the cold buckets of a tiered map, see SpilledBucketImpl.
+ *
+ * 1. The file is scratch space: it is truncated when the map is created.  It is mapped in chunks of CHUNK_SIZE bytes,
+ *    a bucket is written into a region of a chunk and reads its entries back through a slice of the mapping, without
+ *    a system call.
+ * 2. The regions have power of 2 sizes, at least MIN_REGION bytes.  The region of a bucket that was paged in is freed
+ *    once no reader holds its stub, see SpilledBucketImpl.publish(), and is reused by the next bucket of its size, so
+ *    repeated spills and page ins keep the file at the size of the spilled buckets.  The region of a stub that a
+ *    snapshot may read is never freed.
+ * 3. Every entry is written as the 64 bit hash, the length of the encoded key and value, then the key and the value
+ *    encoded by the codecs of the map.  A lookup compares the hashes and skips over the other entries, it only decodes
+ *    the key of a matching hash.
+ *
+ * Created by Weifeng Bao on 1/28/2016.
+ */
+class SpillFile<K, V> {
+    /** the bytes mapped at once, a larger bucket gets a mapping of its own */
+    static final int CHUNK_SIZE = 1 << 24;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    /** the smallest region, the size of a few entries */
+    private static final int MIN_REGION = 1 << 6;
+    private static final String CLOSED_MSG = "The spill file is closed.";
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    /** the mapping being filled, only modified while holding the monitor */
+    private ByteBuffer chunk;
+    /** the end of the mapped part of the file */
+    private long mappedEnd;
+    /** the bytes of the bucket being spilled */
+    private ByteBuffer buffer;
+    /** the free regions by the log2 of their size, only modified while holding the monitor */
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>();
+
+    SpillFile(File file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.channel.truncate(0L);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        for (int i = 0; i < Integer.SIZE; i++) {
+            free.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Write the entries of a bucket to the file.  Called under the lock of the bucket.
+     *
+     * @param localDepth
+     * @param bucketID
+     * @param entries  the live entries of the bucket
+     * @param directory  the directory of the bucket
+     * @return the stub that takes the place of the bucket, not registered yet
+     */
+    synchronized SpilledBucketImpl<K, V> spill(int localDepth, int bucketID, List<HashEntry<K, V>> entries,
+                                               Directory directory) throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException(CLOSED_MSG);
+        }
+        buffer.clear();
+        long[] hashes = new long[entries.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            HashEntry<K, V> entry = entries.get(i);
+            encode(entry);
+            hashes[i] = entry.getKeyHashCode();
+        }
+        buffer.flip();
+        ByteBuffer block = allocate(buffer.remaining());
+        ByteBuffer region = block.slice();
+        region.limit(buffer.remaining());
+        region.duplicate().put(buffer);
+        return new SpilledBucketImpl<K, V>(localDepth, bucketID, region.asReadOnlyBuffer(), block, hashes, this,
+                directory);
+    }
+
+    /**
+     * Give back the region of a bucket that was paged in, no reader may hold its stub anymore.
+     *
+     * @param block  the region as allocated, see allocate()
+     */
+    synchronized void free(ByteBuffer block) {
+        if (channel.isOpen()) {
+            free.get(log2(block.capacity())).push(block);
+        }
+    }
+
+    /**
+     * Close the file.  The spilled buckets stay readable through their mappings, which are released once the buckets
+     * are paged in or the map is garbage collected, but no bucket is spilled anymore.
+     *
+     * @throws IOException if the file can not be closed
+     */
+    synchronized void close() throws IOException {
+        for (ArrayDeque<ByteBuffer> regions : free) {
+            regions.clear();
+        }
+        chunk = null;
+        file.close();
+    }
+
+    /**
+     * Encode one entry, grow the buffer if it does not fit.
+     */
+    private void encode(HashEntry<K, V> entry) {
+        while (true) {
+            int start = buffer.position();
+            try {
+                buffer.putLong(entry.getKeyHashCode());
+                int lengthAt = buffer.position();
+                buffer.putInt(0);
+                keyCodec.encode(entry.getKey(), buffer);
+                valueCodec.encode(entry.getValue(), buffer);
+                buffer.putInt(lengthAt, buffer.position() - lengthAt - 4);
+                return;
+            } catch (BufferOverflowException e) {
+                buffer.position(start);
+                buffer.flip();
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Find a region for the bytes: a free one of their size, else the next one of the current chunk.  A chunk too
+     * short for the region is mapped past the end of the file, the rest of the current one is freed in regions.
+     *
+     * @return a slice of the mapping, its capacity is the size of the region
+     */
+    private ByteBuffer allocate(int length) throws IOException {
+        int log2 = log2(Math.max(MIN_REGION, length));
+        ByteBuffer block = free.get(log2).poll();
+        if (block != null) {
+            return block;
+        }
+        int size = 1 << log2;
+        if (chunk == null || chunk.remaining() < size) {
+            if (chunk != null) {
+                // every chunk offset is a multiple of MIN_REGION, the rest is a sum of power of 2 regions
+                while (chunk.remaining() >= MIN_REGION) {
+                    free.get(log2(Integer.highestOneBit(chunk.remaining()))).push(slice(Integer.highestOneBit(
+                            chunk.remaining())));
+                }
+            }
+            int mapped = Math.max(CHUNK_SIZE, size);
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, mappedEnd, mapped);
+            mappedEnd += mapped;
+        }
+        return slice(size);
+    }
+
+    /**
+     * Cut a region from the start of the current chunk.
+     */
+    private ByteBuffer slice(int size) {
+        ByteBuffer block = chunk.slice();
+        block.limit(size);
+        chunk.position(chunk.position() + size);
+        return block.slice();
+    }
+
+    /**
+     * The log2 of the smallest power of 2 not less than the length.
+     */
+    private static int log2(int length) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    /**
+     * Decode every entry of a spilled bucket.
+     *
+     * @param region  the bytes of the bucket
+     * @param out
+     */
+    void read(ByteBuffer region, List<HashEntry<K, V>> out) {
+        ByteBuffer in = region.duplicate();
+        while (in.hasRemaining()) {
+            long hashCode = in.getLong();
+            in.getInt();
+            K key = keyCodec.decode(in);
+            V value = valueCodec.decode(in);
+            out.add(new HashEntry<K, V>(key, value, hashCode));
+        }
+    }
+
+    /**
+     * Find the value of a key in a spilled bucket.
+     *
+     * @param region  the bytes of the bucket
+     * @param key
+     * @param hashCode
+     * @return the value, null if the key is absent
+     */
+    V lookup(ByteBuffer region, K key, long hashCode) {
+        ByteBuffer in = region.duplicate();
+        while (in.hasRemaining()) {
+            long entryHash = in.getLong();
+            int length = in.getInt();
+            int next = in.position() + length;
+            if (entryHash == hashCode && key.equals(keyCodec.decode(in))) {
+                return valueCodec.decode(in);
+            }
+            in.position(next);
+        }
+        return null;
+    }
+
+    /**
+     * The entries of a spilled bucket, in a list sized for them.
+     */
+    List<HashEntry<K, V>> read(ByteBuffer region, int entryCount) {
+        List<HashEntry<K, V>> entries = new ArrayList<HashEntry<K, V>>(entryCount);
+        read(region, entries);
+        return entries;
+    }
+}
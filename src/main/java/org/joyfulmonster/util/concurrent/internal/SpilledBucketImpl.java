@@ -0,0 +1,297 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The stub that takes the place of a cold bucket in the Directory, while its entries live in the SpillFile.
+ *
+ * 1. The stub keeps a Bloom filter of the hashes of its keys, a few bytes per entry.  A get() of a key that the
+ *    filter rules out returns null without reading the file.
+ * 2. Any other get() pages the bucket in: the entries are decoded into a new LinearProbingBucketImpl of the same depth,
+ *    which replaces the stub in the Directory.  The value is read from the new bucket before it is published, so a
+ *    snapshot that reads the stub never sees a later write.
+ * 3. The writers lock the stub, prepareWrite() pages the bucket in and they retry against the new bucket, like they
+ *    do after a split.  The lock free writers retry under the lock.  The other write methods are never called.
+ * 4. A stub that was paged in is still read by the threads that hold it, until its region of the file is freed for
+ *    the next spills, see publish().  The readers of the file announce themselves in readers, a reader that comes
+ *    after the region was released reads the bucket that replaced the stub instead.  The region of a stub that a
+ *    snapshot may read is never freed.
+ *
+ * Created by Weifeng Bao on 1/28/2016.
+ */
+class SpilledBucketImpl<K, V> implements Bucket<K, V>, BucketMetricsSupport {
+    private static final String PAGED_OUT_MSG = "A spilled bucket must be paged in before it is written.";
+    /** the bits of the Bloom filter per entry, rounded up to a power of 2 */
+    private static final int BLOOM_BITS_PER_ENTRY = 16;
+    private static final int BLOOM_HASHES = 4;
+
+    private final int localDepth;
+    private final int bucketID;
+    private final int bucketIDMask;
+    private final int entryCount;
+    /** the bytes of the entries in the spill file */
+    private final ByteBuffer region;
+    /** the region as allocated by the spill file, given back once the bucket is paged in */
+    private final ByteBuffer block;
+    /** the Bloom filter of the hashes of the keys */
+    private final long[] bloom;
+    private final int bloomMask;
+    private final SpillFile<K, V> spillFile;
+    private final Directory directory;
+    private final ReentrantLock lock;
+    /** the snapshot epoch of the directory when the stub was created */
+    private final int epoch;
+    /** cleared once the bucket is paged in */
+    private volatile boolean valid;
+    /** the readers of the region after the bucket was paged in */
+    private final AtomicInteger readers = new AtomicInteger();
+    /** set once the region may be reused, the readers go to the directory instead */
+    private volatile boolean released;
+
+    SpilledBucketImpl(int localDepth, int bucketID, ByteBuffer region, ByteBuffer block, long[] hashes,
+                      SpillFile<K, V> spillFile, Directory directory) {
+        this.localDepth = localDepth;
+        this.bucketID = bucketID;
+        this.bucketIDMask = (1 << localDepth) - 1;
+        this.entryCount = hashes.length;
+        this.region = region;
+        this.block = block;
+        this.epoch = directory.getEpoch();
+        this.spillFile = spillFile;
+        this.directory = directory;
+        this.lock = new ReentrantLock();
+        int bits = Long.SIZE;
+        while (bits < hashes.length * BLOOM_BITS_PER_ENTRY) {
+            bits <<= 1;
+        }
+        this.bloom = new long[bits / Long.SIZE];
+        this.bloomMask = bits - 1;
+        for (long hashCode : hashes) {
+            long h = mix(hashCode);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = bloomBit(h, i);
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+        this.valid = true;
+    }
+
+    /**
+     * The keys of a bucket share the low bits of their hashes, the filter hashes all the bits again.
+     */
+    private static long mix(long hashCode) {
+        return hashCode * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * The i-th bit of a key, by double hashing the two halves of the mixed hash.
+     */
+    private int bloomBit(long h, int i) {
+        return ((int) (h >>> 32) + i * ((int) h | 1)) & bloomMask;
+    }
+
+    /**
+     * Whether the key may be in the bucket, false means it is not.
+     */
+    private boolean mightContain(long hashCode) {
+        long h = mix(hashCode);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(h, i);
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the entries into a new bucket of the same depth, not visible yet.
+     */
+    private Bucket<K, V> load() {
+        BucketFactory factory = directory.getBucketFactory();
+        Bucket<K, V> bucket = factory.newBucket(localDepth, bucketID, factory.capacityToHold(localDepth, entryCount));
+        for (HashEntry<K, V> entry : spillFile.read(region, entryCount)) {
+            bucket.transferEntry(entry, false);
+        }
+        return bucket;
+    }
+
+    /**
+     * Replace the stub by the loaded bucket in the Directory, called under the lock.  The region is freed unless a
+     * snapshot was taken since the stub was created, no snapshot is taken while the lock is held.
+     */
+    private void publish(Bucket<K, V> bucket) {
+        valid = false;
+        directory.onReplace(this, bucket);
+        if (epoch == directory.getEpoch()) {
+            released = true;
+            while (readers.get() != 0) {
+                Thread.yield();
+            }
+            spillFile.free(block);
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key, long hashCode) {
+        if (!mightContain(hashCode)) {
+            return null;
+        }
+        lock.lock();
+        try {
+            if (valid) {
+                Bucket<K, V> bucket = load();
+                V result = bucket.get(key, hashCode);
+                publish(bucket);
+                return result;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // paged in by another thread, the stub still holds the entries of the time it was replaced
+        readers.incrementAndGet();
+        try {
+            if (!released) {
+                return spillFile.lookup(region, key, hashCode);
+            }
+        } finally {
+            readers.decrementAndGet();
+        }
+        // the region may hold another bucket already, read the one that replaced the stub
+        Bucket<K, V> bucket = directory.getBucket(hashCode);
+        return bucket.get(key, hashCode);
+    }
+
+    /**
+     * The bucket is paged in, the writer retries against it.
+     */
+    @Override
+    public boolean prepareWrite() {
+        if (valid) {
+            publish(load());
+        }
+        return false;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void collectEntries(List<HashEntry<K, V>> out) {
+        spillFile.read(region, out);
+    }
+
+    /**
+     * The lock free writers retry under the lock.
+     */
+    @Override
+    public Object replace(K key, long hashCode, V oldValue, V newValue, long ttlNanos) {
+        return RETRY;
+    }
+
+    @Override
+    public Object tryPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        return RETRY;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public int getBucketIdx() {
+        return bucketID;
+    }
+
+    @Override
+    public int getLocalDepth() {
+        return localDepth;
+    }
+
+    @Override
+    public boolean isInvalid() {
+        return !valid;
+    }
+
+    @Override
+    public boolean canHandle(long hashCode) {
+        return ((int) hashCode & bucketIDMask) == bucketID;
+    }
+
+    @Override
+    public boolean hasMoreSpace() {
+        return false;
+    }
+
+    @Override
+    public V put(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public V splitAndPut(K key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public boolean split(boolean grow) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public HashEntry<K, V> getEntry(K key, long hashCode) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public void transferEntry(HashEntry<K, V> entry, boolean referenced) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public void expire(List<ExpiringHashEntry<K, V>> expired, long now, List<ExpiringHashEntry<K, V>> stillLive) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    @Override
+    public V remove(K key, long hashValue, V value) {
+        throw new IllegalStateException(PAGED_OUT_MSG);
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public int getBucketEntries() {
+        return entryCount;
+    }
+
+    /**
+     * A spilled bucket takes no slots on the heap.
+     */
+    @Override
+    public int getBucketCapacity() {
+        return 0;
+    }
+
+    /**
+     * The entries of a spilled bucket are in the file, it has no threshold until it is paged in.
+     */
+    @Override
+    public int getBucketLoadThreshold() {
+        return Integer.MAX_VALUE;
+    }
+}
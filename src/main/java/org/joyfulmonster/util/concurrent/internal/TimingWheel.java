@@ -0,0 +1,156 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hierarchical timing wheel that tracks ExpiringHashEntry deadlines.
+ *
+ * 1. Any thread may schedule an entry, scheduled entries are pushed onto a lock-free pending stack.
+ * 2. A single owner thread calls advance(), which drains the pending stack into the wheels and returns the entries
+ *    whose deadline has been reached.
+ * 3. The wheel has LEVELS levels of WHEEL_SIZE slots.  Level 0 slots are one tick wide, each higher level slot covers a
+ *    full turn of the level below.  When a lower level wraps, the matching slot of the higher level is cascaded down.
+ *
+ * Scheduling and firing an entry is O(1), so the expiration cost is proportional to the number of expired entries
+ * instead of the size of the map.
+ *
+ * Created by Weifeng Bao on 1/18/2016.
+ */
+class TimingWheel<K, V> {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 5;
+
+    /** the width of a level 0 slot */
+    private final long tickNanos;
+    /** the System.nanoTime() that maps to tick 0 */
+    private final long origin;
+    /** slot heads, wheels[level][slot] */
+    private final ExpiringHashEntry<K, V>[][] wheels;
+    /** entries scheduled by other threads but not yet placed into a slot */
+    private final AtomicReference<ExpiringHashEntry<K, V>> pending;
+
+    /** the last tick processed, only touched by the owner thread */
+    private long currentTick;
+    /** the number of entries placed in the slots, only touched by the owner thread */
+    private int scheduled;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long tickNanos, long origin) {
+        this.tickNanos = tickNanos;
+        this.origin = origin;
+        this.wheels = new ExpiringHashEntry[LEVELS][WHEEL_SIZE];
+        this.pending = new AtomicReference<ExpiringHashEntry<K, V>>();
+        this.currentTick = 0L;
+    }
+
+    /**
+     * Schedule the entry, thread safe.
+     *
+     * @param entry
+     */
+    void schedule(ExpiringHashEntry<K, V> entry) {
+        ExpiringHashEntry<K, V> head;
+        do {
+            head = pending.get();
+            entry.next = head;
+        } while (!pending.compareAndSet(head, entry));
+    }
+
+    /**
+     * Put back an entry returned by advance() whose deadline moved in the meantime.  Owner thread only.
+     *
+     * @param entry
+     * @param fired receives the entry if its deadline has already been reached
+     */
+    void reschedule(ExpiringHashEntry<K, V> entry, List<ExpiringHashEntry<K, V>> fired) {
+        place(entry, fired);
+    }
+
+    /**
+     * Move the wheel up to now.  Owner thread only.
+     *
+     * @param now   current System.nanoTime()
+     * @param fired receives the entries whose deadline has been reached
+     */
+    void advance(long now, List<ExpiringHashEntry<K, V>> fired) {
+        long targetTick = (now - origin) / tickNanos;
+        if (scheduled == 0) {
+            // nothing to cascade or fire, jump straight to the target
+            currentTick = Math.max(currentTick, targetTick);
+        }
+
+        ExpiringHashEntry<K, V> entry = pending.getAndSet(null);
+        while (entry != null) {
+            ExpiringHashEntry<K, V> next = entry.next;
+            place(entry, fired);
+            entry = next;
+        }
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // cascade the higher levels whose lower levels just wrapped, highest first
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--) {
+                int slot = (int) ((currentTick >>> (WHEEL_BITS * l)) & WHEEL_MASK);
+                ExpiringHashEntry<K, V> cascaded = takeSlot(l, slot);
+                while (cascaded != null) {
+                    ExpiringHashEntry<K, V> next = cascaded.next;
+                    place(cascaded, fired);
+                    cascaded = next;
+                }
+            }
+
+            ExpiringHashEntry<K, V> expired = takeSlot(0, (int) (currentTick & WHEEL_MASK));
+            while (expired != null) {
+                ExpiringHashEntry<K, V> next = expired.next;
+                expired.next = null;
+                fired.add(expired);
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * Place the entry into the slot that matches its deadline.
+     *
+     * The level is picked from the highest group of WHEEL_BITS bits in which the deadline tick differs from the
+     * current tick.  Deadlines beyond the top level are parked in the top level slot visited last, so they are
+     * re-examined once per turn of the top level.
+     */
+    private void place(ExpiringHashEntry<K, V> entry, List<ExpiringHashEntry<K, V>> fired) {
+        long deadlineTick = (entry.getExpireAt() - origin + tickNanos - 1) / tickNanos;
+        if (deadlineTick <= currentTick) {
+            entry.next = null;
+            fired.add(entry);
+            return;
+        }
+
+        int level = (63 - Long.numberOfLeadingZeros(deadlineTick ^ currentTick)) / WHEEL_BITS;
+        int slot;
+        if (level < LEVELS) {
+            slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        } else {
+            level = LEVELS - 1;
+            slot = (int) (((currentTick >>> (WHEEL_BITS * level)) - 1) & WHEEL_MASK);
+        }
+        entry.next = wheels[level][slot];
+        wheels[level][slot] = entry;
+        scheduled++;
+    }
+
+    private ExpiringHashEntry<K, V> takeSlot(int level, int slot) {
+        ExpiringHashEntry<K, V> head = wheels[level][slot];
+        wheels[level][slot] = null;
+        for (ExpiringHashEntry<K, V> e = head; e != null; e = e.next) {
+            scheduled--;
+        }
+        return head;
+    }
+}
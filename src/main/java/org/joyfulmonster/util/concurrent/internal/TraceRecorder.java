@@ -0,0 +1,257 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the operations of a map into a trace file, to replay the real traffic of a map offline against other
+ * configurations, see ConcurrentElasticHashMapImpl.startTrace().
+ *
+ * 1. An operation is recorded as two longs: the nanoseconds since the trace started shifted left by TYPE_BITS with
+ *    the type of the operation in the low bits, and the 64 bit hash of the key.  The keys and values themselves are
+ *    not recorded, keyOf() gives a key of the same hash for the replay.
+ * 2. Every thread records into a buffer of its own, BUFFER_RECORDS operations, which is written to the file as a block
+ *    when it is full and reused.  The buffer is only touched by its thread and takes no lock: close() sets closed,
+ *    waits for the adds that missed the flag and flushes the buffer in place of its thread.
+ * 3. The file starts with MAGIC and VERSION, then the blocks: the index of the recording thread, the number of
+ *    operations, and the operations.  The blocks of a thread are in the order of its operations.
+ * 4. A failed write drops the block, close() throws the failure.
+ *
+ * Created by Weifeng Bao on 1/31/2016.
+ */
+public class TraceRecorder {
+    public static final int GET = 0;
+    public static final int PUT = 1;
+    public static final int PUT_IF_ABSENT = 2;
+    public static final int REPLACE = 3;
+    public static final int REMOVE = 4;
+
+    private static final int TYPE_BITS = 8;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+    private static final int MAGIC = 0x43454854;
+    private static final int VERSION = 1;
+    /** the operations a thread buffers before they are written */
+    static final int BUFFER_RECORDS = 4096;
+    private static final String NOT_A_TRACE_MSG = "Not a trace file.";
+
+    private final FileChannel channel;
+    private final long startNanos;
+    private final List<Buffer> buffers = new ArrayList<Buffer>();
+    private final ThreadLocal<Buffer> threadBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            synchronized (buffers) {
+                Buffer buffer = new Buffer(buffers.size());
+                buffers.add(buffer);
+                return buffer;
+            }
+        }
+    };
+    private volatile boolean closed;
+    /** the first write that failed, only modified while holding the monitor of the channel */
+    private IOException failure;
+
+    /**
+     * @param file  the trace file, it is truncated
+     * @throws IOException if the file can not be opened
+     */
+    TraceRecorder(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.channel.truncate(0L);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Record an operation of the calling thread.
+     *
+     * @param type  GET, PUT, PUT_IF_ABSENT, REPLACE or REMOVE
+     * @param hashCode  the hash of the key
+     */
+    void record(int type, long hashCode) {
+        threadBuffer.get().add(((System.nanoTime() - startNanos) << TYPE_BITS) | type, hashCode);
+    }
+
+    /**
+     * Flush the buffers of all the threads and close the file.  The operations recorded afterwards are dropped.
+     *
+     * @throws IOException if a block could not be written
+     */
+    void close() throws IOException {
+        closed = true;
+        synchronized (buffers) {
+            for (Buffer buffer : buffers) {
+                buffer.handOff();
+            }
+        }
+        synchronized (channel) {
+            channel.close();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void write(int thread, long[] records, int count) {
+        ByteBuffer block = ByteBuffer.allocate(8 + count * 2 * 8);
+        block.putInt(thread).putInt(count);
+        block.asLongBuffer().put(records, 0, count * 2);
+        // the view filled the rest of the block without moving its position
+        block.rewind();
+        synchronized (channel) {
+            try {
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private final class Buffer {
+        private final int thread;
+        private final long[] records = new long[BUFFER_RECORDS * 2];
+        private int count;
+        /** set by the thread around an add, close() waits for it to clear before taking the buffer over */
+        private volatile boolean adding;
+
+        Buffer(int thread) {
+            this.thread = thread;
+        }
+
+        void add(long timeAndType, long hashCode) {
+            // announce the add before checking the flag, so close() either sees the add or the add sees closed
+            adding = true;
+            try {
+                if (closed) {
+                    return;
+                }
+                records[count * 2] = timeAndType;
+                records[count * 2 + 1] = hashCode;
+                if (++count == BUFFER_RECORDS) {
+                    flush();
+                }
+            } finally {
+                adding = false;
+            }
+        }
+
+        /**
+         * Called by close() once closed is set, the thread of the buffer does not add to it anymore.
+         */
+        void handOff() {
+            while (adding) {
+                Thread.yield();
+            }
+            flush();
+        }
+
+        void flush() {
+            if (count > 0) {
+                write(thread, records, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Read a trace file.
+     *
+     * @param file
+     * @return the operations of every recording thread, two longs per operation: see typeOf(), nanosOf() and the hash
+     * @throws IOException if the file can not be read or is not a trace
+     */
+    public static List<long[]> read(File file) throws IOException {
+        List<long[]> threads = new ArrayList<long[]>();
+        List<Integer> counts = new ArrayList<Integer>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(NOT_A_TRACE_MSG);
+            }
+            while (true) {
+                int thread;
+                try {
+                    thread = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int count = in.readInt();
+                if (thread < 0 || count < 0 || count > BUFFER_RECORDS) {
+                    throw new IOException(NOT_A_TRACE_MSG);
+                }
+                while (threads.size() <= thread) {
+                    threads.add(new long[BUFFER_RECORDS * 2]);
+                    counts.add(0);
+                }
+                long[] records = threads.get(thread);
+                int used = counts.get(thread);
+                if (records.length < (used + count) * 2) {
+                    records = Arrays.copyOf(records, Math.max(records.length * 2, (used + count) * 2));
+                    threads.set(thread, records);
+                }
+                for (int i = 0; i < count * 2; i++) {
+                    records[used * 2 + i] = in.readLong();
+                }
+                counts.set(thread, used + count);
+            }
+        } finally {
+            in.close();
+        }
+        for (int i = 0; i < threads.size(); i++) {
+            threads.set(i, Arrays.copyOf(threads.get(i), counts.get(i) * 2));
+        }
+        return threads;
+    }
+
+    /**
+     * The Long key whose hash is the given one under the Murmur3 HashStrategy, so a replayed key lands in the bucket
+     * and the slot of the recorded one.  The fmix64 finalizer the Murmur3Hash spreads a Long with is a bijection, its
+     * steps are reversed in the opposite order.
+     *
+     * @param hashCode  the hash of a recorded operation
+     * @return
+     */
+    public static Long keyOf(long hashCode) {
+        long h = hashCode;
+        h ^= h >>> 33;
+        h *= 0x774C83FF2126E5DBL;
+        h ^= h >>> 33;
+        h *= 0x4F74430C22A54005L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @param timeAndType  the first long of an operation
+     * @return the type of the operation
+     */
+    public static int typeOf(long timeAndType) {
+        return (int) timeAndType & TYPE_MASK;
+    }
+
+    /**
+     * @param timeAndType  the first long of an operation
+     * @return the nanoseconds between the start of the trace and the operation
+     */
+    public static long nanosOf(long timeAndType) {
+        return timeAndType >>> TYPE_BITS;
+    }
+}
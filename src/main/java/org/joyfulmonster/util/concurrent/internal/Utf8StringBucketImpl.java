@@ -0,0 +1,300 @@
+package org.joyfulmonster.util.concurrent.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bucket for String keys that keeps the keys as UTF-8 bytes instead of String and HashEntry objects.
+ *
+ * 1. The key bytes are appended to a per bucket byte arena.  A slot holds a key word, which packs the offset and the
+ *    length of the key bytes in the arena, the precomputed hash of the key, and the value.
+ * 2. Collisions are resolved with linear probing, removed keys leave a TOMBSTONE word so the probe chains stay intact.
+ * 3. Lookups compare the bytes of the arena with the probe key directly, an ASCII key is compared char by byte without
+ *    encoding it.
+ * 4. The arena is append-only, the bytes of removed keys are dropped when the bucket is split or rebuilt.  A split
+ *    copies the key bytes from arena to arena and reuses the stored hashes, no String is created.
+ * 5. Reads do not lock.  A key word is published after its bytes, hash and value, and since the arena never reuses an
+ *    offset, a reader validates the value it read by reading the key word again.
+ * 6. Replacing the value of a present key does not lock either, the value is swapped with a CAS.  A removed key takes
+ *    its value out with a CAS as well, and TOMBSTONE slots are not reused until the bucket is rebuilt, so a value
+ *    slot never goes back to a value a replace may still expect.
+ *
+ * The bucket holds plain mappings only, maps with compact String keys do not support expiration, bounds or loading.
+ *
+ * Created by Weifeng Bao on 1/22/2016.
+ */
+class Utf8StringBucketImpl<V> extends OpenAddressingBucket<String, V> {
+    /** the key word of a slot that was never used */
+    private static final long EMPTY = 0L;
+    /** the key word of a slot whose key was removed */
+    private static final long TOMBSTONE = -1L;
+    /** the initial arena size per slot, short keys fit without growing */
+    private static final int INITIAL_BYTES_PER_SLOT = 8;
+
+    /** key words: (offset + 1) in the high 32 bits, length in the low 32 bits, or EMPTY / TOMBSTONE */
+    private final AtomicLongArray keys;
+    /** the value of every slot */
+    private final AtomicReferenceArray<V> values;
+    /** the key bytes, replaced by a larger copy when full */
+    private volatile byte[] arena;
+    /** the used part of the arena, only modified under the bucket lock */
+    private int arenaUsed;
+
+    /**
+     *
+     * @param localDepth   localDepth of the bucket
+     * @param bucketID
+     * @param bucketSize   the number of slots
+     * @param loadFactor
+     * @param totalEntryCount
+     */
+    Utf8StringBucketImpl(int localDepth, int bucketID, int bucketSize, float loadFactor, AtomicLong totalEntryCount) {
+        super(localDepth, bucketID, bucketSize, loadFactor, totalEntryCount);
+        this.keys = new AtomicLongArray(bucketSize);
+        this.values = new AtomicReferenceArray<V>(bucketSize);
+        this.arena = new byte[bucketSize * INITIAL_BYTES_PER_SLOT];
+    }
+
+    @Override
+    int match(int idx, Object key, long hashCode) {
+        long keyWord = keys.get(idx);
+        if (keyWord == EMPTY) {
+            return SLOT_EMPTY;
+        }
+        if (keyWord == TOMBSTONE) {
+            return SLOT_DEAD;
+        }
+        return (hashes[idx] == hashCode && matches((String) key, keyWord)) ? SLOT_MATCH : SLOT_OTHER;
+    }
+
+    @Override
+    boolean isLive(int idx) {
+        long keyWord = keys.get(idx);
+        return keyWord != EMPTY && keyWord != TOMBSTONE;
+    }
+
+    /**
+     * Copy the key bytes from arena to arena and reuse the stored hash, no String is created.
+     */
+    @Override
+    void transferSlot(int idx, OpenAddressingBucket<String, V> target) {
+        long keyWord = keys.get(idx);
+        ((Utf8StringBucketImpl<V>) target).transferKey(hashes[idx], arena, keyOffset(keyWord), keyLength(keyWord),
+                values.get(idx));
+    }
+
+    /**
+     * Put the entry into the bucket.  Keys do not expire, ttlNanos is ignored.
+     * This method is running inside a lock.
+     */
+    @Override
+    public V put(String key, V value, long hashCode, boolean replaceIfPresent, long ttlNanos) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+
+        if (prober.found()) {
+            // lock free replaces may swap the value concurrently
+            return replaceIfPresent ? values.getAndSet(prober.theIdx, value) : values.get(prober.theIdx);
+        }
+
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        store(prober.theIdx, hashCode, bytes, 0, bytes.length, value);
+        entryCount++;
+        totalEntryCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Fill an EMPTY slot: append the key bytes, then publish hash, value and finally the key word.
+     */
+    private void store(int idx, long hashCode, byte[] src, int srcOffset, int length, V value) {
+        int offset = append(src, srcOffset, length);
+        values.set(idx, value);
+        hashes[idx] = hashCode;
+        keys.set(idx, ((long) (offset + 1) << 32) | length);
+    }
+
+    /**
+     * Append the bytes to the arena, growing it if needed.
+     *
+     * @return the offset of the bytes in the arena
+     */
+    private int append(byte[] src, int srcOffset, int length) {
+        byte[] current = arena;
+        if (current.length - arenaUsed < length) {
+            long needed = (long) arenaUsed + length;
+            long capacity = Math.max((long) current.length * 2, needed);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                if (needed > Integer.MAX_VALUE - 8) {
+                    throw new BucketOverflowError();
+                }
+                capacity = Integer.MAX_VALUE - 8;
+            }
+            // readers holding the old arena still find all the bytes published so far in it
+            current = Arrays.copyOf(current, (int) capacity);
+        }
+        System.arraycopy(src, srcOffset, current, arenaUsed, length);
+        arena = current;
+        int offset = arenaUsed;
+        arenaUsed += length;
+        return offset;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void transferEntry(HashEntry<String, V> entry, boolean referenced) {
+        byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        transferKey(entry.getKeyHashCode(), bytes, 0, bytes.length, entry.getValue());
+    }
+
+    /**
+     * Move a key of another bucket in, copying its bytes from the other arena.  The key is known to be absent.
+     */
+    private void transferKey(long hashCode, byte[] src, int srcOffset, int length, V value) {
+        store(freeSlot(hashCode), hashCode, src, srcOffset, length, value);
+        entryCount++;
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public void collectEntries(List<HashEntry<String, V>> out) {
+        byte[] bytes = arena;
+        for (int i = 0; i < bucketSize; i++) {
+            long keyWord = keys.get(i);
+            if (keyWord != EMPTY && keyWord != TOMBSTONE) {
+                String key = new String(bytes, keyOffset(keyWord), keyLength(keyWord), StandardCharsets.UTF_8);
+                out.add(new HashEntry<String, V>(key, values.get(i), hashes[i]));
+            }
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public V remove(String key, long hashCode, V value) {
+        LinearProber prober = new LinearProber();
+        prober.probe(key, hashCode);
+        if (!prober.found()) {
+            return null;
+        }
+
+        // take the value out first, a lock free replace expecting it fails from now on
+        V oldResult;
+        if (value == null) {
+            oldResult = values.getAndSet(prober.theIdx, null);
+        } else {
+            do {
+                oldResult = values.get(prober.theIdx);
+                if (!oldResult.equals(value)) {
+                    return null;
+                }
+            } while (!values.compareAndSet(prober.theIdx, oldResult, null));
+        }
+        keys.set(prober.theIdx, TOMBSTONE);
+        tombstoneCount++;
+        entryCount--;
+        totalEntryCount.decrementAndGet();
+        return oldResult;
+    }
+
+    /**
+     * Lock free read.  The value is only returned if the key word is unchanged after reading it.
+     */
+    @Override
+    public V get(String key, long hashCode) {
+        LinearProber prober = new LinearProber();
+        while (true) {
+            prober.probe(key, hashCode);
+            if (!prober.found()) {
+                return null;
+            }
+            V value = values.get(prober.theIdx);
+            if (keys.get(prober.theIdx) != TOMBSTONE) {
+                // null if the key is being removed
+                return value;
+            }
+            // the key was removed or its slot reused meanwhile, probe again
+        }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    @Override
+    public Object replace(String key, long hashCode, V oldValue, V newValue, long ttlNanos) {
+        writers.incrementAndGet();
+        try {
+            if (!valid) {
+                // spread() is copying the slots, or already did
+                return RETRY;
+            }
+            LinearProber prober = new LinearProber();
+            prober.probe(key, hashCode);
+            if (!prober.found()) {
+                return null;
+            }
+            while (true) {
+                V current = values.get(prober.theIdx);
+                if (current == null || (oldValue != null && !oldValue.equals(current))) {
+                    // removed meanwhile, or another value
+                    return null;
+                }
+                if (values.compareAndSet(prober.theIdx, current, newValue)) {
+                    return current;
+                }
+            }
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Compare the probe key with the key bytes of the key word.  The UTF-8 form of a String is at least as long as
+     * the String, and exactly as long only if the String is ASCII.
+     */
+    private boolean matches(String key, long keyWord) {
+        byte[] bytes = arena;
+        int offset = keyOffset(keyWord);
+        int length = keyLength(keyWord);
+        int chars = key.length();
+        if (chars > length) {
+            return false;
+        }
+        if (chars == length) {
+            for (int i = 0; i < chars; i++) {
+                char c = key.charAt(i);
+                if (c >= 0x80 || bytes[offset + i] != (byte) c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != encoded[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int keyOffset(long keyWord) {
+        return (int) (keyWord >>> 32) - 1;
+    }
+
+    private static int keyLength(long keyWord) {
+        return (int) keyWord;
+    }
+}
@@ -1,8 +1,33 @@
 package org.joyfulmonster.util.concurrent;
 
+import org.joyfulmonster.util.concurrent.internal.HashStrategy;
+import org.joyfulmonster.util.concurrent.internal.TraceRecorder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
 /**
  * Sanity put/get/delete function test without concurrency.
  * 
@@ -177,4 +202,1180 @@ public class BasicTest {
             Assert.assertTrue("The balanceRatio should be smaller than 0.5 for random set strings", balanceRatio < 0.5f);
         }
     }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParameterPutWithNonPositiveTtl() {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>();
+        map.put("Hello", 1, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * An entry is invisible once its time to live passed, and its key counts as absent.
+     */
+    @Test
+    public void testPutWithTtlExpires() throws InterruptedException {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>();
+        map.put("short", 1, 50, TimeUnit.MILLISECONDS);
+        map.put("long", 2, 1, TimeUnit.HOURS);
+        map.put("forever", 3);
+        Assert.assertEquals(1, map.get("short").intValue());
+
+        Thread.sleep(100);
+        Assert.assertNull(map.get("short"));
+        Assert.assertEquals(2, map.get("long").intValue());
+        Assert.assertEquals(3, map.get("forever").intValue());
+        Assert.assertNull(map.putIfAbsent("short", 4));
+        Assert.assertEquals(4, map.get("short").intValue());
+    }
+
+    /**
+     * Reads keep an entry alive under the expireAfterAccess policy.
+     */
+    @Test
+    public void testExpireAfterAccessRefreshesEntry() throws InterruptedException {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<String, Integer>()
+                .expireAfterAccess(300, TimeUnit.MILLISECONDS);
+        map.put("session", 1);
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            Assert.assertNotNull("read within the time to live should keep the entry", map.get("session"));
+        }
+        Thread.sleep(600);
+        Assert.assertNull(map.get("session"));
+    }
+
+    /**
+     * The TimingWheel reclaims expired entries nobody touches any more.
+     */
+    @Test
+    public void testExpiredEntriesReclaimedInBackground() throws InterruptedException {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<String, Integer>()
+                .expireAfterWrite(500, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        Assert.assertEquals(10000, map.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (map.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals("expired entries should be reclaimed in the background", 0, map.size());
+    }
+
+    /**
+     * Slots of expired entries are reused before a bucket is split.
+     */
+    @Test
+    public void testExpiredSlotsAvoidSplit() throws InterruptedException {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+        for (int i = 0; i < 60; i++) {
+            map.put("old" + i, i, 50, TimeUnit.MILLISECONDS);
+        }
+        int splits = map.getMetrics().totalSplits();
+        Thread.sleep(100);
+        for (int i = 0; i < 60; i++) {
+            map.put("new" + i, i);
+        }
+        Assert.assertEquals("expired slots should be reused instead of splitting", splits, map.getMetrics().totalSplits());
+        for (int i = 0; i < 60; i++) {
+            Assert.assertEquals(i, map.get("new" + i).intValue());
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParameterNonPositiveMaximumSize() {
+        new ConcurrentElasticHashMap<String, Integer>().maximumSize(0);
+    }
+
+    /**
+     * A bounded map evicts instead of growing, and CLOCK keeps the entries that are read.
+     */
+    @Test
+    public void testMaximumSizeEvicts() {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<String, Integer>(64, 2, 0.75f)
+                .maximumSize(1000);
+        map.put("hot", -1);
+        for (int i = 0; i < 100000; i++) {
+            map.put(Integer.toString(i), i);
+            Assert.assertEquals(-1, map.get("hot").intValue());
+        }
+        TestUtil.printMetrics(map);
+        int bucketCount = map.getMetrics().getBucketCount();
+        Assert.assertTrue("size should stay within the bound", map.size() <= 1000 + bucketCount);
+        Assert.assertTrue("the directory should stop growing", bucketCount <= 64);
+        Assert.assertEquals(100001 - map.size(), map.getMetrics().totalEvictions());
+        Assert.assertEquals(99999, map.get("99999").intValue());
+    }
+
+    /**
+     * A map bounded by weight keeps the total weight within the bound.
+     */
+    @Test
+    public void testMaximumWeightEvicts() {
+        final ConcurrentElasticHashMap<String, String> map = new ConcurrentElasticHashMap<String, String>()
+                .maximumWeight(100000, new Weigher<String, String>() {
+                    @Override
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        for (int i = 0; i < 10000; i++) {
+            map.put(Integer.toString(i), new String(new char[100]));
+        }
+        int bucketCount = map.getMetrics().getBucketCount();
+        Assert.assertTrue("total weight should stay within the bound", map.size() * 100 <= 100000 + bucketCount * 100);
+        Assert.assertTrue(map.getMetrics().totalEvictions() > 0);
+    }
+
+    /**
+     * getOrLoad loads an absent key once, stores the result and leaves the key absent when the loader returns null.
+     */
+    @Test
+    public void testGetOrLoad() {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+        final AtomicInteger loads = new AtomicInteger();
+        Function<String, Integer> loader = new Function<String, Integer>() {
+            @Override
+            public Integer apply(String key) {
+                loads.incrementAndGet();
+                return key.startsWith("null") ? null : Integer.valueOf(key);
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, map.getOrLoad(Integer.toString(i), loader).intValue());
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, map.getOrLoad(Integer.toString(i), loader).intValue());
+        }
+        Assert.assertEquals(1000, loads.get());
+        Assert.assertEquals(1000, map.size());
+
+        Assert.assertNull(map.getOrLoad("null1", loader));
+        Assert.assertNull(map.get("null1"));
+        Assert.assertEquals(1000, map.size());
+        Assert.assertNull(map.put("null1", 1));
+        Assert.assertEquals(1, map.getOrLoad("null1", loader).intValue());
+    }
+
+    /**
+     * A failing loader leaves the key absent and the failure reaches the caller.
+     */
+    @Test
+    public void testGetOrLoadFailure() throws InterruptedException {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>();
+        Function<String, Integer> failing = new Function<String, Integer>() {
+            @Override
+            public Integer apply(String key) {
+                throw new IllegalStateException(key);
+            }
+        };
+        try {
+            map.getOrLoad("a", failing);
+            Assert.fail("the loader failure should be propagated");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("a", e.getMessage());
+        }
+        Assert.assertNull(map.get("a"));
+        Assert.assertEquals(0, map.size());
+
+        try {
+            map.getOrLoadAsync("b", failing).get();
+            Assert.fail("the loader failure should be propagated");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertNull(map.get("b"));
+        Assert.assertEquals(0, map.size());
+    }
+
+    /**
+     * getOrLoadAsync completes right away for a present key and loads on the executor otherwise.
+     */
+    @Test
+    public void testGetOrLoadAsync() throws InterruptedException, ExecutionException {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>();
+        map.put("1", 1);
+        Function<String, Integer> loader = new Function<String, Integer>() {
+            @Override
+            public Integer apply(String key) {
+                return Integer.valueOf(key) * 10;
+            }
+        };
+        CompletableFuture<Integer> present = map.getOrLoadAsync("1", loader);
+        Assert.assertTrue(present.isDone());
+        Assert.assertEquals(1, present.get().intValue());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertEquals(20, map.getOrLoadAsync("2", loader, executor).get().intValue());
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(20, map.get("2").intValue());
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParameterNegativeExpectedSize() {
+        new ConcurrentElasticHashMap<String, Integer>(-1);
+    }
+
+    /**
+     * A map pre-sized for the expected size is filled without splits.
+     */
+    @Test
+    public void testPresizedMapDoesNotSplit() {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(200000);
+        int bucketCount = map.getMetrics().getBucketCount();
+        for (int i = 0; i < 200000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        TestUtil.printMetrics(map);
+        Assert.assertEquals(0, map.getMetrics().totalSplits());
+        Assert.assertEquals(bucketCount, map.getMetrics().getBucketCount());
+        Assert.assertEquals(200000, map.size());
+    }
+
+    /**
+     * ensureCapacity grows a populated map ahead of a bulk load, the load itself does not split.
+     */
+    @Test
+    public void testEnsureCapacity() {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(1024, 2, 0.75f);
+        for (int i = 0; i < 1000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        map.ensureCapacity(20000);
+        int splits = map.getMetrics().totalSplits();
+        Assert.assertTrue(splits > 0);
+        for (int i = 1000; i < 20000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        Assert.assertEquals(splits, map.getMetrics().totalSplits());
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(i, map.get(Integer.toString(i)).intValue());
+        }
+
+        // already large enough, nothing to do
+        map.ensureCapacity(100);
+        Assert.assertEquals(splits, map.getMetrics().totalSplits());
+    }
+
+    /**
+     * A bulk loaded map holds every entry, keeps the last entry of a duplicated key and stays writable.
+     */
+    @Test
+    public void testBulkLoad() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            entries.add(new AbstractMap.SimpleEntry<>(Integer.toString(i), i));
+        }
+        entries.add(new AbstractMap.SimpleEntry<>("7", -7));
+
+        ConcurrentElasticHashMap<String, Integer> map = ConcurrentElasticHashMap.bulkLoad(entries);
+        TestUtil.printMetrics(map);
+        Assert.assertEquals(100000, map.size());
+        Assert.assertEquals(0, map.getMetrics().totalSplits());
+        Assert.assertEquals(-7, map.get("7").intValue());
+        for (int i = 8; i < 100000; i++) {
+            Assert.assertEquals(i, map.get(Integer.toString(i)).intValue());
+        }
+
+        for (int i = 100000; i < 200000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        Assert.assertEquals(200000, map.size());
+        Assert.assertEquals(1, map.remove("1").intValue());
+        Assert.assertNull(map.get("1"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParameterBulkLoadWithNullValue() {
+        ConcurrentElasticHashMap.bulkLoad(Collections.singletonList(new AbstractMap.SimpleEntry<String, Integer>("a", null)));
+    }
+
+    /**
+     * A map written with codecs reads back into an equal map, values larger than the stream buffer included.
+     */
+    @Test
+    public void testWriteToReadFrom() throws IOException {
+        ConcurrentElasticHashMap<Long, String> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+        for (long i = -5000; i < 5000; i++) {
+            map.put(i * 1000003L, "value-\u00e9-" + i);
+        }
+        map.put(Long.MAX_VALUE, new String(new char[200000]).replace('\0', 'x'));
+        map.put(Long.MIN_VALUE, "");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeTo(bytes, Codecs.VARINT_LONG, Codecs.UTF8);
+        ConcurrentElasticHashMap<Long, String> copy =
+                ConcurrentElasticHashMap.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.VARINT_LONG, Codecs.UTF8);
+
+        Assert.assertEquals(map.size(), copy.size());
+        for (long i = -5000; i < 5000; i++) {
+            Assert.assertEquals("value-\u00e9-" + i, copy.get(i * 1000003L));
+        }
+        Assert.assertEquals(200000, copy.get(Long.MAX_VALUE).length());
+        Assert.assertEquals("", copy.get(Long.MIN_VALUE));
+    }
+
+    /**
+     * A stream that is not a map, or that ends early, is rejected.
+     */
+    @Test
+    public void testReadFromBadStream() throws IOException {
+        try {
+            ConcurrentElasticHashMap.readFrom(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}), Codecs.UTF8, Codecs.UTF8);
+            Assert.fail("a stream without the header should be rejected");
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(Integer.toString(i), i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeTo(bytes, Codecs.UTF8, Codecs.VARINT_INT);
+        try {
+            ConcurrentElasticHashMap.readFrom(new ByteArrayInputStream(bytes.toByteArray(), 0, bytes.size() - 3),
+                    Codecs.UTF8, Codecs.VARINT_INT);
+            Assert.fail("a truncated stream should be rejected");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A map of compact String keys behaves as a regular map, across splits and with non ASCII keys.
+     */
+    @Test
+    public void testCompactStringKeys() {
+        ConcurrentElasticHashMap<String, Integer> map = ConcurrentElasticHashMap.withCompactStringKeys(64, 2, 0.75f);
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertNull(map.put("key" + i, i));
+        }
+        Assert.assertNull(map.put("", -1));
+        Assert.assertNull(map.put("\u00e9t\u00e9", -2));
+        Assert.assertNull(map.put("\ud83d\ude00", -3));
+        TestUtil.printMetrics(map);
+        Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(20003, map.size());
+
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(i, map.get("key" + i).intValue());
+        }
+        Assert.assertEquals(-1, map.get("").intValue());
+        Assert.assertEquals(-2, map.get("\u00e9t\u00e9").intValue());
+        Assert.assertEquals(-3, map.get("\ud83d\ude00").intValue());
+        Assert.assertNull(map.get("ete"));
+        Assert.assertNull(map.get("key20000"));
+
+        Assert.assertEquals(7, map.put("key7", 70).intValue());
+        Assert.assertEquals(70, map.get("key7").intValue());
+        Assert.assertEquals(8, map.putIfAbsent("key8", 80).intValue());
+        Assert.assertFalse(map.remove("key9", 0));
+        Assert.assertTrue(map.remove("key9", 9));
+        Assert.assertNull(map.get("key9"));
+        for (int i = 10; i < 10000; i++) {
+            Assert.assertEquals(i, map.remove("key" + i).intValue());
+        }
+        Assert.assertEquals(20003 - 1 - 9990, map.size());
+        for (int i = 10000; i < 20000; i++) {
+            Assert.assertEquals(i, map.get("key" + i).intValue());
+        }
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testCompactStringKeysDoNotExpire() {
+        ConcurrentElasticHashMap.<Integer>withCompactStringKeys().put("a", 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * replace only writes a present key, with the expected old value if one is given.
+     */
+    @Test
+    public void testReplace() {
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+        Assert.assertNull(map.replace("absent", 1));
+        Assert.assertNull(map.get("absent"));
+        Assert.assertFalse(map.replace("absent", 1, 2));
+        Assert.assertEquals(0, map.size());
+
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, map.replace("key" + i, -i).intValue());
+            Assert.assertFalse(map.replace("key" + i, i + 1, 0));
+            Assert.assertTrue(map.replace("key" + i, -i, i * 2));
+        }
+        Assert.assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i * 2, map.get("key" + i).intValue());
+        }
+    }
+
+    /**
+     * Counters across splits: add, sumThenReset, remove and snapshot.
+     */
+    @Test
+    public void testCounterMap() {
+        ConcurrentElasticCounterMap<String> map = new ConcurrentElasticCounterMap<>(64, 2, 0.75f);
+        Assert.assertEquals(0, map.get("absent"));
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, map.addAndGet("key" + i, i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i + 1, map.incrementAndGet("key" + i));
+            map.add("key" + i, 1);
+        }
+        Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(10000, map.size());
+        Assert.assertEquals(7, map.decrementAndGet("key6"));
+
+        Assert.assertEquals(9, map.sumThenReset("key7"));
+        Assert.assertEquals(0, map.get("key7"));
+        Assert.assertEquals(0, map.sumThenReset("absent"));
+        Assert.assertEquals(10, map.remove("key8"));
+        Assert.assertEquals(0, map.remove("key8"));
+        Assert.assertEquals(9999, map.size());
+
+        Map<String, Long> snapshot = map.snapshot();
+        Assert.assertEquals(9999, snapshot.size());
+        Assert.assertEquals(0L, snapshot.get("key7").longValue());
+        Assert.assertEquals(7L, snapshot.get("key6").longValue());
+        Assert.assertEquals(10001L, snapshot.get("key9999").longValue());
+        Assert.assertFalse(snapshot.containsKey("key8"));
+    }
+
+    /**
+     * Set add / contains / remove across splits, addAll and the streams.
+     */
+    @Test
+    public void testHashSet() {
+        ConcurrentElasticHashSet<String> set = new ConcurrentElasticHashSet<>(64, 2, 0.75f);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(set.add("key" + i));
+        }
+        Assert.assertFalse(set.add("key5"));
+        Assert.assertTrue(set.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(10000, set.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(set.contains("key" + i));
+        }
+        Assert.assertFalse(set.contains("key10000"));
+
+        for (int i = 0; i < 10000; i += 2) {
+            Assert.assertTrue(set.remove("key" + i));
+        }
+        Assert.assertFalse(set.remove("key0"));
+        Assert.assertEquals(5000, set.size());
+
+        List<String> more = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            more.add("key" + i);
+        }
+        Assert.assertTrue(set.addAll(more));
+        Assert.assertFalse(set.addAll(more));
+        Assert.assertEquals(20000, set.size());
+        Assert.assertEquals(20000, set.stream().count());
+        Assert.assertEquals(20000, set.parallelStream().distinct().count());
+        Assert.assertTrue(set.parallelStream().allMatch(new Predicate<String>() {
+            @Override
+            public boolean test(String key) {
+                return key.startsWith("key");
+            }
+        }));
+    }
+
+    /**
+     * A map taking lock free inserts keeps finding its keys after removes left TOMBSTONEs in the probe chains.
+     */
+    @Test
+    public void testLockFreeInserts() {
+        ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.withLockFreeInserts(64, 2, 0.75f);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertNull(map.put(i, i));
+        }
+        Assert.assertEquals(0, map.put(0, -1).intValue());
+        Assert.assertEquals(1, map.putIfAbsent(1, -1).intValue());
+        Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+        for (int i = 0; i < 10000; i += 2) {
+            Assert.assertNotNull(map.remove(i));
+        }
+        Assert.assertEquals(5000, map.size());
+        for (int i = 1; i < 10000; i += 2) {
+            Assert.assertEquals(i == 1 ? 1 : i, map.get(i).intValue());
+            Assert.assertEquals(i, map.put(i, -i).intValue());
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            Assert.assertNull(map.get(i));
+            Assert.assertNull(map.putIfAbsent(i, i));
+        }
+        Assert.assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals((i & 1) == 0 ? i : -i, map.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testDeleteHeavyChurn() {
+        ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<Integer, Integer>(64, 1, 0.75f);
+        for (int i = 0; i < 20; i++) {
+            map.put(i, i);
+        }
+        // the removed keys must not cut the probe chains of the resident keys, nor grow the directory
+        for (int round = 0; round < 1000; round++) {
+            int base = 1000 + round * 10;
+            for (int i = base; i < base + 10; i++) {
+                Assert.assertNull(map.put(i, i));
+            }
+            for (int i = base; i < base + 10; i++) {
+                Assert.assertEquals(i, map.remove(i).intValue());
+                Assert.assertNull(map.get(i));
+            }
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(i, map.get(i).intValue());
+            }
+        }
+        Assert.assertEquals(20, map.size());
+        Assert.assertEquals(1, map.getMetrics().getBucketCount());
+        Assert.assertEquals(0, map.getMetrics().totalSplits());
+    }
+
+    @Test
+    public void testBucketsGrowBeforeSplitting() {
+        ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<Integer, Integer>();
+        // a fresh map does not reserve the full bucket size
+        Assert.assertTrue(map.getMetrics().getSlotCount() < 8 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i);
+        }
+        // the buckets grew in place, none reached the size at which it splits
+        Assert.assertEquals(0, map.getMetrics().totalSplits());
+        Assert.assertEquals(8, map.getMetrics().getBucketCount());
+        Assert.assertTrue(map.getMetrics().getSlotCount() < 8 * 8092);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, map.get(i).intValue());
+        }
+
+        ConcurrentElasticHashMap<Integer, Integer> small = new ConcurrentElasticHashMap<Integer, Integer>(1000, 1, 0.75f);
+        for (int i = 0; i < 100000; i++) {
+            small.put(i, i);
+        }
+        Assert.assertTrue(small.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(100000, small.size());
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertEquals(i, small.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testLazyMap() {
+        ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.lazy();
+        Assert.assertEquals(1, map.getMetrics().getBucketCount());
+        Assert.assertEquals(0, map.getMetrics().getSlotCount());
+        Assert.assertNull(map.get(1));
+        Assert.assertNull(map.remove(1));
+        Assert.assertEquals(0, map.size());
+
+        // the first write allocates a handful of slots
+        Assert.assertNull(map.put(1, 1));
+        Assert.assertEquals(1, map.get(1).intValue());
+        Assert.assertTrue(map.getMetrics().getSlotCount() <= 8);
+
+        for (int i = 0; i < 100000; i++) {
+            map.put(i, i);
+        }
+        Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(100000, map.size());
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertEquals(i, map.get(i).intValue());
+        }
+
+        ConcurrentElasticHashMap<String, Integer> loading = ConcurrentElasticHashMap.lazy(64, 4, 0.75f);
+        Assert.assertEquals(0, loading.getMetrics().getSlotCount());
+        Assert.assertEquals(3, loading.getOrLoad("abc", new Function<String, Integer>() {
+            @Override
+            public Integer apply(String key) {
+                return key.length();
+            }
+        }).intValue());
+        Assert.assertEquals(3, loading.get("abc").intValue());
+    }
+
+    @Test
+    public void testLongHashes() {
+        // "Aa" and "BB" have the same String.hashCode(), so do all 4096 strings made of 12 of them
+        List<String> keys = new ArrayList<String>();
+        keys.add("");
+        for (int round = 0; round < 12; round++) {
+            List<String> longer = new ArrayList<String>();
+            for (String key : keys) {
+                longer.add(key + "Aa");
+                longer.add(key + "BB");
+            }
+            keys = longer;
+        }
+        Assert.assertEquals(keys.get(0).hashCode(), keys.get(keys.size() - 1).hashCode());
+
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<String, Integer>(64, 1, 0.75f);
+        for (int i = 0; i < keys.size(); i++) {
+            map.put(keys.get(i), i);
+        }
+        Assert.assertEquals(keys.size(), map.size());
+        Assert.assertEquals(keys.size(), map.mappingCount());
+        Assert.assertTrue(map.getMetrics().getBucketCount() > 1);
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(i, map.get(keys.get(i)).intValue());
+        }
+    }
+
+    @Test
+    public void testShardedMap() throws IOException {
+        ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.sharded(4, 64, 8, 0.75f);
+        Assert.assertEquals(8, map.getMetrics().getBucketCount());
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i);
+        }
+        Assert.assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, map.get(i).intValue());
+        }
+
+        // the entries of every shard are written
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.writeTo(out, Codecs.VARINT_INT, Codecs.VARINT_INT);
+        ConcurrentElasticHashMap<Integer, Integer> copy = ConcurrentElasticHashMap.readFrom(
+                new ByteArrayInputStream(out.toByteArray()), Codecs.VARINT_INT, Codecs.VARINT_INT);
+        Assert.assertEquals(10000, copy.size());
+
+        // a bound is shared by the shards
+        ConcurrentElasticHashMap<Integer, Integer> bounded = ConcurrentElasticHashMap.sharded(4, 64, 4, 0.75f);
+        bounded.maximumSize(1000);
+        for (int i = 0; i < 10000; i++) {
+            bounded.put(i, i);
+        }
+        Assert.assertTrue(bounded.size() <= 1100);
+        Assert.assertTrue(bounded.getMetrics().totalEvictions() > 0);
+    }
+
+    @Test
+    public void testAtomically() {
+        final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<String, Integer>(64, 1, 0.75f);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.atomically(Arrays.asList("a", "b", "c"), new Consumer<Map<String, Integer>>() {
+            @Override
+            public void accept(Map<String, Integer> values) {
+                Assert.assertEquals(2, values.size());
+                values.put("c", values.remove("a") + values.get("b"));
+            }
+        });
+        Assert.assertNull(map.get("a"));
+        Assert.assertEquals(2, map.get("b").intValue());
+        Assert.assertEquals(3, map.get("c").intValue());
+        Assert.assertEquals(2, map.size());
+
+        // writing a key outside of the update leaves the map unchanged
+        try {
+            map.atomically(Collections.singletonList("b"), new Consumer<Map<String, Integer>>() {
+                @Override
+                public void accept(Map<String, Integer> values) {
+                    values.remove("b");
+                    values.put("d", 4);
+                }
+            });
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(2, map.get("b").intValue());
+        Assert.assertNull(map.get("d"));
+
+        // inserting into full buckets splits them before the update is written
+        for (int i = 0; i < 1000; i += 10) {
+            final List<String> keys = new ArrayList<String>();
+            for (int j = i; j < i + 10; j++) {
+                keys.add("key" + j);
+            }
+            map.atomically(keys, new Consumer<Map<String, Integer>>() {
+                @Override
+                public void accept(Map<String, Integer> values) {
+                    for (String key : keys) {
+                        values.put(key, key.length());
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+        Assert.assertEquals(1002, map.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(("key" + i).length(), map.get("key" + i).intValue());
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<Integer, Integer>(64, 4, 0.75f);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        Map<Integer, Integer> snapshot = map.snapshot();
+        int splits = map.getMetrics().totalSplits();
+
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, -i);
+        }
+        for (int i = 0; i < 100; i++) {
+            map.remove(i);
+        }
+        for (int i = 1000; i < 3000; i++) {
+            map.put(i, i);
+        }
+        Assert.assertTrue(map.getMetrics().totalSplits() > splits);
+
+        // the snapshot still sees the map as it was
+        Assert.assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, snapshot.get(i).intValue());
+        }
+        Assert.assertNull(snapshot.get(1000));
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> e : snapshot.entrySet()) {
+            Assert.assertEquals(e.getKey(), e.getValue());
+            sum += e.getValue();
+        }
+        Assert.assertEquals(999L * 1000 / 2, sum);
+        try {
+            snapshot.put(1, 1);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        Assert.assertEquals(2900, map.size());
+        for (int i = 100; i < 1000; i++) {
+            Assert.assertEquals(-i, map.get(i).intValue());
+        }
+
+        ConcurrentElasticHashMap<Integer, Integer> sharded = ConcurrentElasticHashMap.sharded(4, 64, 8, 0.75f);
+        for (int i = 0; i < 1000; i++) {
+            sharded.put(i, i);
+        }
+        Map<Integer, Integer> shardedSnapshot = sharded.snapshot();
+        sharded.put(0, -1);
+        sharded.put(1000, 1000);
+        Assert.assertEquals(1000, shardedSnapshot.size());
+        Assert.assertEquals(0, shardedSnapshot.get(0).intValue());
+        Assert.assertFalse(shardedSnapshot.containsKey(1000));
+    }
+
+    @Test
+    public void testTieredMap() throws IOException {
+        File file = File.createTempFile("elastic-hashmap", ".spill");
+        file.deleteOnExit();
+        ConcurrentElasticHashMap<String, Integer> map =
+                ConcurrentElasticHashMap.tiered(file, Codecs.UTF8, Codecs.VARINT_INT, 64, 4, 0.75f);
+        for (int i = 0; i < 2000; i++) {
+            map.put("key" + i, i);
+        }
+        long slots = map.getMetrics().getSlotCount();
+        int bucketCount = map.getMetrics().getBucketCount();
+
+        // every bucket was just written, the first sweep only clears the access flags
+        Assert.assertEquals(0, map.spillColdBuckets());
+        Assert.assertEquals(bucketCount, map.spillColdBuckets());
+        Assert.assertEquals(0L, map.getMetrics().getSlotCount());
+        Assert.assertTrue(file.length() > 0);
+        Assert.assertEquals(2000, map.size());
+
+        // the Bloom filters answer most misses without paging the buckets in
+        for (int i = 2000; i < 2100; i++) {
+            Assert.assertNull(map.get("key" + i));
+        }
+        Assert.assertTrue(map.getMetrics().getSlotCount() < slots / 2);
+
+        Map<String, Integer> snapshot = map.snapshot();
+        for (int i = 0; i < 2000; i += 2) {
+            map.put("key" + i, -i);
+        }
+        map.remove("key1");
+        Assert.assertEquals(slots, map.getMetrics().getSlotCount());
+        for (int i = 2; i < 2000; i++) {
+            Assert.assertEquals((i % 2 == 0) ? -i : i, map.get("key" + i).intValue());
+        }
+        Assert.assertNull(map.get("key1"));
+        Assert.assertEquals(1999, map.size());
+
+        // the spilled buckets still serve the snapshot taken before the writes
+        Assert.assertEquals(2000, snapshot.size());
+        Assert.assertEquals(0, snapshot.get("key0").intValue());
+        Assert.assertEquals(1, snapshot.get("key1").intValue());
+
+        // a bucket read within the period stays on the heap
+        map.spillColdBuckets();
+        map.get("key2");
+        map.spillColdBuckets();
+        Assert.assertTrue(map.getMetrics().getSlotCount() > 0);
+        Assert.assertEquals(-2, map.get("key2").intValue());
+
+        try {
+            new ConcurrentElasticHashMap<String, Integer>().spillColdBuckets();
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAdaptiveBucketSize() {
+        ConcurrentElasticHashMap<Integer, Integer> adaptive = ConcurrentElasticHashMap.adaptive(256, 2, 0.75f);
+        ConcurrentElasticHashMap<Integer, Integer> fixed = new ConcurrentElasticHashMap<Integer, Integer>(256, 2, 0.75f);
+        for (int i = 0; i < 200000; i++) {
+            adaptive.put(i, i);
+            fixed.put(i, i);
+        }
+        for (int i = 0; i < 200000; i++) {
+            Assert.assertEquals(i, adaptive.get(i).intValue());
+        }
+        Assert.assertEquals(200000, adaptive.size());
+
+        // a single writer never waits for a lock, so the deeper buckets get more slots and the map splits less
+        long slotsPerBucket = adaptive.getMetrics().getSlotCount() / adaptive.getMetrics().getBucketCount();
+        Assert.assertTrue(slotsPerBucket > 256);
+        Assert.assertTrue(adaptive.getMetrics().getBucketCount() < fixed.getMetrics().getBucketCount());
+        Assert.assertTrue(adaptive.getMetrics().totalSplits() < fixed.getMetrics().totalSplits());
+    }
+
+    @Test
+    public void testTraceRecording() throws IOException {
+        File file = File.createTempFile("elastic-hashmap", ".trace");
+        file.deleteOnExit();
+        ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 4, 0.75f);
+        map.put("before", 0);
+        map.startTrace(file);
+        try {
+            map.startTrace(file);
+            Assert.fail("a second trace should be refused");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        for (int i = 0; i < 5; i++) {
+            map.put("key" + i, i);
+        }
+        map.putIfAbsent("key0", -1);
+        map.get("key1");
+        map.replace("key2", 20);
+        map.replace("key3", 3, 30);
+        map.remove("key4");
+        map.remove("key0", 0);
+        map.stopTrace();
+        map.put("after", 0);
+        map.stopTrace();
+
+        String[] keys = { "key0", "key1", "key2", "key3", "key4", "key0", "key1", "key2", "key3", "key4", "key0" };
+        int[] types = { TraceRecorder.PUT, TraceRecorder.PUT, TraceRecorder.PUT, TraceRecorder.PUT, TraceRecorder.PUT,
+                TraceRecorder.PUT_IF_ABSENT, TraceRecorder.GET, TraceRecorder.REPLACE, TraceRecorder.REPLACE,
+                TraceRecorder.REMOVE, TraceRecorder.REMOVE };
+        List<long[]> trace = TraceRecorder.read(file);
+        Assert.assertEquals(1, trace.size());
+        long[] records = trace.get(0);
+        Assert.assertEquals(keys.length * 2, records.length);
+        long previous = 0L;
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(types[i], TraceRecorder.typeOf(records[i * 2]));
+            Assert.assertEquals(HashStrategy.getInstance().hash(keys[i]), records[i * 2 + 1]);
+            Assert.assertTrue(TraceRecorder.nanosOf(records[i * 2]) >= previous);
+            previous = TraceRecorder.nanosOf(records[i * 2]);
+        }
+
+        // the replay keys land where the traced keys did
+        for (long hash : new long[] { records[1], 0L, -1L, Long.MIN_VALUE, 0x123456789ABCDEFL }) {
+            Assert.assertEquals(hash, HashStrategy.getInstance().hash(TraceRecorder.keyOf(hash)));
+        }
+    }
+
+    @Test
+    public void testPutAllFromAndJoin() {
+        ConcurrentElasticHashMap<Integer, Integer> base = new ConcurrentElasticHashMap<>(64, 1, 0.75f);
+        ConcurrentElasticHashMap<Integer, Integer> delta = new ConcurrentElasticHashMap<>(256, 16, 0.75f);
+        for (int i = 0; i < 5000; i++) {
+            base.put(i, i);
+        }
+        for (int i = 4000; i < 7000; i++) {
+            delta.put(i, -i);
+        }
+        Map<Integer, Integer> before = base.snapshot();
+
+        base.putAllFrom(delta);
+        Assert.assertEquals(7000, base.size());
+        for (int i = 0; i < 7000; i++) {
+            Assert.assertEquals((i < 4000) ? i : -i, base.get(i).intValue());
+        }
+        Assert.assertEquals(5000, before.size());
+        Assert.assertEquals(4500, before.get(4500).intValue());
+        Assert.assertEquals(3000, delta.size());
+
+        // the deltas add up, a null combination drops the key
+        base.join(delta, (current, added) -> (added == -4000) ? null : current + added);
+        Assert.assertEquals(6999, base.size());
+        for (int i = 0; i < 7000; i++) {
+            Assert.assertEquals((i < 4000) ? Integer.valueOf(i) : (i == 4000) ? null : Integer.valueOf(-2 * i), base.get(i));
+        }
+        base.join(base, (current, added) -> current + added);
+        Assert.assertEquals(6999, base.size());
+        Assert.assertEquals(2, base.get(1).intValue());
+
+        // a sharded map is aligned by shard too
+        ConcurrentElasticHashMap<Integer, Integer> sharded = ConcurrentElasticHashMap.sharded(4, 64, 4, 0.75f);
+        sharded.putAllFrom(base);
+        Assert.assertEquals(6999, sharded.size());
+        for (int i = 0; i < 7000; i++) {
+            Assert.assertEquals(base.get(i), sharded.get(i));
+        }
+
+        try {
+            base.join(delta, null);
+            Assert.fail("a null combiner should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAtomicallyGrowsBucketsLikePut() {
+        // the first atomic update of a lazy map takes the slots of a first put, not two full size buckets
+        ConcurrentElasticHashMap<Integer, Integer> lazy = ConcurrentElasticHashMap.lazy();
+        ConcurrentElasticHashMap<Integer, Integer> lazyPut = ConcurrentElasticHashMap.lazy();
+        lazy.atomically(Collections.singletonList(1), values -> values.put(1, 1));
+        lazyPut.put(1, 1);
+        Assert.assertEquals(1, lazy.get(1).intValue());
+        Assert.assertEquals(lazyPut.getMetrics().getSlotCount(), lazy.getMetrics().getSlotCount());
+        Assert.assertEquals(1, lazy.getMetrics().getBucketCount());
+
+        ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<>();
+        ConcurrentElasticHashMap<Integer, Integer> puts = new ConcurrentElasticHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            final int key = i;
+            map.atomically(Collections.singletonList(key), values -> values.put(key, key));
+            puts.put(key, key);
+        }
+        Assert.assertEquals(2000, map.size());
+        Assert.assertEquals(puts.getMetrics().getBucketCount(), map.getMetrics().getBucketCount());
+        Assert.assertEquals(0, map.getMetrics().totalSplits());
+        Assert.assertEquals(puts.getMetrics().getSlotCount(), map.getMetrics().getSlotCount());
+    }
+
+    @Test
+    public void testPutAllFromGrowsBucketsLikePut() {
+        ConcurrentElasticHashMap<Integer, Integer> delta = new ConcurrentElasticHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            delta.put(i, i);
+        }
+        // merging a few keys into a lazy map takes the slots of a few puts, not full size buckets
+        ConcurrentElasticHashMap<Integer, Integer> lazy = ConcurrentElasticHashMap.lazy();
+        ConcurrentElasticHashMap<Integer, Integer> lazyPuts = ConcurrentElasticHashMap.lazy();
+        lazy.putAllFrom(delta);
+        for (int i = 0; i < 5; i++) {
+            lazyPuts.put(i, i);
+        }
+        Assert.assertEquals(5, lazy.size());
+        Assert.assertEquals(lazyPuts.getMetrics().getSlotCount(), lazy.getMetrics().getSlotCount());
+        Assert.assertEquals(0, lazy.getMetrics().totalSplits());
+
+        delta = new ConcurrentElasticHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            delta.put(i, i);
+        }
+        ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<>();
+        ConcurrentElasticHashMap<Integer, Integer> puts = new ConcurrentElasticHashMap<>();
+        map.join(delta, (current, added) -> current + added);
+        for (int i = 0; i < 2000; i++) {
+            puts.put(i, i);
+        }
+        Assert.assertEquals(2000, map.size());
+        Assert.assertEquals(puts.getMetrics().getBucketCount(), map.getMetrics().getBucketCount());
+        Assert.assertEquals(puts.getMetrics().getSlotCount(), map.getMetrics().getSlotCount());
+
+        // a bounded map evicts instead of growing
+        ConcurrentElasticHashMap<Integer, Integer> bounded = new ConcurrentElasticHashMap<>(64, 1, 0.75f);
+        bounded.maximumSize(100);
+        bounded.putAllFrom(delta);
+        Assert.assertTrue(bounded.size() <= 110);
+        Assert.assertTrue(bounded.getMetrics().totalEvictions() > 0);
+    }
+
+    @Test
+    public void testSpillFileReusesPagedInRegions() throws IOException {
+        File file = File.createTempFile("elastic-hashmap", ".spill");
+        file.deleteOnExit();
+        ConcurrentElasticHashMap<String, String> map =
+                ConcurrentElasticHashMap.tiered(file, Codecs.UTF8, Codecs.UTF8, 64, 4, 0.75f);
+        char[] padding = new char[4096];
+        Arrays.fill(padding, 'x');
+        String value = new String(padding);
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, value + i);
+        }
+        int bucketCount = map.getMetrics().getBucketCount();
+
+        // every cycle spills about 4MB, the regions of the buckets paged in are reused by the next cycle
+        long length = 0L;
+        for (int cycle = 0; cycle < 8; cycle++) {
+            map.spillColdBuckets();
+            Assert.assertEquals(bucketCount, map.spillColdBuckets());
+            Assert.assertEquals(0L, map.getMetrics().getSlotCount());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals(value + i, map.get("key" + i));
+            }
+            if (cycle == 0) {
+                length = file.length();
+            }
+            Assert.assertEquals(length, file.length());
+        }
+
+        // a snapshot keeps the regions of its buckets, they are not reused
+        map.spillColdBuckets();
+        map.spillColdBuckets();
+        Map<String, String> snapshot = map.snapshot();
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "new" + i);
+        }
+        map.spillColdBuckets();
+        map.spillColdBuckets();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(value + i, snapshot.get("key" + i));
+            Assert.assertEquals("new" + i, map.get("key" + i));
+        }
+
+        // the closed file stays readable, but takes no more buckets
+        map.spillColdBuckets();
+        map.spillColdBuckets();
+        map.closeSpillFile();
+        Assert.assertEquals("new7", map.get("key7"));
+        Assert.assertEquals(1000, map.size());
+        map.spillColdBuckets();
+        try {
+            map.spillColdBuckets();
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new ConcurrentElasticHashMap<String, Integer>().closeSpillFile();
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A key whose equals() fails while the flag is set.
+     */
+    private static class FlakyKey {
+        static volatile boolean failing;
+        private final int id;
+
+        FlakyKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (failing) {
+                throw new IllegalStateException("flaky equals");
+            }
+            return o instanceof FlakyKey && ((FlakyKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    /**
+     * A bucket that fails to reclaim its expired entries does not lose them, nor the entries of the other buckets fired
+     * in the same round: they are reclaimed once the keys behave again.
+     */
+    @Test
+    public void testFailedReclaimIsRetried() throws InterruptedException {
+        final ConcurrentElasticHashMap<FlakyKey, Integer> map = new ConcurrentElasticHashMap<FlakyKey, Integer>(64, 16,
+                0.75f).expireAfterWrite(300, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 2000; i++) {
+            map.put(new FlakyKey(i), i);
+        }
+        Assert.assertEquals(2000, map.size());
+
+        FlakyKey.failing = true;
+        try {
+            Thread.sleep(1000);
+            Assert.assertEquals("nothing can be reclaimed while the keys fail", 2000, map.size());
+        } finally {
+            FlakyKey.failing = false;
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (map.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals("the entries of the failed rounds should be reclaimed", 0, map.size());
+    }
+
+    @Test
+    public void testCounterAndCompactKeyBucketsGrowBeforeSplitting() {
+        ConcurrentElasticCounterMap<Integer> counters = new ConcurrentElasticCounterMap<Integer>();
+        ConcurrentElasticHashMap<String, Integer> strings = ConcurrentElasticHashMap.withCompactStringKeys();
+        // a fresh map does not reserve the full bucket size
+        Assert.assertTrue(counters.getMetrics().getSlotCount() < 8 * 1024);
+        Assert.assertTrue(strings.getMetrics().getSlotCount() < 8 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            counters.add(i, i);
+            strings.put("key" + i, i);
+        }
+        // the buckets grew in place, none reached the size at which it splits
+        Assert.assertEquals(0, counters.getMetrics().totalSplits());
+        Assert.assertEquals(0, strings.getMetrics().totalSplits());
+        Assert.assertTrue(counters.getMetrics().getSlotCount() < 8 * 8092);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, counters.get(i));
+            Assert.assertEquals(i, strings.get("key" + i).intValue());
+        }
+    }
+
+    @Test
+    public void testSetBucketsGrowBeforeSplitting() {
+        ConcurrentElasticHashSet<Integer> set = new ConcurrentElasticHashSet<Integer>();
+        // a fresh set does not reserve the full bucket size
+        Assert.assertTrue(set.getMetrics().getSlotCount() < 8 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(set.add(i));
+        }
+        // the buckets grew in place, none reached the size at which it splits
+        Assert.assertEquals(0, set.getMetrics().totalSplits());
+        Assert.assertTrue(set.getMetrics().getSlotCount() < 8 * 8092);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(set.contains(i));
+        }
+        Assert.assertFalse(set.contains(10000));
+    }
+
+    @Test
+    public void testVarintIntExtremes() {
+        int[] values = {0, 1, -1, 63, -64, 64, -65, (1 << 30) - 1, -(1 << 30), 1 << 30, -(1 << 30) - 1,
+                Integer.MAX_VALUE, Integer.MIN_VALUE};
+        int[] lengths = {1, 1, 1, 1, 1, 2, 2, 5, 5, 5, 5, 5, 5};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < values.length; i++) {
+            buffer.clear();
+            Codecs.VARINT_INT.encode(values[i], buffer);
+            Assert.assertEquals("length of " + values[i], lengths[i], buffer.position());
+            buffer.flip();
+            Assert.assertEquals(values[i], Codecs.VARINT_INT.decode(buffer).intValue());
+            Assert.assertFalse(buffer.hasRemaining());
+        }
+    }
 }
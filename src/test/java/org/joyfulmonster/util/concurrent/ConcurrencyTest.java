@@ -1,15 +1,26 @@
 package org.joyfulmonster.util.concurrent;
 
+import org.joyfulmonster.util.concurrent.internal.TraceRecorder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 /**
  * The testsuite that testing concurrent access to the map.
@@ -77,6 +88,805 @@ public class ConcurrencyTest {
 		TestUtil.printMetrics(map);
 	}
 
+	/**
+	 * Concurrent inserts into a map taking lock free inserts, with small buckets to force splits.  Threads inserting
+	 * the same keys race for the same slots, the map must not end up with a key twice.
+	 */
+	@Test
+	public void testConcurrentLockFreeInserts() throws InterruptedException, ExecutionException {
+		ConcurrentElasticHashMap<String, Integer> map = ConcurrentElasticHashMap.withLockFreeInserts(256, 2, 0.75f);
+		runConcurrentPutDifferentKeys(map, 8, 100000);
+		TestUtil.printMetrics(map);
+
+		map = ConcurrentElasticHashMap.withLockFreeInserts(256, 2, 0.75f);
+		runConcurrentPutSameKeySet(map, 8, 100000);
+		TestUtil.printMetrics(map);
+
+		map = ConcurrentElasticHashMap.withLockFreeInserts();
+		runConcurrentPutRemoveGet(map, 6, 20000, 1000000L);
+		TestUtil.printMetrics(map);
+	}
+
+	/**
+	 * Concurrent puts into a map of compact String keys, with small buckets to force splits.
+	 */
+	@Test
+	public void testConcurrentPutsCompactStringKeys() throws InterruptedException, ExecutionException {
+		ConcurrentElasticHashMap<String, Integer> map = ConcurrentElasticHashMap.withCompactStringKeys(256, 2, 0.75f);
+		runConcurrentPutDifferentKeys(map, 8, 100000);
+		TestUtil.printMetrics(map);
+	}
+
+	/**
+	 * Threads racing to load the same keys run the loader once per key.
+	 */
+	@Test
+	public void testConcurrentGetOrLoadSameKeys() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+		final AtomicInteger loads = new AtomicInteger();
+		final Function<String, Integer> loader = new Function<String, Integer>() {
+			@Override
+			public Integer apply(String key) {
+				loads.incrementAndGet();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return Integer.valueOf(key);
+			}
+		};
+		final int keyCount = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < keyCount; i++) {
+							Assert.assertEquals(i, map.getOrLoad(Integer.toString(i), loader).intValue());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(keyCount, loads.get());
+		Assert.assertEquals(keyCount, map.size());
+	}
+
+	/**
+	 * Bulk load a parallel stream, then run concurrent puts on top of the loaded map.
+	 */
+	@Test
+	public void testBulkLoadFromParallelStream() throws InterruptedException, ExecutionException {
+		final int keyCount = 1000000;
+		ConcurrentElasticHashMap<String, Integer> map = ConcurrentElasticHashMap.bulkLoad(
+				IntStream.range(0, keyCount).parallel().mapToObj(new IntFunction<Map.Entry<String, Integer>>() {
+					@Override
+					public Map.Entry<String, Integer> apply(int i) {
+						return new AbstractMap.SimpleEntry<>(Integer.toString(i), i);
+					}
+				}));
+		TestUtil.printMetrics(map);
+		Assert.assertEquals(keyCount, map.size());
+		for (int i = 0; i < keyCount; i++) {
+			Assert.assertEquals(i, map.get(Integer.toString(i)).intValue());
+		}
+		final ConcurrentElasticHashMap<String, Integer> loaded = map;
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = thread; i < keyCount; i += 8) {
+							Assert.assertEquals(i, loaded.put(Integer.toString(i), -i).intValue());
+							Assert.assertNull(loaded.put("new" + i, i));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(2 * keyCount, map.size());
+		Assert.assertEquals(-5, map.get("5").intValue());
+	}
+
+	/**
+	 * Threads increment shared counters with replace(key, old, old + 1) while other threads insert new keys into the
+	 * same small buckets, so the lock free replaces race with splits.  No increment may be lost.
+	 */
+	@Test
+	public void testConcurrentReplaceDuringSplits() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<String, Integer> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+		final int counterCount = 100;
+		final int incrementsPerThread = 20000;
+		final int threadCount = 8;
+		for (int i = 0; i < counterCount; i++) {
+			map.put("counter" + i, 0);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < incrementsPerThread; i++) {
+							String key = "counter" + (i % counterCount);
+							while (true) {
+								Integer old = map.get(key);
+								if (map.replace(key, old, old + 1)) {
+									break;
+								}
+							}
+							if (thread % 2 == 0) {
+								map.put("filler" + thread + "-" + i, i);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+		long total = 0;
+		for (int i = 0; i < counterCount; i++) {
+			total += map.get("counter" + i);
+		}
+		Assert.assertEquals((long) threadCount * incrementsPerThread, total);
+	}
+
+	/**
+	 * Threads insert disjoint keys into a sharded map of small buckets, so every shard splits and doubles while the
+	 * others do the same.  No key may be lost, and a removed key must stay removed.
+	 */
+	@Test
+	public void testConcurrentShardedInserts() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.sharded(8, 64, 8, 0.75f);
+		final int keysPerThread = 50000;
+		final int threadCount = 8;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = thread * keysPerThread; i < (thread + 1) * keysPerThread; i++) {
+							map.put(i, i);
+							if (i % 10 == 0) {
+								map.remove(i);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+		Assert.assertEquals(threadCount * keysPerThread / 10 * 9, map.size());
+		for (int i = 0; i < threadCount * keysPerThread; i++) {
+			if (i % 10 == 0) {
+				Assert.assertNull(map.get(i));
+			} else {
+				Assert.assertEquals(i, map.get(i).intValue());
+			}
+		}
+	}
+
+	/**
+	 * Threads fill a map that starts with many buckets, so most splits leave the directory size alone and rewire
+	 * their slots side by side.  Every split adds one bucket, whichever way it was published.
+	 */
+	@Test
+	public void testConcurrentSplitsWithoutDoubling() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<Integer, Integer> map = new ConcurrentElasticHashMap<>(64, 1024, 0.75f);
+		final int keysPerThread = 50000;
+		final int threadCount = 8;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = thread; i < threadCount * keysPerThread; i += threadCount) {
+							map.put(i, i);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		Assert.assertEquals(1024 + map.getMetrics().totalSplits(), map.getMetrics().getBucketCount());
+		Assert.assertEquals(threadCount * keysPerThread, map.size());
+		for (int i = 0; i < threadCount * keysPerThread; i++) {
+			Assert.assertEquals(i, map.get(i).intValue());
+		}
+	}
+
+	/**
+	 * Threads move amounts between random pairs of accounts with atomically() while others overwrite unrelated keys
+	 * in the same buckets, which splits them.  Money is neither created nor lost, and a reader that sums all the
+	 * accounts in one atomic step always sees the same total.
+	 */
+	@Test
+	public void testConcurrentAtomicTransfers() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<String, Long> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+		final int accountCount = 50;
+		final long initial = 1000L;
+		final List<String> accounts = new ArrayList<>();
+		for (int i = 0; i < accountCount; i++) {
+			accounts.add("account" + i);
+			map.put("account" + i, initial);
+		}
+		final int threadCount = 8;
+		final int transfersPerThread = 20000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Random random = new Random(thread);
+						for (int i = 0; i < transfersPerThread; i++) {
+							final String from = accounts.get(random.nextInt(accountCount));
+							final String to = accounts.get(random.nextInt(accountCount));
+							map.atomically(Arrays.asList(from, to), new Consumer<Map<String, Long>>() {
+								@Override
+								public void accept(Map<String, Long> values) {
+									values.put(from, values.get(from) - 1);
+									values.put(to, values.get(to) + 1);
+								}
+							});
+							if (thread % 2 == 0) {
+								map.put("filler" + thread + "-" + i, 0L);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			final AtomicBoolean done = new AtomicBoolean(false);
+			Future<Integer> reader = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int reads = 0;
+					while (!done.get()) {
+						map.atomically(accounts, new Consumer<Map<String, Long>>() {
+							@Override
+							public void accept(Map<String, Long> values) {
+								long total = 0;
+								for (long value : values.values()) {
+									total += value;
+								}
+								Assert.assertEquals(accountCount * initial, total);
+							}
+						});
+						reads++;
+					}
+					return reads;
+				}
+			});
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			done.set(true);
+			Assert.assertTrue(reader.get() > 0);
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		Assert.assertTrue(map.getMetrics().totalSplits() > 0);
+		long total = 0;
+		for (String account : accounts) {
+			total += map.get(account);
+		}
+		Assert.assertEquals(accountCount * initial, total);
+	}
+
+	/**
+	 * Threads move amounts between accounts with atomically() and overwrite other keys of the same buckets, while a
+	 * reader takes snapshots.  Every snapshot sees all the accounts at one point in time, so their total never moves.
+	 */
+	@Test
+	public void testConcurrentSnapshots() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<String, Long> map = new ConcurrentElasticHashMap<>(64, 2, 0.75f);
+		final int accountCount = 50;
+		final long initial = 1000L;
+		final List<String> accounts = new ArrayList<>();
+		for (int i = 0; i < accountCount; i++) {
+			accounts.add("account" + i);
+			map.put("account" + i, initial);
+		}
+		final int threadCount = 8;
+		final int transfersPerThread = 20000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Random random = new Random(thread);
+						for (int i = 0; i < transfersPerThread; i++) {
+							final String from = accounts.get(random.nextInt(accountCount));
+							final String to = accounts.get(random.nextInt(accountCount));
+							map.atomically(Arrays.asList(from, to), new Consumer<Map<String, Long>>() {
+								@Override
+								public void accept(Map<String, Long> values) {
+									values.put(from, values.get(from) - 1);
+									values.put(to, values.get(to) + 1);
+								}
+							});
+							map.put("filler" + thread + "-" + (i % 500), (long) i);
+						}
+						return null;
+					}
+				}));
+			}
+			final AtomicBoolean done = new AtomicBoolean(false);
+			Future<Integer> reader = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int snapshots = 0;
+					while (!done.get()) {
+						Map<String, Long> snapshot = map.snapshot();
+						long total = 0;
+						for (String account : accounts) {
+							total += snapshot.get(account);
+						}
+						Assert.assertEquals(accountCount * initial, total);
+						snapshots++;
+					}
+					return snapshots;
+				}
+			});
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			done.set(true);
+			Assert.assertTrue(reader.get() > 0);
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		Assert.assertEquals(accountCount + threadCount * 500, map.size());
+	}
+
+	/**
+	 * Writers insert and remove disjoint key ranges of an adaptive map while the buckets of every depth are resized
+	 * by the tuner.  Whatever sizes the tuner picks, no entry may be lost while the buckets split.
+	 */
+	@Test
+	public void testConcurrentAdaptiveResizing() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.adaptive(1024, 1, 0.9f);
+		final int threadCount = 8;
+		final int keysPerThread = 50000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int base = t * keysPerThread;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = base; i < base + keysPerThread; i++) {
+							map.put(i, i);
+							if (i % 3 == 0) {
+								Assert.assertEquals(i, map.remove(i).intValue());
+							}
+						}
+						for (int i = base; i < base + keysPerThread; i++) {
+							Assert.assertEquals((i % 3 == 0) ? null : Integer.valueOf(i), map.get(i));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+		int expected = 0;
+		for (int i = 0; i < threadCount * keysPerThread; i++) {
+			if (i % 3 != 0) {
+				Assert.assertEquals(i, map.get(i).intValue());
+				expected++;
+			}
+		}
+		Assert.assertEquals(expected, map.size());
+	}
+
+	/**
+	 * Every thread writes and reads back its own keys while another thread spills the cold buckets over and over.  A
+	 * key must never lose a write or show a stale value, whether its bucket is on the heap, spilled or paged in.
+	 */
+	@Test
+	public void testConcurrentSpilling() throws Exception {
+		File file = File.createTempFile("elastic-hashmap", ".spill");
+		file.deleteOnExit();
+		final ConcurrentElasticHashMap<String, Integer> map =
+				ConcurrentElasticHashMap.tiered(file, Codecs.UTF8, Codecs.VARINT_INT, 64, 4, 0.75f);
+		final int threadCount = 8;
+		final int keysPerThread = 2000;
+		final int opsPerThread = 50000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<int[]>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						Random random = new Random(thread);
+						int[] values = new int[keysPerThread];
+						for (int i = 0; i < opsPerThread; i++) {
+							// a narrow window of hot keys moves over the key range
+							int k = (i / 10 + random.nextInt(100)) % keysPerThread;
+							String key = "t" + thread + "-" + k;
+							Integer found = map.get(key);
+							Assert.assertEquals(values[k] == 0 ? null : Integer.valueOf(values[k]), found);
+							if (random.nextInt(10) == 0) {
+								map.remove(key);
+								values[k] = 0;
+							} else {
+								values[k] = i + 1;
+								map.put(key, values[k]);
+							}
+						}
+						return values;
+					}
+				}));
+			}
+			final AtomicBoolean done = new AtomicBoolean(false);
+			Future<Integer> sweeper = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int spilled = 0;
+					while (!done.get()) {
+						spilled += map.spillColdBuckets();
+					}
+					return spilled;
+				}
+			});
+			int expectedSize = 0;
+			for (int t = 0; t < threadCount; t++) {
+				int[] values = futures.get(t).get();
+				for (int k = 0; k < keysPerThread; k++) {
+					Integer found = map.get("t" + t + "-" + k);
+					Assert.assertEquals(values[k] == 0 ? null : Integer.valueOf(values[k]), found);
+					if (values[k] != 0) {
+						expectedSize++;
+					}
+				}
+			}
+			done.set(true);
+			Assert.assertTrue(sweeper.get() > 0);
+			Assert.assertEquals(expectedSize, map.size());
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(map);
+	}
+
+	/**
+	 * Every thread puts its own keys while the trace is recorded.  The trace must hold the operations of every thread
+	 * in their order, over several flushes of the buffer of the thread.
+	 */
+	@Test
+	public void testConcurrentTracing() throws Exception {
+		File file = File.createTempFile("elastic-hashmap", ".trace");
+		file.deleteOnExit();
+		final ConcurrentElasticHashMap<Long, Long> map = new ConcurrentElasticHashMap<>(256, 1, 0.75f);
+		final int threadCount = 8;
+		final int keysPerThread = 10000;
+
+		map.startTrace(file);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final long base = (long) t * keysPerThread;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (long i = base; i < base + keysPerThread; i++) {
+							map.put(i, i);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		map.stopTrace();
+
+		List<long[]> trace = TraceRecorder.read(file);
+		Assert.assertEquals(threadCount, trace.size());
+		boolean[] seen = new boolean[threadCount];
+		for (long[] records : trace) {
+			Assert.assertEquals(keysPerThread * 2, records.length);
+			long first = TraceRecorder.keyOf(records[1]);
+			Assert.assertEquals(0L, first % keysPerThread);
+			seen[(int) (first / keysPerThread)] = true;
+			for (int i = 0; i < keysPerThread; i++) {
+				Assert.assertEquals(TraceRecorder.PUT, TraceRecorder.typeOf(records[i * 2]));
+				Assert.assertEquals(first + i, TraceRecorder.keyOf(records[i * 2 + 1]).longValue());
+			}
+		}
+		for (boolean thread : seen) {
+			Assert.assertTrue(thread);
+		}
+	}
+
+	/**
+	 * Several threads join their own delta map into the same base map while another thread puts into it.  Every
+	 * delta must be added exactly once to every key, and no put may be lost.
+	 */
+	@Test
+	public void testConcurrentJoin() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<Integer, Integer> base = new ConcurrentElasticHashMap<>(128, 1, 0.75f);
+		final int threadCount = 8;
+		final int keyCount = 20000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						ConcurrentElasticHashMap<Integer, Integer> delta = new ConcurrentElasticHashMap<>(64, 1 << (thread % 4), 0.75f);
+						for (int i = 0; i < keyCount; i++) {
+							delta.put(i, 1);
+						}
+						base.join(delta, (current, added) -> current + added);
+						return null;
+					}
+				}));
+			}
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = keyCount; i < 2 * keyCount; i++) {
+						base.put(i, -1);
+					}
+					return null;
+				}
+			}));
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		TestUtil.printMetrics(base);
+		Assert.assertEquals(2 * keyCount, base.size());
+		for (int i = 0; i < keyCount; i++) {
+			Assert.assertEquals(threadCount, base.get(i).intValue());
+			Assert.assertEquals(-1, base.get(keyCount + i).intValue());
+		}
+	}
+
+	/**
+	 * Threads hammer a few hot counters and many cold ones while another thread drains the hot counters with
+	 * sumThenReset.  Every add has to end up either in a drained sum or in the final counts.
+	 */
+	@Test
+	public void testConcurrentCounterAdds() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticCounterMap<String> map = new ConcurrentElasticCounterMap<>(64, 2, 0.75f);
+		final int threadCount = 8;
+		final int addsPerThread = 200000;
+		final AtomicLong drained = new AtomicLong();
+		final AtomicInteger running = new AtomicInteger(threadCount);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < addsPerThread; i++) {
+							if ((i & 1) == 0) {
+								map.add("hot" + (i & 6), 1);
+							} else {
+								map.incrementAndGet("cold" + thread + "-" + (i % 5000));
+							}
+						}
+						running.decrementAndGet();
+						return null;
+					}
+				}));
+			}
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					while (running.get() > 0) {
+						for (int i = 0; i < 8; i += 2) {
+							drained.addAndGet(map.sumThenReset("hot" + i));
+						}
+					}
+					return null;
+				}
+			}));
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		long hot = drained.get();
+		for (int i = 0; i < 8; i += 2) {
+			hot += map.get("hot" + i);
+		}
+		Assert.assertEquals((long) threadCount * addsPerThread / 2, hot);
+		long cold = 0;
+		for (Map.Entry<String, Long> entry : map.snapshot().entrySet()) {
+			if (entry.getKey().startsWith("cold")) {
+				cold += entry.getValue();
+			}
+		}
+		Assert.assertEquals((long) threadCount * addsPerThread / 2, cold);
+		Assert.assertEquals(threadCount * 2500 + 4, map.size());
+	}
+
+	/**
+	 * Threads add and remove their own keys of a set while reading the keys of the others, splits happen meanwhile.
+	 */
+	@Test
+	public void testConcurrentSetAddRemove() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashSet<Integer> set = new ConcurrentElasticHashSet<>(64, 2, 0.75f);
+		final int threadCount = 8;
+		final int keysPerThread = 50000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < keysPerThread; i++) {
+							int key = i * threadCount + thread;
+							Assert.assertTrue(set.add(key));
+							Assert.assertTrue(set.contains(key));
+							if (i % 3 == 0) {
+								Assert.assertTrue(set.remove(key));
+								Assert.assertFalse(set.contains(key));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		int expected = threadCount * (keysPerThread - (keysPerThread + 2) / 3);
+		Assert.assertEquals(expected, set.size());
+		Assert.assertEquals(expected, set.parallelStream().count());
+	}
+
+	/**
+	 * Many threads insert the same keys without the lock into a map of one small bucket.  The inserts racing for the
+	 * last free slots must not fill a bucket past its load threshold, nor lose or duplicate a key.
+	 */
+	@Test
+	public void testConcurrentLockFreeInsertsIntoOneSmallBucket() throws InterruptedException, ExecutionException {
+		final ConcurrentElasticHashMap<Integer, Integer> map = ConcurrentElasticHashMap.withLockFreeInserts(64, 1, 0.75f);
+		final int threadCount = 16;
+		final int keyCount = 20000;
+		final AtomicInteger running = new AtomicInteger(threadCount);
+		final AtomicInteger maxOverload = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			List<Future<Void>> futures = new LinkedList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int start = t * (keyCount / threadCount);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						// every thread inserts every key, each from its own start so they race on the same slots
+						for (int i = 0; i < keyCount; i++) {
+							int key = (start + i) % keyCount;
+							map.put(key, key);
+						}
+						running.decrementAndGet();
+						return null;
+					}
+				}));
+			}
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					while (running.get() > 0) {
+						int overload = map.getMetrics().getMaxBucketOverload();
+						if (overload > maxOverload.get()) {
+							maxOverload.set(overload);
+						}
+					}
+					return null;
+				}
+			}));
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		TestUtil.printMetrics(map);
+		Assert.assertEquals("a bucket was filled past its load threshold", 0, maxOverload.get());
+		Assert.assertEquals(0, map.getMetrics().getMaxBucketOverload());
+		Assert.assertEquals(keyCount, map.mappingCount());
+		for (int i = 0; i < keyCount; i++) {
+			Assert.assertEquals(i, map.get(i).intValue());
+		}
+	}
+
 	/**
 	 * Run the current put/remove/get operations
 	 * @param map    the map
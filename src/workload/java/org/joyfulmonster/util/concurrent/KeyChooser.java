@@ -0,0 +1,114 @@
+package org.joyfulmonster.util.concurrent;
+
+import java.util.Random;
+
+/**
+ * Chooses the existing key an operation reads, updates or deletes, like the request distributions of YCSB.  The keys
+ * are the longs [0, keyCount), inserted in that order.
+ *
+ * 1. uniform: every key is as likely.
+ * 2. zipfian: a few keys take most of the operations (theta 0.99).  The popular ranks are scrambled over the key space,
+ *    so the hot keys are spread over the buckets instead of being the oldest keys.
+ * 3. latest: zipfian over the age of the keys, the keys inserted last are the hottest ones.
+ *
+ * A chooser is created per phase for the keys present when the phase starts, it is shared by the threads of the phase.
+ *
+ * Created by Weifeng Bao on 1/30/2016.
+ */
+abstract class KeyChooser {
+    private static final double ZIPFIAN_THETA = 0.99;
+
+    /**
+     * @param random  the random of the calling thread
+     * @param keyCount  the number of keys inserted so far
+     * @return a key in [0, keyCount)
+     */
+    abstract long next(Random random, long keyCount);
+
+    /**
+     * @param distribution  uniform, zipfian or latest
+     * @param keyCount  the number of keys at the start of the phase
+     * @return
+     */
+    static KeyChooser create(String distribution, long keyCount) {
+        if ("uniform".equals(distribution)) {
+            return new Uniform();
+        }
+        if ("zipfian".equals(distribution)) {
+            return new Zipfian(keyCount, true);
+        }
+        if ("latest".equals(distribution)) {
+            return new Zipfian(keyCount, false);
+        }
+        throw new IllegalArgumentException("Unknown key distribution " + distribution);
+    }
+
+    private static class Uniform extends KeyChooser {
+        @Override
+        long next(Random random, long keyCount) {
+            return (long) (random.nextDouble() * keyCount);
+        }
+    }
+
+    /**
+     * The zipfian generator of Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as used by YCSB.
+     * Its constants are computed once for the key count of the phase, the ranks of the keys inserted during the phase
+     * fall into the same range.
+     */
+    private static class Zipfian extends KeyChooser {
+        private final long items;
+        private final boolean scrambled;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final double halfPowTheta;
+
+        Zipfian(long items, boolean scrambled) {
+            this.items = Math.max(2L, items);
+            this.scrambled = scrambled;
+            double zeta2 = 1.0 + Math.pow(0.5, ZIPFIAN_THETA);
+            double sum = 0.0;
+            for (long i = 1; i <= this.items; i++) {
+                sum += 1.0 / Math.pow(i, ZIPFIAN_THETA);
+            }
+            this.zetan = sum;
+            this.alpha = 1.0 / (1.0 - ZIPFIAN_THETA);
+            this.eta = (1.0 - Math.pow(2.0 / this.items, 1.0 - ZIPFIAN_THETA)) / (1.0 - zeta2 / zetan);
+            this.halfPowTheta = Math.pow(0.5, ZIPFIAN_THETA);
+        }
+
+        /**
+         * The rank of the next key, 0 is the most popular.
+         */
+        private long rank(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0L;
+            }
+            if (uz < 1.0 + halfPowTheta) {
+                return 1L;
+            }
+            return (long) (items * Math.pow(eta * u - eta + 1.0, alpha));
+        }
+
+        @Override
+        long next(Random random, long keyCount) {
+            long rank = Math.min(rank(random), keyCount - 1);
+            if (!scrambled) {
+                // latest: rank 0 is the newest key
+                return keyCount - 1 - rank;
+            }
+            return Math.floorMod(scramble(rank), keyCount);
+        }
+
+        /** the MurmurHash3 finalizer, a bijection of the longs */
+        private static long scramble(long h) {
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB53A85EC8E53L;
+            return h ^ (h >>> 33);
+        }
+    }
+}
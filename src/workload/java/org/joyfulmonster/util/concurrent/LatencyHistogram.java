@@ -0,0 +1,98 @@
+package org.joyfulmonster.util.concurrent;
+
+/**
+ * A latency histogram in the style of HdrHistogram: fixed memory, constant time record(), and percentiles within 1.6%
+ * of the recorded values over the whole range of a long.
+ *
+ * 1. Values below SUB_BUCKETS are counted exactly.  Above, every power of 2 is split into SUB_BUCKETS / 2 linear
+ *    buckets, so the width of a bucket is at most 1/64 of its values.
+ * 2. A percentile reports the highest value of its bucket, it never understates a latency.  The maximum is exact.
+ * 3. A histogram is written by a single thread, add() merges the histograms of the threads once they are done.
+ *
+ * Created by Weifeng Bao on 1/30/2016.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS >>> 1;
+    /** the exact buckets, then HALF buckets per power of 2 up to 2^63 */
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long totalValue;
+    private long max;
+
+    /**
+     * @param value  a latency in nanoseconds, negative values count as 0
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        totalValue += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return totalCount;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return (totalCount == 0) ? 0.0 : (double) totalValue / totalCount;
+    }
+
+    /**
+     * @param percentile  in [0, 100]
+     * @return the value at or below which the percentile of the recorded values fall, 0 if nothing was recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift the value into [HALF, SUB_BUCKETS), the shift picks the power of 2, the rest the linear bucket
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,198 @@
+package org.joyfulmonster.util.concurrent;
+
+import org.joyfulmonster.util.concurrent.internal.ConcurrentElasticHashMapImpl;
+import org.joyfulmonster.util.concurrent.internal.TraceRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace recorded by ConcurrentElasticHashMap.startTrace() against a map of any configuration, to tune the
+ * bucket size and the bucket layout on real traffic offline.
+ *
+ * 1. Every thread of the trace is replayed by a thread of its own, in the order it recorded its operations, so the
+ *    replay has the concurrency of the traced map.
+ * 2. The keys are Longs of the recorded hashes, see TraceRecorder.keyOf(), so they land in the buckets and the slots
+ *    of the original keys.  The values are the keys.  The replay starts from an empty map, the entries present before
+ *    the trace started are missing.
+ * 3. paced=true waits until the time every operation was recorded at, and measures its latency from that time: a
+ *    stall delays the following operations and is counted against them too.  paced=false replays as fast as possible.
+ *
+ * Run it with 'gradle workload -PworkloadMain=TraceReplayer -PworkloadArgs="trace=map.trace layout=adaptive"', the
+ * arguments are:
+ *
+ *   trace=<file>            the trace file, required
+ *   layout=default          default, adaptive, sharded, lockfree or lazy
+ *   bucketSize=8192 buckets=8 loadFactor=0.75   the configuration of the map
+ *   paced=false             whether to replay the operations at their recorded times
+ *
+ * Created by Weifeng Bao on 1/31/2016.
+ */
+public class TraceReplayer {
+    private static final String[] OPERATIONS = { "GET", "PUT", "PUT_IF_ABSENT", "REPLACE", "REMOVE" };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        if (!settings.containsKey("trace")) {
+            throw new IllegalArgumentException("Missing trace=<file>");
+        }
+        replay(new File(settings.get("trace")), newMap(settings), Boolean.parseBoolean(settings.get("paced")));
+    }
+
+    private static ConcurrentElasticHashMap<Long, Long> newMap(Map<String, String> settings) {
+        String layout = settings.containsKey("layout") ? settings.get("layout") : "default";
+        int bucketSize = settings.containsKey("bucketSize") ? Integer.parseInt(settings.get("bucketSize"))
+                : ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_SIZE;
+        int buckets = settings.containsKey("buckets") ? Integer.parseInt(settings.get("buckets"))
+                : ConcurrentElasticHashMapImpl.DEFAULT_BUCKET_COUNT;
+        float loadFactor = settings.containsKey("loadFactor") ? Float.parseFloat(settings.get("loadFactor"))
+                : ConcurrentElasticHashMapImpl.DEFAULT_BUKCET_LOAD_FACTOR;
+        if ("default".equals(layout)) {
+            return new ConcurrentElasticHashMap<Long, Long>(bucketSize, buckets, loadFactor);
+        }
+        if ("adaptive".equals(layout)) {
+            return ConcurrentElasticHashMap.adaptive(bucketSize, buckets, loadFactor);
+        }
+        if ("sharded".equals(layout)) {
+            return ConcurrentElasticHashMap.sharded(Runtime.getRuntime().availableProcessors(), bucketSize, buckets,
+                    loadFactor);
+        }
+        if ("lockfree".equals(layout)) {
+            return ConcurrentElasticHashMap.withLockFreeInserts(bucketSize, buckets, loadFactor);
+        }
+        if ("lazy".equals(layout)) {
+            return ConcurrentElasticHashMap.lazy(bucketSize, buckets, loadFactor);
+        }
+        throw new IllegalArgumentException("Unknown layout " + layout);
+    }
+
+    static void replay(File trace, final ConcurrentElasticHashMap<Long, Long> map, final boolean paced)
+            throws IOException, InterruptedException {
+        List<long[]> threads = TraceRecorder.read(trace);
+        final CountDownLatch ready = new CountDownLatch(threads.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        final LatencyHistogram[][] histograms = new LatencyHistogram[threads.size()][];
+        final long[] startNanos = new long[1];
+        Thread[] replayers = new Thread[threads.size()];
+        long operations = 0;
+        for (int t = 0; t < replayers.length; t++) {
+            final int thread = t;
+            final long[] records = threads.get(t);
+            operations += records.length / 2;
+            replayers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Long[] keys = new Long[records.length / 2];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = TraceRecorder.keyOf(records[i * 2 + 1]);
+                    }
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    histograms[thread] = replay(map, records, keys, paced ? startNanos[0] : -1L);
+                }
+            }, "replay-" + t);
+            replayers[t].start();
+        }
+
+        ready.await();
+        startNanos[0] = System.nanoTime();
+        start.countDown();
+        for (Thread replayer : replayers) {
+            replayer.join();
+        }
+        long elapsed = System.nanoTime() - startNanos[0];
+
+        LatencyHistogram[] total = newHistograms();
+        for (LatencyHistogram[] result : histograms) {
+            for (int i = 0; i < total.length; i++) {
+                total[i].add(result[i]);
+            }
+        }
+        System.out.println(String.format("%d threads, %d ops in %.2f s, %.0f ops/s, %d keys, splits %d, buckets %d, "
+                + "slots %d", threads.size(), operations, elapsed / 1e9, operations / (elapsed / 1e9),
+                map.mappingCount(), map.getMetrics().totalSplits(), map.getMetrics().getBucketCount(),
+                map.getMetrics().getSlotCount()));
+        System.out.println(String.format("  %-13s %10s %10s %10s %10s %10s %10s", "op", "count", "mean us", "p50 us",
+                "p99 us", "p99.9 us", "max us"));
+        for (int i = 0; i < total.length; i++) {
+            LatencyHistogram histogram = total[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("  %-13s %10d %10.2f %10.2f %10.2f %10.2f %10.2f", OPERATIONS[i],
+                    histogram.getCount(), histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3));
+        }
+    }
+
+    /**
+     * Replay the operations of a thread.
+     *
+     * @param startNanos  the time the replay started at if it is paced, -1 otherwise
+     */
+    private static LatencyHistogram[] replay(ConcurrentElasticHashMap<Long, Long> map, long[] records, Long[] keys,
+                                             long startNanos) {
+        LatencyHistogram[] histograms = newHistograms();
+        for (int i = 0; i < keys.length; i++) {
+            int type = TraceRecorder.typeOf(records[i * 2]);
+            long begin;
+            if (startNanos >= 0) {
+                begin = startNanos + TraceRecorder.nanosOf(records[i * 2]);
+                long wait;
+                while ((wait = begin - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                begin = System.nanoTime();
+            }
+
+            Long key = keys[i];
+            switch (type) {
+                case TraceRecorder.GET:
+                    map.get(key);
+                    break;
+                case TraceRecorder.PUT:
+                    map.put(key, key);
+                    break;
+                case TraceRecorder.PUT_IF_ABSENT:
+                    map.putIfAbsent(key, key);
+                    break;
+                case TraceRecorder.REPLACE:
+                    map.replace(key, key);
+                    break;
+                case TraceRecorder.REMOVE:
+                    map.remove(key);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + type);
+            }
+            histograms[type].record(System.nanoTime() - begin);
+        }
+        return histograms;
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+}
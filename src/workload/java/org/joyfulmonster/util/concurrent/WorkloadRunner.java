@@ -0,0 +1,334 @@
+package org.joyfulmonster.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A macro workload in the style of YCSB, run against ConcurrentElasticHashMap and ConcurrentHashMap in turn.
+ *
+ * Microbenchmarks keep the map at a steady size, so they miss the split storms and the directory doublings of a map
+ * that grows.  The runner goes through phases:
+ *
+ * 1. load: insert the initial records.
+ * 2. run-N: the configured mix of reads, updates, inserts and deletes, the keys chosen by the configured distribution.
+ * 3. grow-N: insert as many keys as the map holds, which splits every bucket and doubles the directory.
+ *
+ * Every thread records the latency of every operation into a LatencyHistogram per kind of operation, the phase
+ * reports the throughput and the mean, p50, p99, p99.9 and max latency.  The loop is closed, a stalled operation
+ * delays the next ones of its thread instead of being measured against a schedule.
+ *
+ * Run it with 'gradle workload -PworkloadArgs="records=1000000 threads=8 distribution=latest"', the arguments are:
+ *
+ *   records=100000          the keys inserted by the load phase
+ *   operations=1000000      the operations of a run phase, over all the threads
+ *   threads=<processors>    the threads of every phase
+ *   read=0.5 update=0.4 insert=0.05 delete=0.05   the mix of a run phase, normalized to 1
+ *   distribution=zipfian    uniform, zipfian or latest
+ *   rounds=2                the number of run and grow phases
+ *   elastic=default         the ConcurrentElasticHashMap to test: default, adaptive, sharded or lockfree
+ *
+ * Created by Weifeng Bao on 1/30/2016.
+ */
+public class WorkloadRunner {
+    private enum Operation {
+        READ, UPDATE, INSERT, DELETE
+    }
+
+    /**
+     * The operations of the runner on a map.
+     */
+    private interface Target {
+        Long get(Long key);
+
+        void put(Long key, Long value);
+
+        void remove(Long key);
+
+        long size();
+
+        /** what the map did during the phase, empty if it tells nothing */
+        String describe();
+    }
+
+    private static class ElasticTarget implements Target {
+        private final ConcurrentElasticHashMap<Long, Long> map;
+        private int splits;
+
+        ElasticTarget(ConcurrentElasticHashMap<Long, Long> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Long get(Long key) {
+            return map.get(key);
+        }
+
+        @Override
+        public void put(Long key, Long value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public void remove(Long key) {
+            map.remove(key);
+        }
+
+        @Override
+        public long size() {
+            return map.mappingCount();
+        }
+
+        @Override
+        public String describe() {
+            int total = map.getMetrics().totalSplits();
+            String result = String.format("splits %d, buckets %d, slots %d", total - splits,
+                    map.getMetrics().getBucketCount(), map.getMetrics().getSlotCount());
+            splits = total;
+            return result;
+        }
+    }
+
+    private static class ConcurrentHashMapTarget implements Target {
+        private final ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+
+        @Override
+        public Long get(Long key) {
+            return map.get(key);
+        }
+
+        @Override
+        public void put(Long key, Long value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public void remove(Long key) {
+            map.remove(key);
+        }
+
+        @Override
+        public long size() {
+            return map.mappingCount();
+        }
+
+        @Override
+        public String describe() {
+            return "";
+        }
+    }
+
+    private final Map<String, String> settings;
+    private final long records;
+    private final long operations;
+    private final int threads;
+    private final double[] mix;
+    private final String distribution;
+    private final int rounds;
+
+    WorkloadRunner(Map<String, String> settings) {
+        this.settings = settings;
+        this.records = Long.parseLong(setting("records", "100000"));
+        this.operations = Long.parseLong(setting("operations", "1000000"));
+        this.threads = Integer.parseInt(setting("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        this.distribution = setting("distribution", "zipfian");
+        this.rounds = Integer.parseInt(setting("rounds", "2"));
+        this.mix = new double[Operation.values().length];
+        mix[Operation.READ.ordinal()] = Double.parseDouble(setting("read", "0.5"));
+        mix[Operation.UPDATE.ordinal()] = Double.parseDouble(setting("update", "0.4"));
+        mix[Operation.INSERT.ordinal()] = Double.parseDouble(setting("insert", "0.05"));
+        mix[Operation.DELETE.ordinal()] = Double.parseDouble(setting("delete", "0.05"));
+        // fail on an unknown distribution before anything runs
+        KeyChooser.create(distribution, 2L);
+    }
+
+    private String setting(String name, String defaultValue) {
+        String value = settings.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private Target newElasticTarget() {
+        String kind = setting("elastic", "default");
+        if ("default".equals(kind)) {
+            return new ElasticTarget(new ConcurrentElasticHashMap<Long, Long>());
+        }
+        if ("adaptive".equals(kind)) {
+            return new ElasticTarget(ConcurrentElasticHashMap.<Long, Long>adaptive());
+        }
+        if ("sharded".equals(kind)) {
+            return new ElasticTarget(ConcurrentElasticHashMap.<Long, Long>sharded());
+        }
+        if ("lockfree".equals(kind)) {
+            return new ElasticTarget(ConcurrentElasticHashMap.<Long, Long>withLockFreeInserts());
+        }
+        throw new IllegalArgumentException("Unknown elastic map " + kind);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new WorkloadRunner(settings).run();
+    }
+
+    void run() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            System.out.println("settings " + settings + ", " + threads + " threads");
+            // let the JIT compile both maps before anything is measured
+            runAll(executor, newElasticTarget(), new ConcurrentHashMapTarget(), false);
+            runAll(executor, newElasticTarget(), new ConcurrentHashMapTarget(), true);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run every phase on both maps, each phase on one map then the other.
+     */
+    private void runAll(ExecutorService executor, Target elastic, Target reference, boolean report)
+            throws InterruptedException, ExecutionException {
+        Target[] targets = { elastic, reference };
+        String[] names = { "ConcurrentElasticHashMap", "ConcurrentHashMap" };
+        AtomicLong[] nextKeys = { new AtomicLong(), new AtomicLong() };
+        long warmupScale = report ? 1L : 10L;
+
+        for (int t = 0; t < targets.length; t++) {
+            double[] load = new double[mix.length];
+            load[Operation.INSERT.ordinal()] = 1.0;
+            runPhase(executor, "load", names[t], targets[t], nextKeys[t], load,
+                    Math.max(1L, records / warmupScale), report);
+        }
+        for (int round = 1; round <= rounds; round++) {
+            for (int t = 0; t < targets.length; t++) {
+                runPhase(executor, "run-" + round, names[t], targets[t], nextKeys[t], mix,
+                        Math.max(1L, operations / warmupScale), report);
+            }
+            for (int t = 0; t < targets.length; t++) {
+                double[] grow = new double[mix.length];
+                grow[Operation.INSERT.ordinal()] = 1.0;
+                runPhase(executor, "grow-" + round, names[t], targets[t], nextKeys[t], grow,
+                        Math.max(1L, targets[t].size()), report);
+            }
+        }
+    }
+
+    private void runPhase(ExecutorService executor, String phase, String name, final Target target,
+                          final AtomicLong nextKey, double[] weights, long count, boolean report)
+            throws InterruptedException, ExecutionException {
+        final double[] cumulative = new double[weights.length];
+        double total = 0.0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i] / total;
+            cumulative[i] = sum;
+        }
+        final KeyChooser chooser = KeyChooser.create(distribution, Math.max(1L, nextKey.get()));
+        final long perThread = (count + threads - 1) / threads;
+
+        List<Future<LatencyHistogram[]>> futures = new ArrayList<Future<LatencyHistogram[]>>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = 31L * phase.hashCode() + t;
+            futures.add(executor.submit(new Callable<LatencyHistogram[]>() {
+                @Override
+                public LatencyHistogram[] call() {
+                    return runThread(target, nextKey, chooser, cumulative, perThread, new Random(seed));
+                }
+            }));
+        }
+        LatencyHistogram[] histograms = newHistograms();
+        for (Future<LatencyHistogram[]> future : futures) {
+            LatencyHistogram[] result = future.get();
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i].add(result[i]);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        String description = target.describe();
+        if (!report) {
+            return;
+        }
+
+        long done = 0;
+        for (LatencyHistogram histogram : histograms) {
+            done += histogram.getCount();
+        }
+        System.out.println();
+        System.out.println(String.format("%s %s: %d ops in %.2f s, %.0f ops/s, %d keys %s", phase, name, done,
+                elapsed / 1e9, done / (elapsed / 1e9), target.size(), description));
+        System.out.println(String.format("  %-7s %10s %10s %10s %10s %10s %10s", "op", "count", "mean us", "p50 us",
+                "p99 us", "p99.9 us", "max us"));
+        for (Operation op : Operation.values()) {
+            LatencyHistogram histogram = histograms[op.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("  %-7s %10d %10.2f %10.2f %10.2f %10.2f %10.2f", op, histogram.getCount(),
+                    histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3));
+        }
+    }
+
+    private static LatencyHistogram[] runThread(Target target, AtomicLong nextKey, KeyChooser chooser,
+                                                double[] cumulative, long count, Random random) {
+        LatencyHistogram[] histograms = newHistograms();
+        Operation[] operations = Operation.values();
+        for (long i = 0; i < count; i++) {
+            double p = random.nextDouble();
+            int op = 0;
+            while (op < cumulative.length - 1 && p >= cumulative[op]) {
+                op++;
+            }
+            Long key;
+            if (operations[op] == Operation.INSERT) {
+                key = nextKey.getAndIncrement();
+            } else {
+                key = chooser.next(random, Math.max(1L, nextKey.get()));
+            }
+            Long value = random.nextLong();
+
+            long start = System.nanoTime();
+            switch (operations[op]) {
+                case READ:
+                    target.get(key);
+                    break;
+                case UPDATE:
+                case INSERT:
+                    target.put(key, value);
+                    break;
+                case DELETE:
+                    target.remove(key);
+                    break;
+            }
+            histograms[op].record(System.nanoTime() - start);
+        }
+        return histograms;
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+}